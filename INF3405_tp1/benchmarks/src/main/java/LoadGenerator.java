@@ -0,0 +1,283 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless load generator for the file server. Every simulated client opens its own session with the
+ * same protocol as Client, works in its own directory ("load-N") and runs a weighted random mix of
+ * ls, mkdir, upload and download until the time is up. Reports the operations per second,
+ * the p50 / p99 latencies and the MB/s of every command.
+ *
+ * Usage: java -cp benchmarks.jar LoadGenerator address port [clients] [seconds] [mix]
+ * where mix is a list of weights such as "ls=40,mkdir=10,upload=25,download=25" (the default).
+ * Uploads and downloads move a file of -Dload.fileSize bytes (1 MB by default); operations of the
+ * first -Dload.warmup seconds (2 by default) are not counted.
+ */
+
+public class LoadGenerator {
+    private static final long FILE_SIZE = Long.getLong("load.fileSize", 1024 * 1024);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmup", 2);
+    private static final String DEFAULT_MIX = "ls=40,mkdir=10,upload=25,download=25";
+    private static final List<String> COMMANDS = List.of("ls", "mkdir", "upload", "download");
+
+    private final InetSocketAddress server;
+    private final Path payload;
+    private final Map<String, Integer> mix;
+    private final long warmupEnd;
+    private final long end;
+
+    /**
+     * Latencies and bytes of one command, recorded by a single client then merged.
+     */
+
+    private static class Stats {
+        long[] latencies = new long[1024];
+        int count;
+        long bytes;
+
+        void add(long nanos, long transferred) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            bytes += transferred;
+        }
+
+        void addAll(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.latencies[i], 0);
+            }
+            bytes += other.bytes;
+        }
+
+        double percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(count - 1, Math.ceil(p * count) - 1)] / 1e6;
+        }
+    }
+
+    private LoadGenerator(InetSocketAddress server, Path payload, Map<String, Integer> mix, int seconds) {
+        this.server = server;
+        this.payload = payload;
+        this.mix = mix;
+        this.warmupEnd = System.nanoTime() + WARMUP_SECONDS * 1_000_000_000L;
+        this.end = warmupEnd + seconds * 1_000_000_000L;
+    }
+
+    /**
+     * Runs one simulated client until the end of the run.
+     *
+     * @param id The number of the client, used to name its directory.
+     * @return The statistics of every command, keyed by command.
+     * @throws IOException If the session fails.
+     */
+
+    private Map<String, Stats> runClient(int id) throws IOException {
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        for (String command : COMMANDS) {
+            stats.put(command, new Stats());
+        }
+        Random random = new Random(id);
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+        try (Socket socket = SocketChannel.open(server).socket();
+                FileChannel file = FileChannel.open(payload, StandardOpenOption.READ)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            String hello = in.readUTF();
+            if (!hello.startsWith("Hello")) {
+                throw new IOException(hello);
+            }
+            run(in, out, "mkdir load-" + id);
+            run(in, out, "cd load-" + id);
+            upload(socket, in, out, file, "seed.bin"); // Downloaded by every download of this client
+
+            int directories = 0;
+            while (System.nanoTime() < end) {
+                int pick = random.nextInt(totalWeight);
+                String command = null;
+                for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+                    pick -= entry.getValue();
+                    if (pick < 0) {
+                        command = entry.getKey();
+                        break;
+                    }
+                }
+
+                long start = System.nanoTime();
+                long bytes = 0;
+                switch (command) {
+                case "ls":
+                    run(in, out, "ls");
+                    break;
+                case "mkdir":
+                    run(in, out, "mkdir d" + directories++);
+                    break;
+                case "upload":
+                    bytes = upload(socket, in, out, file, "upload.bin");
+                    break;
+                default:
+                    bytes = download(socket, in, out, buffer, "seed.bin");
+                    break;
+                }
+                long finish = System.nanoTime();
+                if (start >= warmupEnd && finish <= end) {
+                    stats.get(command).add(finish - start, bytes);
+                }
+            }
+            out.writeUTF("exit");
+        }
+        return stats;
+    }
+
+    /**
+     * Sends a command and reads its responses until "Process done".
+     */
+
+    private static void run(DataInputStream in, DataOutputStream out, String command) throws IOException {
+        out.writeUTF(command);
+        awaitDone(in);
+    }
+
+    private static void awaitDone(DataInputStream in) throws IOException {
+        while (!in.readUTF().equals("Process done")) {
+            // Responses are not checked, only timed
+        }
+    }
+
+    private static long upload(Socket socket, DataInputStream in, DataOutputStream out, FileChannel file, String name) throws IOException {
+        long size = file.size();
+        out.writeUTF("upload " + name);
+        out.writeLong(size);
+        FileTransfer.send(file, 0, size, socket, out);
+        awaitDone(in);
+        return size;
+    }
+
+    private static long download(Socket socket, DataInputStream in, DataOutputStream out, ByteBuffer buffer, String name) throws IOException {
+        out.writeUTF("download " + name);
+        String status = in.readUTF();
+        if (!status.equals("Sending file...")) {
+            throw new IOException("Download failed: " + status);
+        }
+        long size = in.readLong();
+        FileTransfer.skip(size, socket, in, buffer);
+        awaitDone(in);
+        return size;
+    }
+
+    private static Map<String, Integer> parseMix(String text) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : text.split(",")) {
+            String[] weight = part.split("=");
+            if (weight.length != 2 || !COMMANDS.contains(weight[0].trim())) {
+                throw new IllegalArgumentException("Invalid mix entry: " + part + " (expected command=weight with command in " + COMMANDS + ")");
+            }
+            int value = Integer.parseInt(weight[1].trim());
+            if (value > 0) {
+                mix.put(weight[0].trim(), value);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("The mix has no command");
+        }
+        return mix;
+    }
+
+    /**
+     * The main method, runs the load and prints the report.
+     *
+     * @param args The address and port of the server, then optionally the number of clients,
+     *             the duration in seconds and the command mix.
+     */
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadGenerator address port [clients] [seconds] [mix]");
+            System.exit(1);
+        }
+        InetSocketAddress server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        Map<String, Integer> mix = parseMix(args.length > 4 ? args[4] : DEFAULT_MIX);
+
+        Path payload = Files.createTempFile("load", ".bin");
+        try (RandomAccessFile file = new RandomAccessFile(payload.toFile(), "rw")) {
+            byte[] block = new byte[(int) Math.min(FILE_SIZE, 1024 * 1024)];
+            new Random(42).nextBytes(block);
+            for (long written = 0; written < FILE_SIZE; written += block.length) {
+                file.write(block, 0, (int) Math.min(block.length, FILE_SIZE - written));
+            }
+        }
+
+        System.out.format("%d clients, %d s (+%d s warmup), mix %s, %d byte files%n", clients, seconds, WARMUP_SECONDS, mix, FILE_SIZE);
+        LoadGenerator generator = new LoadGenerator(server, payload, mix, seconds);
+        Map<String, Stats> total = new LinkedHashMap<>();
+        for (String command : COMMANDS) {
+            total.put(command, new Stats());
+        }
+        int failed = 0;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Map<String, Stats>>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                int id = i;
+                results.add(executor.submit(() -> generator.runClient(id)));
+            }
+            for (Future<Map<String, Stats>> result : results) {
+                try {
+                    for (Map.Entry<String, Stats> entry : result.get().entrySet()) {
+                        total.get(entry.getKey()).addAll(entry.getValue());
+                    }
+                } catch (Exception e) {
+                    failed++;
+                    System.err.println("Client failed: " + e.getCause());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(payload);
+        }
+
+        System.out.format("%-10s %10s %10s %10s %10s %10s%n", "command", "ops", "ops/s", "p50 ms", "p99 ms", "MB/s");
+        Stats all = new Stats();
+        for (Map.Entry<String, Stats> entry : total.entrySet()) {
+            Stats stats = entry.getValue();
+            if (stats.count > 0) {
+                print(entry.getKey(), stats, seconds);
+                all.addAll(stats);
+            }
+        }
+        print("total", all, seconds);
+        if (failed > 0) {
+            System.out.println(failed + " of " + clients + " clients failed");
+        }
+    }
+
+    private static void print(String name, Stats stats, int seconds) {
+        System.out.format("%-10s %10d %10.1f %10.3f %10.3f %10.1f%n", name, stats.count, (double) stats.count / seconds,
+                stats.percentile(0.50), stats.percentile(0.99), stats.bytes / 1e6 / seconds);
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of ClientHandler.command, which splits every command line received by the server.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+
+    @Param({"ls", "upload quarterly-report-2024.csv", "mdownload a.txt b.txt c.txt d.txt e.txt f.txt"})
+    public String input;
+
+    private MethodHandle command;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Object config = ServerClasses.create("ServerConfig", new Class<?>[0]);
+        Object handler = ServerClasses.create("ClientHandler",
+                new Class<?>[] {InetSocketAddress.class, int.class, DataOutputStream.class, ServerClasses.type("ServerConfig")},
+                new InetSocketAddress("127.0.0.1", 5000), 0, new DataOutputStream(OutputStream.nullOutputStream()), config);
+        command = ServerClasses.method("ClientHandler", "command", String.class)
+                .bindTo(handler)
+                .asType(MethodType.methodType(String[].class, String.class));
+    }
+
+    @Benchmark
+    public String[] command() throws Throwable {
+        return (String[]) command.invokeExact(input);
+    }
+}
@@ -0,0 +1,106 @@
+package benchmarks;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The loops that read a whole file without touching the network: the CRC32C pass of chunked transfers,
+ * the SHA-256 pass of deduplicated uploads and the block compression of compressed transfers.
+ * The file is 16 MB of log-like text, so the compression numbers are those of a compressible upload;
+ * divide 16 MB by the time per operation for MB/s.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyLoopBenchmark {
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    private Path path;
+    private FileChannel file;
+    private ByteBuffer buffer;
+    private DataOutputStream sink;
+    private MethodHandle checksum;
+    private MethodHandle hash;
+    private MethodHandle compressedSend;
+
+    @Setup
+    public void setUp() throws IOException, ReflectiveOperationException {
+        path = Files.createTempFile("copy-loop", ".log");
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; text.length() < FILE_SIZE; line++) {
+            text.append("2024-10-11 12:").append(line % 60).append(" INFO client#").append(line % 97)
+                .append(" upload report-").append(line % 1000).append(".csv ").append(line * 7919L % 100000).append('\n');
+        }
+        Files.writeString(path, text.substring(0, FILE_SIZE));
+        file = FileChannel.open(path, StandardOpenOption.READ);
+        buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        sink = new DataOutputStream(OutputStream.nullOutputStream());
+
+        checksum = ServerClasses.method("FileTransfer", "checksum", FileChannel.class, long.class, long.class, ByteBuffer.class, Checksum.class);
+        hash = ServerClasses.method("ChunkStore", "hash", FileChannel.class, long.class, long.class, ByteBuffer.class);
+        compressedSend = ServerClasses.method("CompressedTransfer", "send", FileChannel.class, long.class, DataOutputStream.class, int.class)
+                .asType(MethodType.methodType(long.class, FileChannel.class, long.class, DataOutputStream.class, int.class));
+    }
+
+    /**
+     * Deflater level of the compressed transfer, only varied for the compression benchmark.
+     */
+
+    @State(Scope.Thread)
+    public static class Compression {
+        @Param({"1", "6"})
+        public int level;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        file.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public long crc32c() throws Throwable {
+        CRC32C crc = new CRC32C();
+        checksum.invoke(file, 0L, (long) FILE_SIZE, buffer, crc);
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public byte[] sha256() throws Throwable {
+        return (byte[]) hash.invoke(file, 0L, (long) FILE_SIZE, buffer);
+    }
+
+    @Benchmark
+    public long compress(Compression compression) throws Throwable {
+        return (long) compressedSend.invokeExact(file, (long) FILE_SIZE, sink, compression.level);
+    }
+}
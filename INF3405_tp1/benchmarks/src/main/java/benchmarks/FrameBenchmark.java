@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the framed protocol: a command frame written by the client,
+ * and a response frame read back and split into its messages.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    // Size of the response payload, from a short acknowledgement to a full directory listing
+    @Param({"32", "4096", "60000"})
+    public int responseSize;
+
+    private static final byte COMMAND = 1;
+    private static final byte RESPONSE = 2;
+
+    private MethodHandle write;
+    private MethodHandle read;
+    private MethodHandle messages;
+    private byte[] command;
+    private ByteArrayOutputStream buffer;
+    private DataOutputStream out;
+    private byte[] encodedResponse;
+
+    @Setup
+    public void setUp() throws Throwable {
+        write = ServerClasses.method("Frame", "write", DataOutputStream.class, byte.class, int.class, byte[].class);
+        read = ServerClasses.method("Frame", "read", DataInputStream.class)
+                .asType(MethodType.methodType(Object.class, DataInputStream.class));
+        messages = ServerClasses.method("Frame", "messages")
+                .asType(MethodType.methodType(List.class, Object.class));
+        command = "download quarterly-report-2024.csv".getBytes(StandardCharsets.UTF_8);
+        buffer = new ByteArrayOutputStream(64 * 1024);
+        out = new DataOutputStream(buffer);
+
+        // A response of responseSize bytes made of messages of up to 4 KB, the way the server captures them
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream messagesOut = new DataOutputStream(payload);
+        while (payload.size() < responseSize) {
+            int length = Math.max(1, Math.min(4096, responseSize - payload.size() - 2));
+            messagesOut.writeUTF("x".repeat(length));
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        write.invoke(new DataOutputStream(encoded), RESPONSE, 7, payload.toByteArray());
+        encodedResponse = encoded.toByteArray();
+    }
+
+    @Benchmark
+    public int writeCommand() throws Throwable {
+        buffer.reset();
+        write.invoke(out, COMMAND, 7, command);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public List<?> readResponse() throws Throwable {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encodedResponse));
+        Object frame = (Object) read.invokeExact(in);
+        return (List<?>) messages.invokeExact(frame);
+    }
+}
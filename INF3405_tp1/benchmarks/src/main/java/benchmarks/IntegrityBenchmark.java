@@ -0,0 +1,136 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of the "verify" trailers. "receive" is the upload path of the server over loopback, with the
+ * checksum computed on the buffer the data passes through; "pageCachePass" is the separate pass a
+ * zero-copy sender makes to compute its trailer. Compare each mode with "off" at the same fileSize.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IntegrityBenchmark {
+
+    @Param({"268435456"})
+    public long fileSize;
+
+    @Param({"off", "crc32c", "sha256"})
+    public String verify;
+
+    private Path path;
+    private FileChannel file;
+    private ServerSocketChannel listener;
+    private Socket uploadSocket;
+    private ByteBuffer buffer;
+    private MethodHandle receive;
+    private MethodHandle newIntegrity;
+    private MethodHandle checksum;
+    private Object mode;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        path = Files.createTempFile("integrity", ".bin");
+        try (RandomAccessFile out = new RandomAccessFile(path.toFile(), "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            new Random(42).nextBytes(block);
+            for (long written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        uploadSocket = SocketChannel.open(listener.getLocalAddress()).socket();
+        SocketChannel feeder = listener.accept();
+        Thread thread = new Thread(() -> feed(feeder), "upload-source");
+        thread.setDaemon(true);
+        thread.start();
+
+        receive = ServerClasses.method("FileTransfer", "receive", FileChannel.class, long.class, long.class, Socket.class,
+                InputStream.class, ByteBuffer.class, Checksum.class);
+        checksum = ServerClasses.method("FileTransfer", "checksum", FileChannel.class, long.class, long.class,
+                ByteBuffer.class, Checksum.class);
+        mode = ServerClasses.method("Integrity", "parse", String.class).invoke(verify);
+        newIntegrity = ServerClasses.constructor("Integrity", ServerClasses.type("Integrity$Mode"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        uploadSocket.close();
+        listener.close();
+        file.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public long receive() throws Throwable {
+        Checksum integrity = integrity();
+        receive.invoke(file, 0L, fileSize, uploadSocket, uploadSocket.getInputStream(), buffer, integrity);
+        return integrity != null ? integrity.getValue() : 0;
+    }
+
+    @Benchmark
+    public long pageCachePass() throws Throwable {
+        Checksum integrity = integrity();
+        if (integrity == null) {
+            return 0; // Nothing to compute, the baseline of the pass
+        }
+        checksum.invoke(file, 0L, fileSize, buffer, integrity);
+        return integrity.getValue();
+    }
+
+    private Checksum integrity() throws Throwable {
+        return verify.equals("off") ? null : (Checksum) newIntegrity.invoke(mode);
+    }
+
+    /**
+     * Sends data as fast as the benchmark reads it, like a client uploading an endless file.
+     */
+
+    private static void feed(SocketChannel channel) {
+        ByteBuffer source = ByteBuffer.allocateDirect(1024 * 1024);
+        try (channel) {
+            while (true) {
+                channel.write(source.clear());
+            }
+        } catch (IOException e) {
+            // The benchmark closed the connection
+        }
+    }
+}
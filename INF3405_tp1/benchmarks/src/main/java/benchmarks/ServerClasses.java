@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the server classes from the benchmarks. The server lives in the unnamed package,
+ * which JMH does not allow for benchmark classes and which named packages cannot import,
+ * so its members are reached through method handles instead.
+ */
+
+final class ServerClasses {
+
+    private ServerClasses() {
+    }
+
+    /**
+     * Loads a server class.
+     *
+     * @param name The simple name of the class.
+     * @return The class.
+     */
+
+    static Class<?> type(String name) throws ClassNotFoundException {
+        return Class.forName(name, true, ServerClasses.class.getClassLoader());
+    }
+
+    /**
+     * Returns a handle on a method, public or not.
+     *
+     * @param className      The class declaring the method.
+     * @param methodName     The name of the method.
+     * @param parameterTypes The parameter types of the method.
+     * @return The method handle.
+     */
+
+    static MethodHandle method(String className, String methodName, Class<?>... parameterTypes) throws ReflectiveOperationException {
+        Method method = type(className).getDeclaredMethod(methodName, parameterTypes);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    /**
+     * Returns a handle on a constructor, public or not.
+     *
+     * @param className      The class to instantiate.
+     * @param parameterTypes The parameter types of the constructor.
+     * @return The constructor handle.
+     */
+
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) throws ReflectiveOperationException {
+        Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+        constructor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(constructor);
+    }
+
+    /**
+     * Creates an instance of a server class through a constructor, public or not.
+     *
+     * @param className      The class to instantiate.
+     * @param parameterTypes The parameter types of the constructor.
+     * @param arguments      The arguments of the constructor.
+     * @return The new instance.
+     */
+
+    static Object create(String className, Class<?>[] parameterTypes, Object... arguments) throws ReflectiveOperationException {
+        Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+        constructor.setAccessible(true);
+        return constructor.newInstance(arguments);
+    }
+}
@@ -0,0 +1,155 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the download and upload paths of FileTransfer over loopback, with a multi-GB file.
+ * "channel" sockets take the transferTo / direct buffer path of the server, "stream" sockets the
+ * buffered copy used when a socket has no channel. One operation moves the whole file, so the
+ * throughput is fileSize divided by the time per operation (e.g. -p fileSize=4294967296 for 4 GB).
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Param({"2147483648"})
+    public long fileSize;
+
+    @Param({"channel", "stream"})
+    public String socketType;
+
+    private Path path;
+    private FileChannel file;
+    private ServerSocketChannel listener;
+    private Socket downloadSocket;
+    private Socket uploadSocket;
+    private ByteBuffer buffer;
+    private MethodHandle send;
+    private MethodHandle receive;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        path = Files.createTempFile("transfer", ".bin");
+        try (RandomAccessFile out = new RandomAccessFile(path.toFile(), "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            new Random(42).nextBytes(block);
+            for (long written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        downloadSocket = connect();
+        startDaemon("download-sink", drain(listener.accept()));
+        uploadSocket = connect();
+        startDaemon("upload-source", feed(listener.accept()));
+
+        send = ServerClasses.method("FileTransfer", "send", FileChannel.class, long.class, long.class, Socket.class, OutputStream.class);
+        receive = ServerClasses.method("FileTransfer", "receive", FileChannel.class, long.class, long.class, Socket.class,
+                InputStream.class, ByteBuffer.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        downloadSocket.close();
+        uploadSocket.close();
+        listener.close();
+        file.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public void download() throws Throwable {
+        send.invoke(file, 0L, fileSize, downloadSocket, downloadSocket.getOutputStream());
+    }
+
+    @Benchmark
+    public void upload() throws Throwable {
+        receive.invoke(file, 0L, fileSize, uploadSocket, uploadSocket.getInputStream(), buffer);
+    }
+
+    private Socket connect() throws IOException {
+        InetSocketAddress address = (InetSocketAddress) listener.getLocalAddress();
+        if (socketType.equals("channel")) {
+            return SocketChannel.open(address).socket();
+        }
+        return new Socket(address.getAddress(), address.getPort()); // No channel, FileTransfer copies through the streams
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads and discards everything the benchmark sends, like a client saving to /dev/null.
+     */
+
+    private static Runnable drain(SocketChannel channel) {
+        return () -> {
+            ByteBuffer sink = ByteBuffer.allocateDirect(1024 * 1024);
+            try (channel) {
+                while (channel.read(sink.clear()) >= 0) {
+                    // Discarded
+                }
+            } catch (IOException e) {
+                // The benchmark closed the connection
+            }
+        };
+    }
+
+    /**
+     * Sends data as fast as the benchmark reads it, like a client uploading an endless file.
+     */
+
+    private static Runnable feed(SocketChannel channel) {
+        return () -> {
+            ByteBuffer source = ByteBuffer.allocateDirect(1024 * 1024);
+            try (channel) {
+                while (true) {
+                    channel.write(source.clear());
+                }
+            } catch (IOException e) {
+                // The benchmark closed the connection
+            }
+        };
+    }
+}
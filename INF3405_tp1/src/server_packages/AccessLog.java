@@ -0,0 +1,314 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log shared by every session. Recording a command only claims a slot of a
+ * preallocated ring buffer and fills it in; a single writer thread formats the events and writes
+ * them in batches, to the console or to a file rotated past a maximum size. When the writer falls
+ * a whole buffer behind, new events are dropped and counted rather than slowing down the sessions.
+ *
+ * Each line keeps the console format of the server followed by the outcome, the bytes transferred
+ * and the duration: [address:port - date@time] : command | outcome bytes ms
+ */
+
+public class AccessLog implements Closeable {
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd@HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static AccessLog shared;
+
+    private final Event[] events;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed; // Sequence of the next event the writer reads
+    private final LongAdder dropped = new LongAdder();
+    private final Path path; // Null for the console
+    private final long maxBytes;
+    private final int maxFiles;
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    private Writer writer;
+    private long written;
+    private long formattedSecond = -1;
+    private String formattedDate;
+
+    /**
+     * A slot of the ring buffer, reused for every event that lands on it.
+     * The sequence is written last, publishing the other fields to the writer thread.
+     */
+
+    private static class Event {
+        volatile long sequence = -1;
+        long time;
+        String client;
+        String command;
+        long bytes;
+        long duration;
+        String outcome;
+    }
+
+    /**
+     * Constructor for AccessLog. Starts the writer thread.
+     *
+     * @param path     The log file, or null to write to the console.
+     * @param capacity The number of events the ring buffer holds, rounded up to a power of two.
+     * @param maxBytes The size past which the log file is rotated.
+     * @param maxFiles The number of rotated files kept (name.1 is the most recent).
+     * @throws IOException If the log file cannot be opened.
+     */
+
+    public AccessLog(Path path, int capacity, long maxBytes, int maxFiles) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.events = new Event[size];
+        for (int i = 0; i < size; i++) {
+            events[i] = new Event();
+        }
+        this.mask = size - 1;
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        openWriter();
+
+        writerThread = new Thread(this::writeEvents, "access-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Returns the log shared by the sessions of the server, opened on first use and flushed when the JVM exits.
+     * Falls back to the console if the configured file cannot be opened.
+     *
+     * @param config The server configuration.
+     * @return The shared access log.
+     */
+
+    public static synchronized AccessLog shared(ServerConfig config) {
+        if (shared == null) {
+            Path path = config.accessLog.equals("-") ? null : Paths.get(config.accessLog);
+            try {
+                shared = new AccessLog(path, config.accessLogBuffer, config.accessLogMaxBytes, config.accessLogFiles);
+            } catch (IOException e) {
+                System.err.println("Couldn't open the access log " + path + ", logging to the console: " + e.getMessage());
+                try {
+                    shared = new AccessLog(null, config.accessLogBuffer, config.accessLogMaxBytes, config.accessLogFiles);
+                } catch (IOException impossible) {
+                    throw new IllegalStateException(impossible); // The console is always open
+                }
+            }
+            AccessLog log = shared;
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close, "access-log-flush"));
+        }
+        return shared;
+    }
+
+    /**
+     * Records a command. Never blocks: if the writer is a whole buffer behind, the event is dropped.
+     *
+     * @param client   The address and port of the client.
+     * @param command  The command line.
+     * @param bytes    The number of file bytes transferred by the command.
+     * @param duration The time taken by the command, in nanoseconds.
+     * @param outcome  "ok", "error" or the reason the command failed.
+     */
+
+    public void record(String client, String command, long bytes, long duration, String outcome) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= events.length || closed) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Event event = events[(int) sequence & mask];
+        event.time = System.currentTimeMillis();
+        event.client = client;
+        event.command = command;
+        event.bytes = bytes;
+        event.duration = duration;
+        event.outcome = outcome;
+        event.sequence = sequence;
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     *
+     * @return The number of dropped events.
+     */
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the events still in the buffer and stops the writer thread.
+     */
+
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of the writer thread: formats the published events in order, flushes once the buffer
+     * is empty and sleeps briefly while there is nothing to write.
+     */
+
+    private void writeEvents() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        boolean pending = false;
+        while (true) {
+            long next = consumed;
+            Event event = events[(int) next & mask];
+            if (event.sequence == next) {
+                format(event, line);
+                event.client = null;
+                event.command = null;
+                consumed = next + 1; // The slot can be reused from here on
+                write(line);
+                pending = true;
+                continue;
+            }
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                line.setLength(0);
+                line.append("Access log buffer full, ").append(drops - reportedDrops).append(" events dropped\n");
+                write(line);
+                reportedDrops = drops;
+                pending = true;
+            }
+            if (pending) {
+                flush();
+                pending = false;
+            }
+            if (closed && claimed.get() == next) {
+                break;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        try {
+            if (path != null && writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't close the access log: " + e.getMessage());
+        }
+    }
+
+    private void format(Event event, StringBuilder line) {
+        long second = event.time / 1000;
+        if (second != formattedSecond) { // One date per second, most events share it
+            formattedDate = DATE_FORMAT.format(Instant.ofEpochMilli(event.time));
+            formattedSecond = second;
+        }
+        line.setLength(0);
+        line.append('[').append(event.client).append(" - ").append(formattedDate).append("] : ").append(event.command)
+            .append(" | ").append(event.outcome).append(' ').append(event.bytes).append(" bytes ");
+        long micros = event.duration / 1000;
+        line.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            line.append(fraction < 10 ? "00" : "0");
+        }
+        line.append(fraction).append(" ms\n");
+    }
+
+    private void write(StringBuilder line) {
+        try {
+            if (writer == null) {
+                openWriter(); // Could not be reopened after the last rotation
+            }
+            writer.append(line);
+            written += line.length();
+            if (path != null && written >= maxBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't write the access log: " + e.getMessage());
+        }
+    }
+
+    private void flush() {
+        try {
+            if (writer != null) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't write the access log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the current file to name.1, shifting the older files and deleting the oldest, then starts a new file.
+     * If the files cannot be moved, the log keeps growing the current file and rotation is tried again once
+     * another maximum size has been written.
+     */
+
+    private void rotate() throws IOException {
+        writer.close();
+        writer = null;
+        boolean rotated = false;
+        try {
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 0) {
+                Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+            rotated = true;
+        } finally {
+            openWriter();
+            if (!rotated) {
+                written = 0;
+            }
+        }
+    }
+
+    private Path rotated(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    private void openWriter() throws IOException {
+        if (path == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8),
+                    WRITE_BUFFER_SIZE); // Straight to the file descriptor, not through the System.out lock
+            return;
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+        written = Files.size(path);
+    }
+}
@@ -0,0 +1,709 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a directory tree as a single archive, used by "download" on a directory. The server walks the
+ * tree and writes each file into the archive as it goes; the client extracts each entry as it arrives,
+ * so the whole tree moves in one sequential transfer, with no intermediate file on either side and a
+ * memory use that does not depend on the size of the tree.
+ *
+ * The archive is a tar (ustar, with pax headers for long names and files over 8 GB), a gzipped tar or a
+ * zip. On the wire it is cut into blocks, each preceded by its length, and ended by an empty block, since
+ * a zip reader stops before the end of the archive and the client must know where the data ends.
+ * In "verify" mode the empty block is followed by the trailer of the bytes of the archive.
+ *
+ * Only regular files and directories are archived; links and special files are skipped and reported.
+ */
+
+public class Archive {
+    public enum Format { TAR, TGZ, ZIP }
+
+    // Bytes of archive per block on the wire
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final int TAR_RECORD = 512;
+    private static final long MAX_USTAR_SIZE = 077777777777L; // 11 octal digits
+    private static final int MAX_USTAR_NAME = 100;
+
+    /**
+     * What an archive command did, reported to the user once the archive is complete.
+     */
+
+    public static class Report {
+        public long files;
+        public long directories;
+        public long bytes; // Bytes of file contents
+        public final List<String> errors = new ArrayList<>();
+    }
+
+    /**
+     * Reads a format name.
+     *
+     * @param name "tar", "tgz" or "zip".
+     * @return The format.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+
+    public static Format parse(String name) {
+        try {
+            return Format.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid archive format: " + name + " (expected tar, tgz or zip)");
+        }
+    }
+
+    /**
+     * Walks a tree and sends it as an archive. Entries are named from the root itself ("photos/2024/a.jpg"
+     * for the tree "photos"). A file that cannot be read is skipped and reported without ending the archive.
+     *
+     * @param root      The directory (or file) to archive.
+     * @param format    The archive format.
+     * @param level     The Deflater level of tgz and zip, from 1 to 9.
+     * @param out       The destination stream.
+     * @param bandwidth The bucket charged for every block sent, or null for no limit.
+     * @param integrity The checksum of the trailer sent after the archive, or null for none.
+     * @return The entries archived and the failures.
+     * @throws IOException If an I/O error occurs on the stream.
+     */
+
+    public static Report write(Path root, Format format, int level, DataOutputStream out, Bandwidth bandwidth,
+            Integrity integrity) throws IOException {
+        Report report = new Report();
+        BlockOutputStream blocks = new BlockOutputStream(out, bandwidth, integrity);
+        Path base = root.getParent() != null ? root.getParent() : root;
+        byte[] buffer = new byte[FileTransfer.COPY_BUFFER_SIZE];
+
+        EntryWriter writer;
+        if (format == Format.ZIP) {
+            ZipOutputStream zip = new ZipOutputStream(blocks, StandardCharsets.UTF_8);
+            zip.setLevel(level);
+            writer = new ZipWriter(zip, buffer);
+        } else if (format == Format.TGZ) {
+            writer = new TarWriter(new GZIPOutputStream(blocks, BLOCK_SIZE) {
+                { def.setLevel(level); }
+            }, buffer);
+        } else {
+            writer = new TarWriter(blocks, buffer);
+        }
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                writer.directory(entryName(base, directory) + "/", attributes.lastModifiedTime());
+                report.directories++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (!attributes.isRegularFile()) {
+                    report.errors.add(base.relativize(file) + ": not a regular file, skipped");
+                    return FileVisitResult.CONTINUE;
+                }
+                FileChannel channel;
+                try {
+                    channel = FileChannel.open(file, StandardOpenOption.READ);
+                } catch (IOException e) {
+                    report.errors.add(base.relativize(file) + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+                try (channel) {
+                    long size = channel.size();
+                    long copied = writer.file(entryName(base, file), size, attributes.lastModifiedTime(), channel);
+                    if (copied != size) {
+                        report.errors.add(base.relativize(file) + ": changed while it was archived");
+                    }
+                    report.files++;
+                    report.bytes += size;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                report.errors.add(base.relativize(file) + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        writer.finish();
+        blocks.close(); // Sends the end of the archive, the socket stays open
+        return report;
+    }
+
+    /**
+     * Receives an archive and extracts it into a directory, entry by entry. Entries whose name would
+     * leave the directory are skipped and reported.
+     *
+     * @param in          The source stream.
+     * @param format      The archive format.
+     * @param destination The directory receiving the entries.
+     * @param integrity   The checksum of the trailer following the archive, or null for none.
+     * @return The entries extracted and the failures, including a mismatch of the trailer.
+     * @throws IOException If an I/O error occurs or the archive is malformed.
+     */
+
+    public static Report extract(DataInputStream in, Format format, Path destination, Integrity integrity) throws IOException {
+        Report report = new Report();
+        BlockInputStream blocks = new BlockInputStream(in, integrity);
+        Path base = destination.toAbsolutePath().normalize();
+        byte[] buffer = new byte[FileTransfer.COPY_BUFFER_SIZE];
+
+        if (format == Format.ZIP) {
+            ZipInputStream zip = new ZipInputStream(blocks, StandardCharsets.UTF_8);
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                Path target = target(base, entry.getName(), report);
+                if (target != null) {
+                    save(target, entry.isDirectory(), -1, entry.getLastModifiedTime(), zip, buffer, report);
+                }
+            }
+        } else {
+            InputStream tar = format == Format.TGZ ? new GZIPInputStream(blocks, BLOCK_SIZE) : blocks;
+            readTar(tar, base, buffer, report);
+        }
+
+        blocks.drain(); // The rest of the archive (zip directory, tar padding) carries no entry
+        if (integrity != null) {
+            String mismatch = integrity.verify(in);
+            if (mismatch != null) {
+                report.errors.add("Archive rejected, the extracted files may be corrupt: " + mismatch);
+            }
+        }
+        return report;
+    }
+
+    private static String entryName(Path base, Path path) {
+        StringBuilder name = new StringBuilder();
+        for (Path part : base.relativize(path)) {
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns where an entry is extracted, or null if its name leaves the destination.
+     */
+
+    private static Path target(Path base, String name, Report report) {
+        Path target;
+        try {
+            target = base.resolve(name).normalize();
+        } catch (InvalidPathException e) {
+            report.errors.add(name + ": invalid name on this system, skipped");
+            return null;
+        }
+        if (!target.startsWith(base) || target.equals(base) && !name.endsWith("/")) {
+            report.errors.add(name + ": outside of the destination, skipped");
+            return null;
+        }
+        return target;
+    }
+
+    /**
+     * Writes an entry read from the archive.
+     *
+     * @param size The size of a file, or -1 to read the stream to its end.
+     */
+
+    private static void save(Path target, boolean directory, long size, FileTime modified, InputStream in, byte[] buffer,
+            Report report) throws IOException {
+        if (directory) {
+            Files.createDirectories(target);
+            report.directories++;
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        long written = 0;
+        try (OutputStream file = Files.newOutputStream(target)) {
+            while (size < 0 || written < size) {
+                int count = in.read(buffer, 0, size < 0 ? buffer.length : (int) Math.min(buffer.length, size - written));
+                if (count < 0) {
+                    if (size < 0) {
+                        break;
+                    }
+                    throw new EOFException("Archive ends in the middle of " + target.getFileName());
+                }
+                file.write(buffer, 0, count);
+                written += count;
+            }
+        }
+        if (modified != null) {
+            Files.setLastModifiedTime(target, modified);
+        }
+        report.files++;
+        report.bytes += written;
+    }
+
+    /**
+     * Extracts the entries of a tar stream, following pax and GNU long names.
+     */
+
+    private static void readTar(InputStream tar, Path base, byte[] buffer, Report report) throws IOException {
+        byte[] header = new byte[TAR_RECORD];
+        String longName = null;
+        long longSize = -1;
+        while (readRecord(tar, header)) {
+            if (isZero(header)) {
+                return; // End of the archive
+            }
+            if (checksum(header) != octal(header, 148, 8)) {
+                throw new IOException("Malformed archive: bad header checksum");
+            }
+            char type = (char) header[156];
+            long size = longSize >= 0 ? longSize : octal(header, 124, 12);
+
+            if (type == 'x' || type == 'L') {
+                String value = new String(readData(tar, size), StandardCharsets.UTF_8);
+                if (type == 'L') {
+                    longName = value.replace("\0", "");
+                } else {
+                    for (String record : value.split("\n")) {
+                        String field = record.substring(record.indexOf(' ') + 1);
+                        if (field.startsWith("path=")) {
+                            longName = field.substring(5);
+                        } else if (field.startsWith("size=")) {
+                            longSize = Long.parseLong(field.substring(5));
+                        }
+                    }
+                }
+                continue;
+            }
+
+            String name = longName != null ? longName : ustarName(header);
+            longName = null;
+            longSize = -1;
+            FileTime modified = FileTime.from(octal(header, 136, 12), TimeUnit.SECONDS);
+            Path target = type == '0' || type == '\0' || type == '5' ? target(base, name, report) : null;
+            if (target != null) {
+                save(target, type == '5', type == '5' ? 0 : size, modified, tar, buffer, report);
+                skip(tar, padding(type == '5' ? 0 : size));
+            } else {
+                if (type != '0' && type != '\0' && type != '5') {
+                    report.errors.add(name + ": unsupported entry type '" + type + "', skipped");
+                }
+                skip(tar, size + padding(size));
+            }
+        }
+    }
+
+    private static boolean readRecord(InputStream in, byte[] record) throws IOException {
+        int read = in.readNBytes(record, 0, record.length);
+        if (read == 0) {
+            return false; // Archive without its end records
+        }
+        if (read < record.length) {
+            throw new EOFException("Malformed archive: truncated header");
+        }
+        return true;
+    }
+
+    private static byte[] readData(InputStream in, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - TAR_RECORD) {
+            throw new IOException("Malformed archive: extended header too long");
+        }
+        byte[] data = in.readNBytes((int) size);
+        if (data.length < size) {
+            throw new EOFException("Malformed archive: truncated header");
+        }
+        skip(in, padding(size));
+        return data;
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        in.skipNBytes(count);
+    }
+
+    private static long padding(long size) {
+        return (TAR_RECORD - size % TAR_RECORD) % TAR_RECORD;
+    }
+
+    private static boolean isZero(byte[] record) {
+        for (byte b : record) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ustarName(byte[] header) {
+        String name = field(header, 0, 100);
+        String prefix = new String(header, 257, 6, StandardCharsets.US_ASCII).startsWith("ustar") ? field(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long octal(byte[] header, int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length && header[i] != 0 && header[i] != ' '; i++) {
+            if (header[i] < '0' || header[i] > '7') {
+                throw new IOException("Malformed archive: bad number in header");
+            }
+            value = value * 8 + (header[i] - '0');
+        }
+        return value;
+    }
+
+    private static int checksum(byte[] header) {
+        int sum = 0;
+        for (int i = 0; i < header.length; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff; // The checksum field counts as spaces
+        }
+        return sum;
+    }
+
+    /**
+     * Writes the entries of one archive format.
+     */
+
+    private interface EntryWriter {
+        void directory(String name, FileTime modified) throws IOException;
+
+        /**
+         * Writes a file of the announced size and returns the number of bytes read from it, which
+         * differs from the size if the file changed meanwhile.
+         */
+
+        long file(String name, long size, FileTime modified, FileChannel channel) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    /**
+     * Writes ustar entries, preceded by a pax header when the name or the size does not fit.
+     */
+
+    private static class TarWriter implements EntryWriter {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private final byte[] header = new byte[TAR_RECORD];
+
+        TarWriter(OutputStream out, byte[] buffer) {
+            this.out = out;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void directory(String name, FileTime modified) throws IOException {
+            header(name, 0, modified, '5', 0755);
+        }
+
+        @Override
+        public long file(String name, long size, FileTime modified, FileChannel channel) throws IOException {
+            header(name, size, modified, '0', 0644);
+            ByteBuffer data = ByteBuffer.wrap(buffer);
+            long position = 0;
+            while (position < size) {
+                data.clear().limit((int) Math.min(buffer.length, size - position));
+                int count = channel.read(data, position);
+                if (count < 0) {
+                    break; // Truncated meanwhile: padded below, the header already holds the size
+                }
+                out.write(buffer, 0, count);
+                position += count;
+            }
+            long read = position;
+            Arrays.fill(buffer, (byte) 0);
+            for (; position < size; position += Math.min(buffer.length, size - position)) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - position));
+            }
+            out.write(buffer, 0, (int) padding(size));
+            return read;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            Arrays.fill(header, (byte) 0);
+            out.write(header);
+            out.write(header);
+            out.close();
+        }
+
+        private void header(String name, long size, FileTime modified, char type, int mode) throws IOException {
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            boolean longName = encoded.length > MAX_USTAR_NAME || encoded.length != name.length();
+            if (longName || size > MAX_USTAR_SIZE) {
+                StringBuilder records = new StringBuilder();
+                if (longName) {
+                    records.append(paxRecord("path", name));
+                }
+                if (size > MAX_USTAR_SIZE) {
+                    records.append(paxRecord("size", Long.toString(size)));
+                }
+                byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+                record("PaxHeader", pax.length, modified, 'x', 0644);
+                out.write(pax);
+                out.write(new byte[(int) padding(pax.length)]);
+            }
+            record(longName ? ascii(name) : name, Math.min(size, MAX_USTAR_SIZE), modified, type, mode);
+        }
+
+        private void record(String name, long size, FileTime modified, char type, int mode) throws IOException {
+            Arrays.fill(header, (byte) 0);
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(encoded, 0, header, 0, Math.min(encoded.length, MAX_USTAR_NAME));
+            octal(mode, 100, 8);
+            octal(0, 108, 8);
+            octal(0, 116, 8);
+            octal(size, 124, 12);
+            octal(Math.max(0, modified.to(TimeUnit.SECONDS)), 136, 12);
+            header[156] = (byte) type;
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+            octal(checksum(header), 148, 7);
+            header[155] = ' ';
+            out.write(header);
+        }
+
+        private void octal(long value, int offset, int length) {
+            String digits = Long.toOctalString(value);
+            int start = offset + length - 1 - digits.length(); // Zero padded, NUL terminated
+            Arrays.fill(header, offset, start, (byte) '0');
+            for (int i = 0; i < digits.length(); i++) {
+                header[start + i] = (byte) digits.charAt(i);
+            }
+            header[offset + length - 1] = 0;
+        }
+
+        /**
+         * Returns a pax record, "length key=value\n", whose length counts its own digits.
+         */
+
+        private static String paxRecord(String key, String value) {
+            int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3; // Space, '=' and newline
+            int total = length + Integer.toString(length).length();
+            if (Integer.toString(total).length() != Integer.toString(length).length()) {
+                total++;
+            }
+            return total + " " + key + "=" + value + "\n";
+        }
+
+        /**
+         * Returns the ASCII fallback of a name stored in a pax header, for readers that ignore pax.
+         */
+
+        private static String ascii(String name) {
+            String fallback = name.replaceAll("[^\\x20-\\x7e]", "_");
+            return fallback.length() > MAX_USTAR_NAME ? fallback.substring(fallback.length() - MAX_USTAR_NAME) : fallback;
+        }
+    }
+
+    /**
+     * Writes zip entries, zip64 being used by ZipOutputStream for the files that need it.
+     */
+
+    private static class ZipWriter implements EntryWriter {
+        private final ZipOutputStream zip;
+        private final byte[] buffer;
+
+        ZipWriter(ZipOutputStream zip, byte[] buffer) {
+            this.zip = zip;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void directory(String name, FileTime modified) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setLastModifiedTime(modified);
+            zip.putNextEntry(entry);
+            zip.closeEntry();
+        }
+
+        @Override
+        public long file(String name, long size, FileTime modified, FileChannel channel) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setLastModifiedTime(modified);
+            zip.putNextEntry(entry);
+            ByteBuffer data = ByteBuffer.wrap(buffer);
+            long position = 0;
+            while (position < size) {
+                data.clear().limit((int) Math.min(buffer.length, size - position));
+                int count = channel.read(data, position);
+                if (count < 0) {
+                    break; // Truncated meanwhile: the entry holds what was read
+                }
+                zip.write(buffer, 0, count);
+                position += count;
+            }
+            zip.closeEntry();
+            return position;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * Cuts the archive into blocks preceded by their length, and ends it with an empty block.
+     * Closing it does not close the underlying stream.
+     */
+
+    private static class BlockOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final Bandwidth bandwidth;
+        private final Integrity integrity;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int length;
+        private boolean closed;
+
+        BlockOutputStream(DataOutputStream out, Bandwidth bandwidth, Integrity integrity) {
+            this.out = out;
+            this.bandwidth = bandwidth;
+            this.integrity = integrity;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == block.length) {
+                send();
+            }
+            block[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == block.length) {
+                    send();
+                }
+                int count = Math.min(len, block.length - length);
+                System.arraycopy(b, off, block, length, count);
+                length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (length > 0) {
+                send();
+            }
+            out.writeInt(0);
+            if (integrity != null) {
+                integrity.writeTrailer(out);
+            }
+            out.flush();
+        }
+
+        private void send() throws IOException {
+            out.writeInt(length);
+            out.write(block, 0, length);
+            if (integrity != null) {
+                integrity.update(block, 0, length);
+            }
+            if (bandwidth != null) {
+                bandwidth.acquire(Integer.BYTES + length);
+            }
+            length = 0;
+        }
+    }
+
+    /**
+     * Reads the blocks of an archive as one stream, which ends at the empty block.
+     */
+
+    private static class BlockInputStream extends InputStream { // Not a FilterInputStream, whose skip bypasses the blocks
+        private final DataInputStream in;
+        private final Integrity integrity;
+        private int remaining; // Bytes left in the current block
+        private boolean ended;
+
+        BlockInputStream(DataInputStream in, Integrity integrity) {
+            this.in = in;
+            this.integrity = integrity;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (remaining == 0) {
+                if (ended) {
+                    return -1;
+                }
+                remaining = in.readInt();
+                if (remaining < 0 || remaining > BLOCK_SIZE) {
+                    throw new IOException("Malformed archive: bad block length " + remaining);
+                }
+                ended = remaining == 0;
+            }
+            int count = in.read(b, off, Math.min(len, remaining));
+            if (count < 0) {
+                throw new EOFException("Connection closed in the middle of the archive");
+            }
+            if (integrity != null) {
+                integrity.update(b, off, count);
+            }
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+
+        @Override
+        public void close() {
+            // The connection stays open after the archive
+        }
+
+        /**
+         * Reads and discards the archive up to its end.
+         */
+
+        void drain() throws IOException {
+            byte[] discarded = new byte[FileTransfer.COPY_BUFFER_SIZE];
+            while (read(discarded, 0, discarded.length) >= 0) {
+                // Skipped
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Thread-safe client library for the file server. Operations return a CompletableFuture and run on
+ * virtual threads over a pool of persistent text-protocol connections, so an application can start
+ * hundreds of transfers at once while paying the connection setup only once per pooled connection.
+ *
+ * The working directory belongs to the client, not to a connection: cd records the absolute directory
+ * reported by the server, and a pooled connection is moved there before its next operation. cd applies
+ * to the operations started after its future completes.
+ *
+ * A connection that breaks is dropped and replaced. Operations that can safely run twice (ls, cd,
+ * upload and download) are retried once on a new connection; mkdir and delete report the failure.
+ * An answer of the server other than the expected one completes the future with an IOException
+ * holding the message of the server.
+ */
+
+public class AsyncClient implements Closeable {
+    private static final int BUFFER_SIZE = Integer.getInteger("client.bufferSize", 1024 * 1024);
+
+    private final InetSocketAddress server;
+    private final Semaphore connections;
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile String directory; // Absolute directory set by the last cd, null for the root of the server
+    private volatile boolean closed;
+
+    /**
+     * An operation run on a pooled connection.
+     */
+
+    private interface Operation<T> {
+        T run(Connection connection) throws IOException;
+    }
+
+    /**
+     * A persistent text-protocol session with the server.
+     */
+
+    private static class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        ByteBuffer buffer; // Allocated on the first download
+        String directory; // Directory the session is in, null for the root of the server
+
+        Connection(InetSocketAddress server) throws IOException {
+            socket = SocketChannel.open(server).socket(); // Channel-backed for zero-copy transfers
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(socket.getOutputStream());
+            String hello = in.readUTF();
+            if (!hello.startsWith("Hello")) {
+                socket.close();
+                throw new IOException(hello); // "Server busy..."
+            }
+        }
+
+        /**
+         * Sends a command and reads its messages until "Process done".
+         */
+
+        List<String> run(String command) throws IOException {
+            out.writeUTF(command);
+            return responses();
+        }
+
+        List<String> responses() throws IOException {
+            List<String> messages = new ArrayList<>();
+            String message;
+            while (!(message = in.readUTF()).equals("Process done")) {
+                messages.add(message);
+            }
+            return messages;
+        }
+
+        void close() {
+            try {
+                out.writeUTF("exit");
+            } catch (IOException e) {
+                // The connection is already gone
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Constructor for AsyncClient. Connections are opened on demand, up to the given number.
+     *
+     * @param address        The IP address or host name of the server.
+     * @param port           The port of the server.
+     * @param maxConnections The largest number of connections opened at the same time.
+     */
+
+    public AsyncClient(String address, int port, int maxConnections) {
+        this.server = new InetSocketAddress(address, port);
+        this.connections = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Lists the working directory.
+     *
+     * @return A future completed with one line per entry (name, size and modification date).
+     */
+
+    public CompletableFuture<List<String>> ls() {
+        return submit(true, connection -> {
+            List<String> entries = new ArrayList<>();
+            List<String> messages = connection.run("ls all");
+            if (messages.isEmpty() || !messages.get(0).startsWith("Files in ")) {
+                throw failure(messages);
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                String[] lines = messages.get(i).split("\n");
+                for (int j = i == 0 ? 1 : 0; j < lines.length; j++) { // The first line is the header
+                    entries.add(lines[j]);
+                }
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * Changes the working directory of the client.
+     *
+     * @param name The directory, relative to the working directory, ".." or absolute.
+     * @return A future completed with the new absolute directory.
+     */
+
+    public CompletableFuture<String> cd(String name) {
+        return submit(true, connection -> {
+            String changed = expect(connection.run("cd " + name), "Current directory changed to: ");
+            String absolute = changed.substring("Current directory changed to: ".length());
+            connection.directory = absolute;
+            directory = absolute;
+            return absolute;
+        });
+    }
+
+    /**
+     * Creates a directory in the working directory.
+     *
+     * @param name The name of the directory.
+     * @return A future completed with the message of the server.
+     */
+
+    public CompletableFuture<String> mkdir(String name) {
+        return submit(false, connection -> expect(connection.run("mkdir " + name), "Created directory: "));
+    }
+
+    /**
+     * Deletes a file or an empty directory of the working directory.
+     *
+     * @param name The name of the file or directory.
+     * @return A future completed with the message of the server.
+     */
+
+    public CompletableFuture<String> delete(String name) {
+        return submit(false, connection -> expect(connection.run("delete " + name), "Deleted: "));
+    }
+
+    /**
+     * Uploads a local file to the working directory, replacing any file of the same name.
+     *
+     * @param local The file to send.
+     * @param name  The name of the file on the server.
+     * @return A future completed with the number of bytes sent.
+     */
+
+    public CompletableFuture<Long> upload(Path local, String name) {
+        return submit(true, connection -> {
+            FileChannel source;
+            try {
+                source = FileChannel.open(local, StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new OperationFailed("Couldn't read " + local + ": " + e.getMessage());
+            }
+            try (FileChannel file = source) {
+                long size = file.size();
+                connection.out.writeUTF("upload " + name);
+                connection.out.writeLong(size);
+                FileTransfer.send(file, 0, size, connection.socket, connection.out);
+                expect(connection.responses(), name + " succesfully uploaded");
+                return size;
+            }
+        });
+    }
+
+    /**
+     * Downloads a file of the working directory.
+     *
+     * @param name  The name of the file on the server.
+     * @param local The file to write, replaced if it exists.
+     * @return A future completed with the number of bytes received.
+     */
+
+    public CompletableFuture<Long> download(String name, Path local) {
+        return submit(true, connection -> {
+            connection.out.writeUTF("download " + name);
+            String status = connection.in.readUTF();
+            if (!status.equals("Sending file...")) {
+                connection.responses(); // "Process done"
+                throw new OperationFailed(status);
+            }
+            long size = connection.in.readLong();
+            if (connection.buffer == null) {
+                connection.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            FileChannel target;
+            try {
+                target = FileTransfer.openPreallocated(local, size);
+            } catch (IOException e) {
+                FileTransfer.skip(size, connection.socket, connection.in, connection.buffer); // Keeps the session in step
+                connection.responses();
+                throw new OperationFailed("Couldn't write " + local + ": " + e.getMessage());
+            }
+            try (FileChannel file = target) {
+                FileTransfer.receive(file, 0, size, connection.socket, connection.in, connection.buffer);
+            }
+            expect(connection.responses(), name + " succesfully downloaded");
+            return size;
+        });
+    }
+
+    /**
+     * Returns the number of connections currently open and idle in the pool.
+     *
+     * @return The number of idle connections.
+     */
+
+    public int idleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Waits for the operations in progress, then ends every pooled session.
+     */
+
+    public void close() {
+        closed = true;
+        executor.close();
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Runs an operation on a pooled connection on a virtual thread.
+     *
+     * @param retry true if the operation can run again after its connection broke.
+     */
+
+    private <T> CompletableFuture<T> submit(boolean retry, Operation<T> operation) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Client closed"));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                try {
+                    return execute(operation);
+                } catch (BrokenConnection e) {
+                    if (!retry) {
+                        throw e.getCause();
+                    }
+                    return execute(operation);
+                }
+            } catch (BrokenConnection e) {
+                throw new CompletionException(e.getCause());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Borrows a connection, moves it to the working directory and runs the operation.
+     * A connection is returned to the pool unless the operation broke it.
+     */
+
+    private <T> T execute(Operation<T> operation) throws IOException, InterruptedException {
+        connections.acquire();
+        Connection connection = null;
+        boolean reusable = false;
+        try {
+            connection = idle.poll();
+            if (connection == null) {
+                connection = new Connection(server);
+            }
+            String target = directory;
+            if (target != null && !target.equals(connection.directory)) {
+                expect(connection.run("cd " + target), "Current directory changed to: ");
+                connection.directory = target;
+            }
+            T result = operation.run(connection);
+            reusable = true;
+            return result;
+        } catch (OperationFailed e) {
+            reusable = true; // The server answered, the session is still in step
+            throw e;
+        } catch (IOException e) {
+            throw new BrokenConnection(e);
+        } finally {
+            if (connection != null) {
+                if (reusable) {
+                    idle.add(connection);
+                } else {
+                    connection.close();
+                }
+            }
+            connections.release();
+        }
+    }
+
+    /**
+     * Returns the first message of a response, which must start with the given text.
+     *
+     * @throws OperationFailed If the server answered something else.
+     */
+
+    private static String expect(List<String> messages, String success) throws OperationFailed {
+        if (messages.isEmpty() || !messages.get(0).startsWith(success)) {
+            throw failure(messages);
+        }
+        return messages.get(0);
+    }
+
+    private static OperationFailed failure(List<String> messages) {
+        return new OperationFailed(messages.isEmpty() ? "No answer from the server" : String.join("\n", messages));
+    }
+
+    /**
+     * An operation that failed while its connection stayed usable, usually an error reported by the server.
+     */
+
+    private static class OperationFailed extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OperationFailed(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Wraps the I/O error that broke a connection, so the operation can be retried on another one.
+     */
+
+    private static class BrokenConnection extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BrokenConnection(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
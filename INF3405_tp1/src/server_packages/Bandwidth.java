@@ -0,0 +1,115 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of file transfers. Each session has its own bucket, chained to a
+ * bucket shared by the whole server, and pays for the bytes it moves in quanta of QUANTUM bytes.
+ *
+ * A transfer that finds the bucket empty is not refused: it reserves the bytes, which leaves the
+ * bucket in debt, and waits until the debt is paid back. Reservations are served in arrival order
+ * and no transfer holds more than one quantum ahead, so concurrent transfers take turns quantum by
+ * quantum and share the shared rate evenly, whatever the size of their files. Commands that move no
+ * file data never touch a bucket and are never delayed.
+ */
+
+public class Bandwidth {
+    // Largest amount moved between two reservations while a limit is in force
+    public static final int QUANTUM = 64 * 1024;
+
+    private static Bandwidth shared;
+
+    private final long rate; // Bytes per second, 0 for no limit
+    private final long burst;
+    private final Bandwidth parent;
+    private long tokens;
+    private long refilled;
+
+    /**
+     * Constructor for Bandwidth. The bucket starts full.
+     *
+     * @param rate   The sustained rate in bytes per second, 0 for no limit of its own.
+     * @param parent The bucket also charged for every reservation, or null.
+     */
+
+    public Bandwidth(long rate, Bandwidth parent) {
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(2L * QUANTUM, this.rate / 10); // About 100 ms of traffic
+        this.parent = parent;
+        this.tokens = burst;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Returns the bucket of a new session, chained to the bucket of the server.
+     *
+     * @param config The server configuration.
+     * @return The bucket of the session, or null if no limit is configured.
+     */
+
+    public static Bandwidth forSession(ServerConfig config) {
+        Bandwidth server = shared(config);
+        if (config.sessionBandwidth <= 0) {
+            return server;
+        }
+        return new Bandwidth(config.sessionBandwidth, server);
+    }
+
+    private static synchronized Bandwidth shared(ServerConfig config) {
+        if (shared == null && config.bandwidth > 0) {
+            shared = new Bandwidth(config.bandwidth, null);
+        }
+        return shared;
+    }
+
+    /**
+     * Charges the given number of bytes without waiting.
+     *
+     * @param bytes The number of bytes moved or about to be moved.
+     * @return The time to wait before moving more data, in nanoseconds (0 if the bucket was not in debt).
+     */
+
+    public long reserve(long bytes) {
+        long wait = take(bytes);
+        if (parent != null) {
+            wait = Math.max(wait, parent.reserve(bytes));
+        }
+        return wait;
+    }
+
+    /**
+     * Charges the given number of bytes and sleeps until the buckets are out of debt.
+     *
+     * @param bytes The number of bytes moved.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+
+    public void acquire(long bytes) throws InterruptedIOException {
+        long wait = reserve(bytes);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    private synchronized long take(long bytes) {
+        if (rate == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        double perNano = rate / 1e9;
+        long earned = (long) ((now - refilled) * perNano);
+        if (tokens + earned >= burst) {
+            tokens = burst;
+            refilled = now;
+        } else if (earned > 0) {
+            tokens += earned;
+            refilled += (long) (earned / perNano); // Keep the fraction of a token not yet earned
+        }
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens / perNano);
+    }
+}
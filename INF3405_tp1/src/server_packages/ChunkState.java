@@ -0,0 +1,274 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tracks a chunked transfer in progress so it can be resumed after a dropped connection.
+ * The data is written to "name.part" and the acknowledged chunks are recorded in "name.chunks"
+ * (a small header followed by one byte per chunk). Once every chunk is present the part file
+ * is moved over the target. Used by the server for uploads and by the client for downloads;
+ * chunks may be written concurrently from several connections.
+ */
+
+public class ChunkState implements Closeable {
+    // Default size of a chunk, each chunk is checksummed and acknowledged on its own
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES; // File size, chunk size
+
+    private final Path target;
+    private final Path partPath;
+    private final Path statePath;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final BitSet done;
+    private final FileChannel data;
+    private final FileChannel state;
+
+    private ChunkState(Path target, long size, int chunkSize, BitSet done, FileChannel data, FileChannel state) {
+        this.target = target;
+        this.partPath = partPath(target);
+        this.statePath = statePath(target);
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.done = done;
+        this.data = data;
+        this.state = state;
+    }
+
+    /**
+     * Opens the transfer state of a file, resuming the previous attempt if it was made
+     * with the same size and chunk size, or starting over otherwise or if its state is damaged.
+     *
+     * @param target    The final path of the file.
+     * @param size      The size of the file.
+     * @param chunkSize The size of a chunk.
+     * @return The transfer state.
+     * @throws IOException If the state files cannot be opened or created.
+     */
+
+    public static ChunkState open(Path target, long size, int chunkSize) throws IOException {
+        if (!isValidLayout(size, chunkSize)) {
+            throw new IOException("Invalid chunk layout: size " + size + ", chunk size " + chunkSize);
+        }
+        if (Files.exists(statePath(target)) && Files.exists(partPath(target))) {
+            ChunkState previous;
+            try {
+                previous = resume(target);
+            } catch (IOException e) {
+                previous = null; // Damaged, started over
+            }
+            if (previous != null && previous.size == size && previous.chunkSize == chunkSize) {
+                return previous;
+            }
+            if (previous != null) {
+                previous.close();
+            }
+        }
+
+        FileChannel data = FileTransfer.openPreallocated(partPath(target), size);
+        FileChannel state = FileChannel.open(statePath(target),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(size).putInt(chunkSize).flip();
+        while (header.hasRemaining()) {
+            state.write(header, header.position());
+        }
+        int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        if (chunkCount > 0) {
+            state.write(ByteBuffer.allocate(1), HEADER_SIZE + chunkCount - 1); // Zero marker for every chunk
+        }
+        return new ChunkState(target, size, chunkSize, new BitSet(chunkCount), data, state);
+    }
+
+    /**
+     * Opens the transfer state left by a previous call to open, possibly by another connection or process.
+     *
+     * @param target The final path of the file.
+     * @return The transfer state.
+     * @throws IOException If there is no transfer in progress for this file.
+     */
+
+    public static ChunkState resume(Path target) throws IOException {
+        FileChannel state = FileChannel.open(statePath(target), StandardOpenOption.WRITE, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (state.read(header, header.position()) < 0) {
+                    throw new IOException("Corrupted transfer state: " + statePath(target));
+                }
+            }
+            header.flip();
+            long size = header.getLong();
+            int chunkSize = header.getInt();
+            if (!isValidLayout(size, chunkSize)) {
+                throw new IOException("Corrupted transfer state: " + statePath(target) + " has size " + size + ", chunk size " + chunkSize);
+            }
+            int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+
+            ByteBuffer markers = ByteBuffer.allocate(chunkCount);
+            while (markers.hasRemaining()) {
+                if (state.read(markers, HEADER_SIZE + markers.position()) < 0) {
+                    break; // Markers past the end of the file were never written
+                }
+            }
+            BitSet done = new BitSet(chunkCount);
+            for (int i = 0; i < markers.position(); i++) {
+                if (markers.get(i) != 0) {
+                    done.set(i);
+                }
+            }
+            FileChannel data = FileChannel.open(partPath(target), StandardOpenOption.WRITE, StandardOpenOption.READ);
+            return new ChunkState(target, size, chunkSize, done, data, state);
+        } catch (IOException e) {
+            state.close();
+            throw e;
+        }
+    }
+
+    private static boolean isValidLayout(long size, int chunkSize) {
+        return chunkSize > 0 && size >= 0 && (size + chunkSize - 1) / chunkSize <= Integer.MAX_VALUE;
+    }
+
+    private static Path partPath(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    private static Path statePath(Path target) {
+        return target.resolveSibling(target.getFileName() + ".chunks");
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public int chunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Returns the offset of a chunk in the file.
+     *
+     * @param index The chunk index.
+     * @return The offset of its first byte.
+     */
+
+    public long offset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    /**
+     * Returns the length of a chunk, the last one may be shorter than the chunk size.
+     *
+     * @param index The chunk index.
+     * @return The number of bytes in the chunk.
+     */
+
+    public int length(int index) {
+        return (int) Math.min(chunkSize, size - offset(index));
+    }
+
+    /**
+     * Returns the channel of the part file, chunks are written to it with positional writes.
+     *
+     * @return The data channel.
+     */
+
+    public FileChannel data() {
+        return data;
+    }
+
+    /**
+     * Lists the chunks that have not been acknowledged yet.
+     *
+     * @return The indexes of the missing chunks.
+     */
+
+    public synchronized List<Integer> missing() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = done.nextClearBit(0); i < chunkCount; i = done.nextClearBit(i + 1)) {
+            missing.add(i);
+        }
+        return missing;
+    }
+
+    /**
+     * Records a chunk as written and verified.
+     *
+     * @param index The chunk index.
+     * @throws IOException If the marker cannot be written.
+     */
+
+    public synchronized void markDone(int index) throws IOException {
+        if (!done.get(index)) {
+            state.write(ByteBuffer.wrap(new byte[] {1}), HEADER_SIZE + index);
+            done.set(index);
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return done.cardinality() == chunkCount;
+    }
+
+    /**
+     * Moves the completed part file over the target and removes the transfer state, without syncing.
+     *
+     * @throws IOException If chunks are missing or the file cannot be moved.
+     */
+
+    public void commit() throws IOException {
+        commit(new Durability(Durability.Policy.NONE));
+    }
+
+    /**
+     * Moves the completed part file over the target and removes the transfer state.
+     *
+     * @param durability The policy deciding whether the part file and the rename are synced.
+     * @throws IOException If chunks are missing or the file cannot be moved.
+     */
+
+    public synchronized void commit(Durability durability) throws IOException {
+        if (!isComplete()) {
+            throw new IOException((chunkCount - done.cardinality()) + " chunks missing");
+        }
+        durability.sync(data);
+        close();
+        Files.move(partPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(statePath);
+        durability.syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Checks that a chunk index belongs to the file.
+     *
+     * @param index The chunk index.
+     * @throws IOException If the index is out of range.
+     */
+
+    public void checkIndex(int index) throws IOException {
+        if (index < 0 || index >= chunkCount) {
+            throw new IOException("Chunk " + index + " out of range, the file has " + chunkCount + " chunks");
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            state.close();
+        }
+    }
+}
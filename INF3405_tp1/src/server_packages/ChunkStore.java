@@ -0,0 +1,615 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Content-addressed store behind deduplicated uploads ("dupload"). Every stored file is kept once,
+ * named after its content id, and the uploaded paths are hard links to it, so uploading the same
+ * bytes again writes nothing. Stored files are split into fixed-size chunks identified by their
+ * SHA-256; an index maps every chunk hash to the stored files that contain it (the number of
+ * locations is the reference count of the chunk). A new upload only transfers the chunks missing
+ * from the index, the others are copied from the stored files that hold them.
+ *
+ * The content id of a file is the SHA-256 of its chunk hashes, so the server can check it without
+ * reading the whole file again. Each stored file "id" has a manifest "id.chunks" (chunk size,
+ * chunk count and the chunk hashes) from which the index is rebuilt on startup. A stored file that
+ * no uploaded path links to anymore is released by collect, which runs in the background once a
+ * shared path is replaced or deleted.
+ *
+ * The lock guards the index and the links to stored files; files are read, written and copied
+ * outside of it.
+ */
+
+public class ChunkStore {
+    // Size of the chunks hashed by the client, a smaller size finds more shared chunks
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    // Bounds accepted for the chunk size and count of an upload
+    public static final int MIN_CHUNK_SIZE = 4 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final int MAX_CHUNKS = 1024 * 1024;
+
+    // Length of a SHA-256 hash
+    public static final int HASH_SIZE = 32;
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path root;
+    private final Map<String, List<Location>> chunks = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized, which would pin virtual threads during file I/O
+
+    // Whether a background collection was requested and has not started yet
+    private final AtomicBoolean collectPending = new AtomicBoolean();
+
+    /**
+     * Where a chunk can be read: a range of a stored file.
+     */
+
+    private static class Location {
+        final String file;
+        final long offset;
+        final int length;
+
+        Location(String file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private ChunkStore(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Opens a store, creating its directory if needed, and rebuilds the chunk index from the manifests.
+     *
+     * @param root The directory of the store.
+     * @return The store.
+     * @throws IOException If the directory cannot be created or read.
+     */
+
+    public static ChunkStore open(Path root) throws IOException {
+        ChunkStore store = new ChunkStore(root.toAbsolutePath().normalize());
+        Files.createDirectories(store.root);
+        for (Path manifest : store.manifests()) {
+            String id = manifest.getFileName().toString().replace(".chunks", "");
+            Path file = store.filePath(id);
+            try {
+                Manifest layout = readManifest(manifest);
+                store.lock.lock();
+                try {
+                    store.index(id, Files.size(file), layout);
+                } finally {
+                    store.lock.unlock();
+                }
+            } catch (IOException e) {
+                System.err.println("Ignoring damaged stored file " + id + ": " + e.getMessage());
+            }
+        }
+        int released = store.collect();
+        System.out.println("Deduplicating store " + store.root + ": " + store.chunks.size() + " chunks indexed"
+                + (released > 0 ? ", " + released + " unused files released" : ""));
+        return store;
+    }
+
+    /**
+     * Computes the SHA-256 of part of a file.
+     *
+     * @param file     The file to read.
+     * @param position The offset of the first byte.
+     * @param count    The number of bytes.
+     * @param buffer   The buffer used to read the file.
+     * @return The hash.
+     * @throws IOException If an I/O error occurs or the file is shorter than expected.
+     */
+
+    public static byte[] hash(FileChannel file, long position, long count, ByteBuffer buffer) throws IOException {
+        MessageDigest digest = digest();
+        long end = position + count;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ended " + (end - position) + " bytes early");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the content id of a file, the SHA-256 of its chunk hashes.
+     *
+     * @param hashes The chunk hashes, in file order.
+     * @return The content id, in hexadecimal.
+     */
+
+    public static String contentId(byte[][] hashes) {
+        MessageDigest digest = digest();
+        for (byte[] hash : hashes) {
+            digest.update(hash);
+        }
+        return HEX.formatHex(digest.digest());
+    }
+
+    /**
+     * Lists the chunks of an upload that the store does not hold yet.
+     *
+     * @param hashes The chunk hashes announced by the client.
+     * @return The indexes of the chunks the client has to send, in increasing order.
+     */
+
+    public List<Integer> missing(byte[][] hashes) {
+        List<Integer> missing = new ArrayList<>();
+        if (Files.exists(filePath(contentId(hashes)))) {
+            return missing; // Stored as a whole
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < hashes.length; i++) {
+                if (!chunks.containsKey(HEX.formatHex(hashes[i]))) {
+                    missing.add(i);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return missing;
+    }
+
+    /**
+     * Stores an uploaded file and links the target path to it. The missing chunks are read from the socket
+     * in increasing order and checked against their hash, the other chunks are copied from the stored files
+     * that already contain them. Every announced byte is read from the socket even if the file cannot be
+     * stored, so the connection stays in step with the client.
+     *
+     * @param target    The uploaded path.
+     * @param size      The size of the file.
+     * @param chunkSize The size of a chunk.
+     * @param hashes    The chunk hashes announced by the client.
+     * @param missing   The chunks sent by the client, as returned by missing.
+     * @param socket    The source socket.
+     * @param in        The stream of the socket, used when the socket has no channel.
+     * @param buffer    The buffer used to receive the chunks.
+     * @param bandwidth The bucket charged for the chunks received, or null for no limit.
+     * @throws IOException If an I/O error occurs or a chunk does not match its hash.
+     */
+
+    public void store(Path target, long size, int chunkSize, byte[][] hashes, List<Integer> missing, Socket socket,
+            InputStream in, ByteBuffer buffer, Bandwidth bandwidth) throws IOException {
+        String id = contentId(hashes);
+        Path file = filePath(id);
+        if (missing.isEmpty() && Files.exists(file)) {
+            link(file, target); // Fails if the file is released in between, the client has no chunk to send
+            return;
+        }
+        ReadableByteChannel source = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(in);
+        Path temporary = file.resolveSibling(id + "." + Thread.currentThread().threadId() + ".tmp");
+
+        FileChannel data;
+        try {
+            Files.createDirectories(file.getParent());
+            data = FileTransfer.openPreallocated(temporary, size);
+        } catch (IOException e) {
+            FileTransfer.skip(remaining(size, chunkSize, missing, 0), socket, in, buffer);
+            throw e;
+        }
+
+        int corrupted = 0;
+        int next = 0; // Missing chunks read from the socket
+        try (data) {
+            for (int i = 0; i < hashes.length; i++) {
+                long offset = (long) i * chunkSize;
+                int length = length(size, chunkSize, i);
+                if (next < missing.size() && missing.get(next) == i) {
+                    next++;
+                    if (!Arrays.equals(receive(source, data, offset, length, buffer, bandwidth), hashes[i])) {
+                        corrupted++;
+                    }
+                } else if (corrupted == 0) {
+                    copy(hashes[i], data, offset, length);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            try {
+                FileTransfer.skip(remaining(size, chunkSize, missing, next), socket, in, buffer); // Chunks the client still sends
+            } catch (IOException broken) {
+                e.addSuppressed(broken);
+            }
+            throw e;
+        }
+        if (corrupted > 0) {
+            Files.deleteIfExists(temporary);
+            throw new IOException(corrupted + " chunks did not match their hash");
+        }
+
+        Path manifest = manifestPath(id);
+        Path manifestTemporary = manifest.resolveSibling(id + "." + Thread.currentThread().threadId() + ".chunks.tmp");
+        try {
+            writeManifest(manifestTemporary, chunkSize, hashes);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            Files.deleteIfExists(manifestTemporary);
+            throw e;
+        }
+
+        Path linked = linkPath(target);
+        FileChannel copySource;
+        lock.lock();
+        try { // Linked before collect can see the new file unused
+            if (Files.exists(file)) {
+                Files.delete(temporary); // Stored by a concurrent upload of the same content
+                Files.delete(manifestTemporary);
+            } else {
+                Files.move(manifestTemporary, manifest, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+                index(id, size, new Manifest(chunkSize, hashes));
+            }
+            copySource = createLink(file, linked);
+        } finally {
+            lock.unlock();
+        }
+        replace(copySource, linked, target);
+    }
+
+    /**
+     * Makes a path share the contents of a stored file, replacing whatever the path held.
+     * Falls back to a copy when the file system cannot link the two (e.g. a store on another disk).
+     */
+
+    private void link(Path file, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(file, target)) {
+            return; // Already linked, and rename would not replace a link to the same file
+        }
+        Path linked = linkPath(target);
+        FileChannel copySource;
+        lock.lock();
+        try {
+            if (!Files.exists(file)) {
+                throw new IOException("Stored file " + file.getFileName() + " was released during the upload, please try again");
+            }
+            copySource = createLink(file, linked);
+        } finally {
+            lock.unlock();
+        }
+        replace(copySource, linked, target);
+    }
+
+    private static Path linkPath(Path target) {
+        return target.resolveSibling("." + target.getFileName() + ".dupload");
+    }
+
+    /**
+     * Links a stored file under a temporary name, with the lock held so that collect sees it in use.
+     *
+     * @return null once linked, or the stored file open for reading when it has to be copied instead,
+     *         which stays readable if the file is released before the copy.
+     */
+
+    private static FileChannel createLink(Path file, Path linked) throws IOException {
+        Files.deleteIfExists(linked);
+        try {
+            Files.createLink(linked, file);
+            return null;
+        } catch (IOException | UnsupportedOperationException e) {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * Copies the stored file if it could not be linked, then renames the link over the target, without
+     * the lock. Releasing the previous contents of a shared target is left to a background collection.
+     */
+
+    private void replace(FileChannel copySource, Path linked, Path target) throws IOException {
+        if (copySource != null) {
+            try (copySource; FileChannel copy = FileChannel.open(linked, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = copySource.size();
+                long copied = 0;
+                while (copied < size) {
+                    copied += copySource.transferTo(copied, size - copied, copy);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(linked);
+                throw e;
+            }
+        }
+        boolean replaced = isShared(target);
+        Files.move(linked, target, StandardCopyOption.REPLACE_EXISTING);
+        if (replaced) {
+            collectLater(); // The previous contents may not be used anymore
+        }
+    }
+
+    /**
+     * Tells whether a path is a hard link to a stored file, in which case it must be unlinked
+     * rather than written in place.
+     *
+     * @param path The path to check.
+     * @return true if the path shares its contents with another path.
+     */
+
+    public static boolean isShared(Path path) {
+        try {
+            return Files.isRegularFile(path) && (Integer) Files.getAttribute(path, "unix:nlink") > 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false; // No hard links on this file system
+        }
+    }
+
+    /**
+     * Releases the stored files no uploaded path links to anymore, and drops their chunks
+     * from the index once no other stored file references them. The manifests are listed without
+     * the lock, which is only taken to release a file found unused.
+     *
+     * @return The number of stored files released.
+     * @throws IOException If the store cannot be read.
+     */
+
+    public int collect() throws IOException {
+        int released = 0;
+        for (Path manifest : manifests()) {
+            String id = manifest.getFileName().toString().replace(".chunks", "");
+            Path file = filePath(id);
+            if (Files.exists(file) && linkCount(file) > 1) {
+                continue;
+            }
+            Manifest layout;
+            try {
+                layout = readManifest(manifest);
+            } catch (NoSuchFileException e) {
+                continue; // Released by a concurrent collection
+            }
+            lock.lock();
+            try {
+                if (Files.exists(file) && linkCount(file) > 1) {
+                    continue; // Linked again in between
+                }
+                for (byte[] hash : layout.hashes) {
+                    String key = HEX.formatHex(hash);
+                    List<Location> locations = chunks.get(key);
+                    if (locations != null) {
+                        locations.removeIf(location -> location.file.equals(id));
+                        if (locations.isEmpty()) {
+                            chunks.remove(key);
+                        }
+                    }
+                }
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(manifest);
+            } finally {
+                lock.unlock();
+            }
+            released++;
+        }
+        return released;
+    }
+
+    /**
+     * Asks for a collection on a background thread, so that the upload or deletion that released a
+     * stored file does not wait for the manifests to be scanned. Requests made before the collection
+     * starts are served by it.
+     */
+
+    public void collectLater() {
+        if (!collectPending.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("dedup-collector").start(() -> {
+            collectPending.set(false);
+            try {
+                collect();
+            } catch (IOException e) {
+                System.err.println("Couldn't release unused stored files: " + e.getMessage());
+            }
+        });
+    }
+
+    private Path filePath(String id) {
+        return root.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    private Path manifestPath(String id) {
+        return root.resolve(id.substring(0, 2)).resolve(id + ".chunks");
+    }
+
+    private List<Path> manifests() throws IOException {
+        List<Path> manifests = new ArrayList<>();
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path directory : directories) {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.chunks")) {
+                    for (Path manifest : entries) {
+                        manifests.add(manifest);
+                    }
+                }
+            }
+        }
+        return manifests;
+    }
+
+    private static int linkCount(Path file) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return 2; // Without link counts, stored files are never released
+        }
+    }
+
+    private static int length(long size, int chunkSize, int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    /**
+     * Returns the number of bytes of the missing chunks from the given one on.
+     */
+
+    private static long remaining(long size, int chunkSize, List<Integer> missing, int from) {
+        long remaining = 0;
+        for (int index : missing.subList(from, missing.size())) {
+            remaining += length(size, chunkSize, index);
+        }
+        return remaining;
+    }
+
+    /**
+     * Adds the chunks of a stored file to the index. The caller holds the lock.
+     */
+
+    private void index(String id, long size, Manifest manifest) throws IOException {
+        long expected = (long) manifest.hashes.length * manifest.chunkSize;
+        if (size > expected || (manifest.hashes.length > 0 && size <= expected - manifest.chunkSize)) {
+            throw new IOException("size " + size + " does not match the manifest");
+        }
+        for (int i = 0; i < manifest.hashes.length; i++) {
+            Location location = new Location(id, (long) i * manifest.chunkSize, length(size, manifest.chunkSize, i));
+            chunks.computeIfAbsent(HEX.formatHex(manifest.hashes[i]), hash -> new ArrayList<>()).add(location);
+        }
+    }
+
+    /**
+     * Receives a chunk from the socket into the file and returns its hash. If the file cannot be written,
+     * the rest of the chunk is still read from the socket before the error is passed on.
+     */
+
+    private static byte[] receive(ReadableByteChannel source, FileChannel data, long offset, int length, ByteBuffer buffer,
+            Bandwidth bandwidth) throws IOException {
+        MessageDigest digest = digest();
+        int step = bandwidth != null ? Math.min(Bandwidth.QUANTUM, buffer.capacity()) : buffer.capacity();
+        long end = offset + length;
+        IOException failure = null;
+        while (offset < end) {
+            buffer.clear().limit((int) Math.min(step, end - offset));
+            if (source.read(buffer) < 0) {
+                throw new EOFException("Connection closed " + (end - offset) + " bytes before the end of the chunk");
+            }
+            buffer.flip();
+            if (bandwidth != null) {
+                bandwidth.acquire(buffer.remaining());
+            }
+            digest.update(buffer.duplicate());
+            if (failure != null) {
+                offset += buffer.remaining(); // Discarded
+                continue;
+            }
+            long position = offset;
+            offset += buffer.remaining();
+            try {
+                while (buffer.hasRemaining()) {
+                    position += data.write(buffer, position);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Copies a chunk the store already holds into the file, letting the kernel move the bytes.
+     */
+
+    private void copy(byte[] hash, FileChannel data, long offset, int length) throws IOException {
+        FileChannel source;
+        long position;
+        lock.lock();
+        try {
+            List<Location> locations = chunks.get(HEX.formatHex(hash));
+            if (locations == null) {
+                throw new IOException("Chunk " + HEX.formatHex(hash) + " was released during the upload, please try again");
+            }
+            Location location = locations.get(0);
+            source = FileChannel.open(filePath(location.file), StandardOpenOption.READ); // Readable even if released now
+            position = location.offset;
+        } finally {
+            lock.unlock();
+        }
+        try (source) {
+            long copied = 0;
+            while (copied < length) {
+                data.position(offset + copied);
+                long count = source.transferTo(position + copied, length - copied, data);
+                if (count <= 0) {
+                    throw new IOException("Stored file ended " + (length - copied) + " bytes early");
+                }
+                copied += count;
+            }
+        }
+    }
+
+    /**
+     * The chunk layout of a stored file.
+     */
+
+    private static class Manifest {
+        final int chunkSize;
+        final byte[][] hashes;
+
+        Manifest(int chunkSize, byte[][] hashes) {
+            this.chunkSize = chunkSize;
+            this.hashes = hashes;
+        }
+    }
+
+    private static Manifest readManifest(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            int chunkSize = in.readInt();
+            int count = in.readInt();
+            if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE || count < 0 || count > MAX_CHUNKS) {
+                throw new IOException("Corrupted manifest");
+            }
+            byte[][] hashes = new byte[count][HASH_SIZE];
+            for (byte[] hash : hashes) {
+                in.readFully(hash);
+            }
+            return new Manifest(chunkSize, hashes);
+        }
+    }
+
+    private static void writeManifest(Path path, int chunkSize, byte[][] hashes) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            out.writeInt(chunkSize);
+            out.writeInt(hashes.length);
+            for (byte[] hash : hashes) {
+                out.write(hash);
+            }
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Required on every Java platform
+        }
+    }
+}
@@ -1,14 +1,36 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
-import java.util.regex.Pattern;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 /**
  * Client class that connects to a server and handles file upload and download requests
@@ -17,39 +39,62 @@ import java.util.regex.Pattern;
 
 public class Client {
 	
+    // Size of the buffer used to receive downloads, tunable with -Dclient.bufferSize
+    private static final int BUFFER_SIZE = Integer.getInteger("client.bufferSize", 1024 * 1024);
+    
+    // Chunk size and number of parallel connections of pupload/pdownload
+    private static final int CHUNK_SIZE = Integer.getInteger("client.chunkSize", ChunkState.DEFAULT_CHUNK_SIZE);
+    private static final int STREAMS = Integer.getInteger("client.streams", 4);
+
+    // Size of the chunks hashed by a deduplicated upload
+    private static final int DEDUP_CHUNK_SIZE = Integer.getInteger("client.dedupChunkSize", ChunkStore.DEFAULT_CHUNK_SIZE);
+    
+    // Number of corrupted chunks tolerated (and sent again) before a chunked transfer is abandoned
+    private static final int MAX_CHUNK_RETRIES = 16;
+
+    // User input, read the same way from a console or a pipe
+    private static final BufferedReader INPUT = new BufferedReader(new InputStreamReader(System.in));
+    
+    // Command typed to stop following a file, run next
+    private static volatile String typedAhead;
+	
     private Socket socket;
     private DataOutputStream out;
     private DataInputStream in;
+    private String serverAddress;
+    private int serverPort;
+    private int compressionLevel; // Deflater level agreed with the server for upload and download, 0 when off
+    private Integrity.Mode verifyMode = Integrity.Mode.OFF; // Checksum trailer agreed with the server for upload and download
+    private final ByteBuffer transferBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // Reused by every download
     
-    private static final Pattern IP_PATTERN = 
-		Pattern.compile("^(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])$"); 
-    	//Using https://stackoverflow.com/questions/5667371/validate-ipv4-address-in-java
+    /**
+     * Transfers one chunk over the given connection.
+     */
+    
+    private interface ChunkJob {
+        boolean transfer(Client session, int index) throws IOException;
+    }
     
     /**
-     * Verifies if the given IP address is valid based on the IPv4 format.
+     * Verifies if the given IP address is a valid IPv4 (x.x.x.x) or IPv6 address.
      *
      * @param ip The IP address to check.
      * @return true if the IP is valid, false otherwise.
      */
     
     public static boolean isValidIP(final String ip) {
-        return IP_PATTERN.matcher(ip).matches();
+        return Server.isValidIP(ip);
     }
     
     /**
-     * Verifies if the port number is within the valid range (5000-5500).
+     * Verifies if the port number is a valid TCP port (1-65535).
      *
      * @param port The port number to check.
      * @return true if the port is valid, false otherwise.
      */
     
 	public static boolean isValidPort(final int port) {
-		if (port >= 5000 && port <= 5500){
-			return true;
-		}
-		else {
-			return false;
-		}
+		return Server.isValidPort(port);
 	}
 	
     /**
@@ -87,7 +132,8 @@ public class Client {
     
     /**
      * Processes the user command and sends the appropriate request to the server.
-     * Supports "upload", "download"
+     * Supports "upload", "download" (of a file, part of a file with -range, a growing file with -follow, or of a directory as an archive), "compress", "verify", the batch "mupload" and "mdownload", the chunked "pupload" and "pdownload",
+     * the deduplicated "dupload", the incremental "delta", and "pipeline" to run a script of commands over the framed protocol
      *
      * @param command The command array where the first element is the command and the second is the argument.
      */
@@ -108,11 +154,87 @@ public class Client {
     	        String response = in.readUTF();
     	        if(response.equals("Sending file...")){    	        	
     	        	download(command[1]);
+    	        } else if (response.startsWith("Sending bytes ")) {
+    	        	download(DownloadRange.parse(command[1]).name); // The range alone is saved under the name of the file
+    	        } else if (response.startsWith("Following ")) {
+    	        	System.err.println(response + ", press Enter to stop");
+    	        	follow();
+    	        } else if (response.startsWith("Sending archive ")) {
+    	        	extract(command[1], Archive.parse(response.substring("Sending archive ".length())));
     	        } else {    	        	
     	        	System.out.println(response);
     	        }
                 break;
                 
+            case "compress":
+                out.writeUTF("compress " + command[1]);
+                String answer = in.readUTF();
+                System.out.println(answer);
+                if (answer.startsWith("Compression level set to")) {
+                    compressionLevel = Integer.parseInt(command[1]); // The server agreed, both sides switch
+                } else if (answer.equals("Compression off")) {
+                    compressionLevel = 0;
+                }
+                break;
+                
+            case "verify":
+                out.writeUTF("verify " + command[1]);
+                String verification = in.readUTF();
+                System.out.println(verification);
+                if (verification.startsWith("Verification set to") || verification.equals("Verification off")) {
+                    verifyMode = Integrity.parse(command[1]); // The server agreed, both sides switch
+                }
+                break;
+                
+            case "mupload":
+                Map<String, Path> files = matchFiles(command[1]);
+                if (files.isEmpty()) {
+                    System.out.println("No file matches " + command[1]);
+                    return;
+                }
+                out.writeUTF("mupload");
+                if (awaitReady()) {
+                    batchUpload(files);
+                }
+                break;
+                
+            case "mdownload":
+                out.writeUTF("mdownload " + command[1]);
+                if (awaitReady()) {
+                    batchDownload(command[1]);
+                }
+                break;
+                
+            case "pupload":
+	        	if (isFileExist(command[1])){
+	                parallelUpload(command[1]);
+	        	}
+	        	return; // The chunked transfer reads its own responses
+                
+            case "pdownload":
+                parallelDownload(command[1]);
+                return;
+                
+            case "dupload":
+	        	if (!isFileExist(command[1])){
+	                return;
+	        	}
+                dedupUpload(command[1]);
+                break;
+                
+            case "delta":
+	        	if (!isFileExist(command[1])){
+	                return;
+	        	}
+                deltaUpload(command[1]);
+                break;
+                
+            case "pipeline":
+	        	if (isFileExist(command[1])){
+	                pipeline(command[1]);
+	        	}
+	        	return; // Runs on its own framed connection
+                
             default:
                 out.writeUTF(command[0] + (command[1].isEmpty() ? "" : " " + command[1]));
                 out.flush();
@@ -130,37 +252,555 @@ public class Client {
      */
 	
     private void upload(File file) throws IOException { // Using https://stackoverflow.com/questions/10367698/java-multiple-file-transfer-over-socket
-		DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-		FileInputStream fis = new FileInputStream(file.toString());
-		byte[] buffer = new byte[4096];
-		int read;
-		dos.writeLong(file.length());
-		while ((read=fis.read(buffer)) > 0) {
-			dos.write(buffer, 0, read);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			out.writeLong(size);
+			if (compressionLevel > 0) {
+				CompressedTransfer.send(channel, size, out, compressionLevel);
+			} else {
+				FileTransfer.send(channel, 0, size, socket, out);
+			}
+			if (verifyMode != Integrity.Mode.OFF) {
+				Integrity.of(verifyMode, channel, 0, size, transferBuffer).writeTrailer(out); // Zero-copy sends never see the data
+			}
 		}
-		
-		fis.close();
     }
     
     /**
      * Downloads a file from the server and saves it locally with the specified name.
+     * The file is preallocated from the announced size, then filled straight from the socket channel.
+     * When verification is on, a file that does not match the trailer of the server is deleted.
      *
      * @param fileName The name of the file to download.
      * @throws IOException If an I/O error occurs during the file download.
      */
 
     private void download(String fileName) throws IOException { 
-		DataInputStream dis = new DataInputStream(socket.getInputStream());
-		FileOutputStream fos = new FileOutputStream(fileName);
-		byte[] buffer = new byte[4096];
-		long fileSize = dis.readLong();
-		int read = 0;
-		while(fileSize > 0 && (read = dis.read(buffer)) > 0) {
-			fos.write(buffer, 0, read);
-			fileSize -= read;
+		long fileSize = in.readLong();
+		String mismatch = null;
+		try (FileChannel file = FileTransfer.openPreallocated(Paths.get(fileName), fileSize)) {
+			Integrity integrity = verifyMode != Integrity.Mode.OFF ? new Integrity(verifyMode) : null;
+			if (compressionLevel > 0) {
+				CompressedTransfer.receive(in, file, fileSize);
+				if (integrity != null) {
+					FileTransfer.checksum(file, 0, fileSize, transferBuffer, integrity);
+				}
+			} else {
+				FileTransfer.receive(file, 0, fileSize, socket, in, transferBuffer, integrity);
+			}
+			if (integrity != null) {
+				mismatch = integrity.verify(in);
+			}
 		}
-		
-		fos.close();
+		if (mismatch != null) {
+			Files.deleteIfExists(Paths.get(fileName));
+			System.out.println("Download of " + fileName + " rejected: " + mismatch);
+		}
+    }
+    
+    /**
+     * Prints the bytes appended to a file followed by the server, until the user presses Enter. A command
+     * typed instead of an empty line also stops following, then runs. Messages about the file (truncated,
+     * removed, replaced) go to the error stream, so that the output holds only the contents of the file.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void follow() throws IOException {
+        Thread stopper = Thread.ofPlatform().daemon().start(() -> {
+            try {
+                String line = readLine();
+                if (line != null && !line.isBlank()) {
+                    typedAhead = line;
+                }
+                FollowTransfer.stop(out);
+            } catch (IOException e) {
+                // The connection is gone, which the receiving side reports
+            }
+        });
+        FollowTransfer.receive(in, System.out, System.err);
+        try {
+            stopper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Extracts a directory sent as an archive, entry by entry as it arrives. The tree is created where a
+     * download of the same name would be saved ("download -zip a/b" fills ./a/b), next to existing files.
+     *
+     * @param argument The argument of download: the directory, optionally preceded by the format.
+     * @param format   The format announced by the server.
+     * @throws IOException If an I/O error occurs or the archive is malformed.
+     */
+
+    private void extract(String argument, Archive.Format format) throws IOException {
+        String name = argument.startsWith("-") ? argument.split(" ", 2)[1].trim() : argument;
+        Path destination = Paths.get(name).toAbsolutePath().normalize().getParent();
+        Integrity integrity = verifyMode != Integrity.Mode.OFF ? new Integrity(verifyMode) : null;
+        Archive.Report report = Archive.extract(in, format, destination != null ? destination : Paths.get(""), integrity);
+        System.out.println("Extracted " + report.files + " files and " + report.directories + " directories ("
+                + report.bytes + " bytes)");
+        for (String error : report.errors) {
+            System.out.println("  " + error);
+        }
+    }
+
+    /**
+     * Uploads a file through the server's deduplicating store: sends the SHA-256 of every chunk,
+     * then only the chunks the server does not already hold.
+     *
+     * @param fileName The name of the file to upload.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void dedupUpload(String fileName) throws IOException {
+        try (FileChannel source = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = source.size();
+            int count = (int) ((size + DEDUP_CHUNK_SIZE - 1) / DEDUP_CHUNK_SIZE);
+            out.writeUTF("dupload " + fileName);
+            if (!awaitReady()) {
+                return;
+            }
+            out.writeLong(size);
+            out.writeInt(DEDUP_CHUNK_SIZE);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                long offset = (long) i * DEDUP_CHUNK_SIZE;
+                out.write(ChunkStore.hash(source, offset, Math.min(DEDUP_CHUNK_SIZE, size - offset), transferBuffer));
+            }
+            out.flush();
+
+            String status = in.readUTF();
+            if (!status.equals("Chunks")) {
+                System.out.println(status);
+                return;
+            }
+            int[] missing = new int[in.readInt()];
+            for (int i = 0; i < missing.length; i++) {
+                missing[i] = in.readInt(); // Read the whole list first, the server only reads chunks once it is sent
+            }
+            System.out.format("Sending %d of %d chunks%n", missing.length, count);
+            for (int index : missing) {
+                long offset = (long) index * DEDUP_CHUNK_SIZE;
+                FileTransfer.send(source, offset, Math.min(DEDUP_CHUNK_SIZE, size - offset), socket, out);
+            }
+        }
+    }
+    
+    /**
+     * Updates a file on the server by sending only what changed since the server's copy:
+     * the server sends the signatures of its blocks, and the client answers with references
+     * to the blocks it can reuse and the bytes it cannot (see DeltaSync).
+     *
+     * @param fileName The name of the file to update.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void deltaUpload(String fileName) throws IOException {
+        try (FileChannel source = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            out.writeUTF("delta " + fileName);
+            out.flush();
+            String status = in.readUTF();
+            if (!status.equals("Signatures")) {
+                System.out.println(status);
+                return;
+            }
+            DeltaSync.Signatures signatures = DeltaSync.readSignatures(in);
+            DeltaSync.Result result = DeltaSync.writeDelta(source, signatures,
+                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)));
+            System.out.format("Sent %d of %d bytes, reused %d of %d blocks%n", result.literalBytes, source.size(),
+                    result.reusedBlocks, signatures.count);
+        }
+    }
+    
+    /**
+     * Lists the local files selected by a batch upload, with the names they get on the server.
+     * A directory selects its whole tree and keeps its own name as the first path component;
+     * a glob (e.g. "logs/*.csv" or "data/**") selects matching files below its fixed prefix.
+     *
+     * @param pattern A file, a directory or a glob.
+     * @return The files, keyed by their name on the server.
+     * @throws IOException If a directory cannot be walked.
+     */
+
+    private Map<String, Path> matchFiles(String pattern) throws IOException {
+        Map<String, Path> files = new LinkedHashMap<>();
+        Path root;
+        Path base;
+        PathMatcher matcher;
+        int depth = Integer.MAX_VALUE;
+
+        int glob = indexOfGlob(pattern);
+        if (glob < 0) {
+            Path path = Paths.get(pattern).toAbsolutePath().normalize();
+            if (Files.isRegularFile(path)) {
+                files.put(path.getFileName().toString(), path);
+                return files;
+            }
+            if (!Files.isDirectory(path)) {
+                return files;
+            }
+            root = path;
+            base = path.getParent() != null ? path.getParent() : path;
+            matcher = file -> true;
+        } else {
+            int slash = pattern.lastIndexOf('/', glob);
+            String rest = pattern.substring(slash + 1);
+            root = Paths.get(slash < 0 ? "." : pattern.substring(0, Math.max(slash, 1))).toAbsolutePath().normalize();
+            base = root;
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + rest);
+            if (!rest.contains("**")) {
+                depth = rest.split("/").length; // No need to walk deeper than the pattern reaches
+            }
+        }
+
+        try (Stream<Path> walk = Files.walk(root, depth)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                Path relative = base.relativize(file);
+                if (Files.isRegularFile(file) && matcher.matches(relative)) {
+                    files.put(relative.toString().replace(File.separatorChar, '/'), file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static int indexOfGlob(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Waits for the server to accept a command that streams data, before anything is streamed either way
+     * (see ClientHandler.READY).
+     *
+     * @return true if the server is ready, false if it refused the command; the refusal is printed
+     *         and the rest of the answer is left for catchResponse.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private boolean awaitReady() throws IOException {
+        out.flush();
+        String answer = in.readUTF();
+        if (answer.equals(ClientHandler.READY)) {
+            return true;
+        }
+        System.out.println(answer);
+        return false;
+    }
+
+    /**
+     * Sends the manifest of a batch upload (names and sizes), then the contents of every file back to back.
+     *
+     * @param files The files to upload, keyed by their name on the server.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void batchUpload(Map<String, Path> files) throws IOException {
+        List<Long> sizes = new ArrayList<>();
+        out.writeInt(files.size());
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            long size = Files.size(file.getValue());
+            sizes.add(size);
+            out.writeUTF(file.getKey());
+            out.writeLong(size);
+        }
+
+        int i = 0;
+        for (Path file : files.values()) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                FileTransfer.send(channel, 0, sizes.get(i++), socket, out);
+            }
+        }
+    }
+
+    /**
+     * Receives the files of a batch download in the order they were requested.
+     * Files the server could not send are listed in its summary.
+     *
+     * @param fileNames The names of the files, separated by spaces.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void batchDownload(String fileNames) throws IOException {
+        for (String name : fileNames.trim().split("\\s+")) {
+            long size = in.readLong();
+            if (size < 0) {
+                continue;
+            }
+            FileChannel file;
+            try {
+                Path target = Paths.get(name);
+                if (target.getParent() != null) {
+                    Files.createDirectories(target.getParent());
+                }
+                file = FileTransfer.openPreallocated(target, size);
+            } catch (IOException e) {
+                System.out.println("Couldn't save " + name + ": " + e.getMessage());
+                FileTransfer.skip(size, socket, in, transferBuffer);
+                continue;
+            }
+            try (file) {
+                FileTransfer.receive(file, 0, size, socket, in, transferBuffer);
+            }
+        }
+    }
+
+    /**
+     * Uploads a file in checksummed chunks sent over several connections.
+     * The server reports which chunks it already holds, so running the command again
+     * after an interruption only sends the missing ones.
+     *
+     * @param fileName The name of the file to upload.
+     * @throws IOException If an I/O error occurs on the main connection.
+     */
+
+    private void parallelUpload(String fileName) throws IOException {
+        Path file = Paths.get(fileName);
+        long size = Files.size(file);
+        out.writeUTF("chunkinfo " + size + " " + CHUNK_SIZE + " " + fileName);
+        String status = in.readUTF();
+        if (!status.equals("Chunks")) {
+            System.out.println(status);
+            catchResponse();
+            return;
+        }
+        String remotePath = in.readUTF();
+        int count = in.readInt();
+        List<Integer> missing = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            missing.add(in.readInt());
+        }
+        catchResponse();
+
+        System.out.format("Uploading %d missing chunks over %d connections%n", missing.size(), STREAMS);
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            transferChunks(missing, (session, index) -> session.sendChunk(source, size, index, remotePath));
+        } catch (IOException e) {
+            System.out.println("Upload interrupted (" + e.getMessage() + "), run the command again to resume");
+            return;
+        }
+
+        out.writeUTF("commitchunks " + remotePath);
+        catchResponse();
+    }
+
+    /**
+     * Downloads a file in checksummed chunks received over several connections.
+     * Progress is kept next to the local file, so running the command again
+     * after an interruption only fetches the missing chunks.
+     *
+     * @param fileName The name of the file to download.
+     * @throws IOException If an I/O error occurs on the main connection.
+     */
+
+    private void parallelDownload(String fileName) throws IOException {
+        out.writeUTF("filesize " + fileName);
+        String status = in.readUTF();
+        if (!status.equals("Size")) {
+            System.out.println(status);
+            catchResponse();
+            return;
+        }
+        String remotePath = in.readUTF();
+        long size = in.readLong();
+        catchResponse();
+
+        try (ChunkState local = ChunkState.open(Paths.get(fileName), size, CHUNK_SIZE)) {
+            List<Integer> missing = local.missing();
+            System.out.format("Downloading %d missing chunks over %d connections%n", missing.size(), STREAMS);
+            try {
+                transferChunks(missing, (session, index) -> session.receiveChunk(local, index, remotePath));
+            } catch (IOException e) {
+                System.out.println("Download interrupted (" + e.getMessage() + "), run the command again to resume");
+                return;
+            }
+            local.commit();
+        }
+        System.out.println(fileName + " succesfully downloaded");
+    }
+
+    /**
+     * Spreads chunks over parallel connections to the server. Chunks whose checksum
+     * does not match are queued again, up to MAX_CHUNK_RETRIES times in total.
+     *
+     * @param chunks The indexes of the chunks to transfer.
+     * @param job    The transfer of a single chunk.
+     * @throws IOException If a connection fails or too many chunks are corrupted.
+     */
+
+    private void transferChunks(List<Integer> chunks, ChunkJob job) throws IOException {
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>(chunks);
+        AtomicInteger retries = new AtomicInteger();
+        int streams = Math.min(STREAMS, chunks.size());
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(streams, 1));
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int i = 0; i < streams; i++) {
+            results.add(workers.submit(() -> {
+                Client session = new Client();
+                session.connect(serverAddress, serverPort);
+                try {
+                    Integer index;
+                    while ((index = pending.poll()) != null) {
+                        if (!job.transfer(session, index)) {
+                            if (retries.incrementAndGet() > MAX_CHUNK_RETRIES) {
+                                throw new IOException("too many corrupted chunks");
+                            }
+                            pending.add(index);
+                        }
+                    }
+                } finally {
+                    session.disconnect();
+                }
+                return null;
+            }));
+        }
+        workers.shutdown();
+
+        IOException failure = null;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sends one chunk of a chunked upload on this connection, once the server is ready for it.
+     *
+     * @return true if the server acknowledged the chunk, false if its checksum did not match.
+     * @throws IOException If an I/O error occurs or the server refuses the chunk.
+     */
+
+    private boolean sendChunk(FileChannel source, long size, int index, String remotePath) throws IOException {
+        long offset = (long) index * CHUNK_SIZE;
+        long length = Math.min(CHUNK_SIZE, size - offset);
+        CRC32C crc = new CRC32C();
+        FileTransfer.checksum(source, offset, length, transferBuffer, crc);
+
+        out.writeUTF("putchunk " + index + " " + remotePath);
+        String answer = in.readUTF();
+        if (!answer.equals(ClientHandler.READY)) {
+            in.readUTF(); // Process done
+            throw new IOException(answer);
+        }
+        out.writeLong(length);
+        out.writeInt((int) crc.getValue());
+        FileTransfer.send(source, offset, length, socket, out);
+
+        String reply = in.readUTF();
+        in.readUTF(); // Process done
+        return reply.endsWith(" ok");
+    }
+
+    /**
+     * Receives one chunk of a chunked download on this connection and records it if its checksum matches.
+     *
+     * @return true if the chunk was received intact, false otherwise.
+     */
+
+    private boolean receiveChunk(ChunkState local, int index, String remotePath) throws IOException {
+        out.writeUTF("getchunk " + index + " " + local.chunkSize() + " " + remotePath);
+        long length = in.readLong();
+        if (length < 0) {
+            String error = in.readUTF();
+            in.readUTF(); // Process done
+            throw new IOException(error);
+        }
+        int expected = in.readInt();
+        CRC32C crc = new CRC32C();
+        FileTransfer.receive(local.data(), local.offset(index), length, socket, in, transferBuffer, crc);
+        in.readUTF(); // Process done
+
+        if ((int) crc.getValue() != expected) {
+            return false;
+        }
+        local.markDone(index);
+        return true;
+    }
+
+    /**
+     * Runs every command of a script file (one per line) over a framed connection.
+     * All commands are sent up front and their responses are matched by request id,
+     * so the script costs about one round trip instead of one per command.
+     * The script runs in a new session, which starts in the server's root directory.
+     *
+     * @param scriptName The name of the script file.
+     * @throws IOException If the script cannot be read or the connection fails.
+     */
+
+    private void pipeline(String scriptName) throws IOException {
+        List<String> commands = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(scriptName))) {
+            if (!line.isBlank()) {
+                commands.add(line.trim());
+            }
+        }
+
+        long start = System.nanoTime();
+        try (FramedConnection connection = new FramedConnection(serverAddress, serverPort)) {
+            List<CompletableFuture<List<String>>> responses = new ArrayList<>();
+            for (String line : commands) {
+                responses.add(connection.send(line));
+            }
+            for (int i = 0; i < commands.size(); i++) {
+                System.out.println("> " + commands.get(i));
+                for (String message : responses.get(i).join()) {
+                    System.out.println(message);
+                }
+            }
+        } catch (CompletionException e) {
+            System.err.println("Error: " + e.getCause().getMessage());
+            return;
+        }
+        System.out.format("%d commands done in %d ms%n", commands.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Opens a connection to the server and reads its welcome message.
+     *
+     * @param address The IP address of the server.
+     * @param port    The port of the server.
+     * @return The welcome message.
+     * @throws IOException If the connection fails.
+     */
+
+    private String connect(String address, int port) throws IOException {
+        serverAddress = address;
+        serverPort = port;
+        socket = SocketChannel.open(new InetSocketAddress(address, port)).socket(); // Channel-backed for zero-copy transfers
+        socket.setTcpNoDelay(true); // A command and its data are separate writes
+        out = new DataOutputStream(socket.getOutputStream());
+        in = new DataInputStream(socket.getInputStream());
+        return in.readUTF();
+    }
+
+    /**
+     * Ends the session and closes the connection.
+     */
+
+    private void disconnect() {
+        try {
+            out.writeUTF("exit");
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Couldn't close the socket: " + e.getMessage());
+        }
     }
     
     /**
@@ -180,45 +820,75 @@ public class Client {
 	}
 	
     /**
-     * The main method where the client prompts the user for the server's IP address and port,
-     * establishes a connection, and processes user commands.
+     * Reads a line typed by the user, from the console or from a redirected standard input.
      *
-     * @param args Command-line arguments (not used).
+     * @return The line, or null at the end of the input.
+     * @throws IOException If the input cannot be read.
      */
 
-    public static void main(String[] args) {
-    	Client client = new Client();
-    	
-        // Input the server's IP address
-
-        System.out.println("Enter the IP address of your server:  ");
-        String serverAddress = System.console().readLine();
-        while (!Server.isValidIP(serverAddress)){
-            System.out.println("Invalid IP address! Please enter a value in the form x.x.x.x with a size of 1 byte: ");
-        	serverAddress = System.console().readLine();
+    private static String readLine() throws IOException {
+        String line = typedAhead;
+        if (line != null) {
+            typedAhead = null;
+            return line;
         }
-        
-        // Input the server's port
+        return INPUT.readLine();
+    }
 
-        System.out.println("Enter the port address of your server: ");
-        int serverPort = Integer.parseInt(System.console().readLine());
-        while (!Server.isValidPort(serverPort)){
-            System.out.println("Invalid port! Please enter a value between 5000 and 5500: ");
-            serverPort = Integer.parseInt(System.console().readLine());
-        }
+    /**
+     * The main method where the client gets the server's IP address and port, from the
+     * command line (java Client address port) or by asking the user, establishes a connection,
+     * and processes user commands read from the console or the standard input until "exit".
+     *
+     * @param args Optionally the address and the port of the server.
+     */
+
+    public static void main(String[] args) throws IOException {
+    	Client client = new Client();
+    	String serverAddress;
+    	int serverPort;
+    	
+    	if (args.length == 2) {
+    		serverAddress = args[0];
+    		serverPort = Server.parsePort(args[1]);
+    		if (!isValidIP(serverAddress) || !isValidPort(serverPort)) {
+    			System.err.println("Usage: java Client [address port], with an IPv4 or IPv6 address and a port between 1 and 65535");
+    			System.exit(2);
+    		}
+    	} else {
+	        // Input the server's IP address
+	
+	        System.out.println("Enter the IP address of your server:  ");
+	        serverAddress = readLine();
+	        while (serverAddress != null && !isValidIP(serverAddress)){
+	            System.out.println("Invalid IP address! Please enter an IPv4 address in the form x.x.x.x or an IPv6 address: ");
+	        	serverAddress = readLine();
+	        }
+	        
+	        // Input the server's port
+	
+	        System.out.println("Enter the port address of your server: ");
+	        String port = readLine();
+	        serverPort = Server.parsePort(port);
+	        while (port != null && !isValidPort(serverPort)){
+	            System.out.println("Invalid port! Please enter a value between 1 and 65535: ");
+	            port = readLine();
+	            serverPort = Server.parsePort(port);
+	        }
+	        if (serverAddress == null || port == null) {
+	        	return; // End of the input
+	        }
+    	}
         
         // Establish a connection with the server
 
         try {
-            client.socket = new Socket(serverAddress, serverPort);
-            client.out = new DataOutputStream(client.socket.getOutputStream());
-            client.in = new DataInputStream(client.socket.getInputStream());
+            String helloMessageFromServer = client.connect(serverAddress, serverPort);
            
             System.out.format("Connected to the server [%s:%d]%n", serverAddress, serverPort);
 
-            // Receive and print the server's welcome message
+            // Print the server's welcome message
 
-            String helloMessageFromServer = client.in.readUTF();
             System.out.println("Message from server: " + helloMessageFromServer);
             
             // Main command loop
@@ -226,7 +896,8 @@ public class Client {
             String command[];
             while (true) {
     	        System.out.println("Enter your command: ");
-    	        command = client.command(System.console().readLine());
+    	        String line = readLine();
+    	        command = client.command(line == null ? "exit" : line);
     	        if (command[0].equals("exit")) {
     	        	System.out.println("Disconnected");
     	        	break;
@@ -1,23 +1,95 @@
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.text.DateFormat;
-import java.util.Date;
-import java.text.SimpleDateFormat;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 /**
  * Handles client connections and manages file operations such as listing directories, 
  * creating directories, changing directories, uploading, downloading, and deleting files.
  */
 
-public class ClientHandler extends Thread { 
+public class ClientHandler implements Runnable { 
     private Socket socket;
     private int clientNumber;
     private Path currentDirectory;
     private DataOutputStream out; 
     private DataInputStream in;  
+    private String clientAddress;
+    private int clientPort;
+    private ServerConfig config;
+    private ByteBuffer transferBuffer; // Allocated on the first transfer, then reused by the session
+    private int compressionLevel; // Deflater level used by upload and download, 0 when off
+    private Integrity.Mode verifyMode = Integrity.Mode.OFF; // Trailer following the data of upload and download
+    private AccessLog accessLog;
+    private String client; // "address:port", as written in the access log
+    private long transferred; // File bytes moved by the current command
+    private String outcome; // Outcome of the current command, "error" once it has reported a failure
+    private Bandwidth bandwidth; // Rate limit of the file transfers, null when none is configured
+    private FileCache files; // Memory-mapped hot files shared by every session, null when disabled
+    private FileIndex index; // Names, sizes and dates of the served files, null when disabled
+    private PathLocks locks; // Read/write locks on the served paths, shared by every session
+    private Durability durability; // When uploads are forced to disk
+    
+    // Size of the read and write buffers of a framed session
+    private static final int FRAME_BUFFER_SIZE = 64 * 1024;
+    
+    // Commands that stream raw file data over the socket, only served in text mode
+    static final Set<String> STREAMING_COMMANDS = Set.of("upload", "download", "putchunk", "getchunk", "mupload", "mdownload", "dupload", "delta");
+    
+    // Answer to a command that streams data, sent before either side streams anything; any other answer
+    // is a refusal (e.g. from a non-blocking session) followed by "Process done"
+    static final String READY = "Ready";
+    
+    // Interval between the progress messages of a tree command
+    private static final long TREE_PROGRESS_MILLIS = 1000;
+    
+    // Largest number of files announced by the manifest of a batch upload
+    private static final int MAX_BATCH_FILES = 100000;
+    
+    // Largest number of failures detailed in the answer to a batch command
+    private static final int MAX_REPORTED_ERRORS = 20;
+    
+    // Chunked uploads in progress, shared by the parallel connections of a client
+    private static final Map<Path, ChunkState> chunkedUploads = new HashMap<>();
+    
+    // Largest number of files remembered as handed out for a chunked download
+    private static final int MAX_CHUNKED_DOWNLOADS = 4096;
+    
+    // Files whose path was sent by filesize, the only ones getchunk reads, most recently requested last
+    private static final Map<Path, Boolean> chunkedDownloads = new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+            return size() > MAX_CHUNKED_DOWNLOADS;
+        }
+    };
+    
+    // Deduplicating upload store, opened on the first dupload when server.dedupStore is set
+    private static ChunkStore dedupStore;
+    
+    // Directory listings shared by every session, dropped when their directory changes
+    static final DirectoryCache listings = new DirectoryCache(Integer.getInteger("server.listCacheDirectories", 1024));
+    
+    // Largest message written by ls, under the 65535 byte limit of writeUTF
+    private static final int MAX_LISTING_MESSAGE = 60000;
     
     /**
      * Constructor for ClientHandler.
@@ -25,14 +97,53 @@ public class ClientHandler extends Thread {
      *
      * @param socket       The client socket.
      * @param clientNumber The number associated with the client.
+     * @param config       The server configuration.
      */
 
-    public ClientHandler(Socket socket, int clientNumber) {
+    public ClientHandler(Socket socket, int clientNumber, ServerConfig config) {
         this.socket = socket;
         this.clientNumber = clientNumber;
-        this.currentDirectory = Paths.get(System.getProperty("user.dir"));
+        this.config = config;
+        this.currentDirectory = Paths.get(config.root).toAbsolutePath();
+        this.clientAddress = socket.getInetAddress().getHostAddress();
+        this.clientPort = socket.getPort();
+        this.client = clientAddress + ":" + clientPort;
+        this.accessLog = AccessLog.shared(config);
+        this.bandwidth = Bandwidth.forSession(config);
+        this.files = FileCache.shared(config);
+        this.durability = Durability.shared(config);
+        this.index = FileIndex.shared(config);
+        this.locks = PathLocks.shared(config);
         System.out.println("New connection with client#" + clientNumber + " at " + socket);
     }
+
+    /**
+     * Constructor for a ClientHandler driven by an event loop instead of its own socket streams.
+     * Responses are written to the given stream and forwarded to the client by the caller.
+     * Commands that stream raw file data (upload and download) are handled by the caller.
+     *
+     * @param remote       The address of the client.
+     * @param clientNumber The number associated with the client.
+     * @param out          The stream receiving the responses.
+     * @param config       The server configuration.
+     */
+
+    ClientHandler(InetSocketAddress remote, int clientNumber, DataOutputStream out, ServerConfig config) {
+        this.clientNumber = clientNumber;
+        this.config = config;
+        this.currentDirectory = Paths.get(config.root).toAbsolutePath();
+        this.clientAddress = remote.getAddress().getHostAddress();
+        this.clientPort = remote.getPort();
+        this.client = clientAddress + ":" + clientPort;
+        this.accessLog = AccessLog.shared(config);
+        this.bandwidth = Bandwidth.forSession(config);
+        this.files = FileCache.shared(config);
+        this.durability = Durability.shared(config);
+        this.index = FileIndex.shared(config);
+        this.locks = PathLocks.shared(config);
+        this.out = out;
+        System.out.println("New connection with client#" + clientNumber + " at " + remote);
+    }
     
     /**
      * Splits the input string from the client into command and argument.
@@ -41,7 +152,7 @@ public class ClientHandler extends Thread {
      * @return A string array where the first element is the command and the second element is the argument.
      */
     
-    private String[] command(String input){
+    String[] command(String input){
         String[] command = input.split(" ", 2);
         
         if (command.length < 2) {
@@ -63,7 +174,7 @@ public class ClientHandler extends Thread {
     	switch(command[0])
     	{
     	case "ls" :
-    		ls(); // Lists files in the current directory
+    		ls(command[1]); // Lists files in the current directory, one page at a time
     		break; 
     		
     	case "mkdir":
@@ -79,44 +190,203 @@ public class ClientHandler extends Thread {
 		    break;
 		    
     	case "download":
-			if (isFileExist(command[1])) {    					
+			if (DownloadRange.isRequested(command[1])) {
+				sendRange(command[1]); // Sends part of a file, or follows it as it grows
+			} else if (isArchiveDownload(command[1])) {
+				sendArchive(command[1]); // Sends a directory as one archive
+			} else {
 				sendFile(command[1]); // Sends a file to the client
 			}
 		    break;
 		    
     	case "delete":	
-			delete(command[1]); // Deletes a file or directory
+			if (command[1].startsWith("-r ")) {
+				deleteTree(command[1].substring(3).trim()); // Deletes a directory and everything below it
+			} else {
+				delete(command[1]); // Deletes a file or directory
+			}
+		    break;
+		    
+    	case "find":
+    		find(command[1]); // Searches the file index below the current directory
+		    break;
+		    
+    	case "copy":
+    		copyTree(command[1]); // Copies a file or directory tree
+		    break;
+		    
+    	case "move":
+    		moveTree(command[1]); // Moves or renames a file or directory tree
+		    break;
+		    
+    	case "mupload":
+    		batchSave(); // Saves every file of a batch upload
+		    break;
+		    
+    	case "mdownload":
+    		batchSend(command[1]); // Sends a list of files
+		    break;
+		    
+    	case "mdelete":
+    		batchDelete(command[1]); // Deletes a list of files or directories
+		    break;
+		    
+    	case "mmkdir":
+    		batchMkdir(command[1]); // Creates a list of directories
+		    break;
+		    
+    	case "compress":
+    		compress(command[1]); // Enables or disables compressed transfers
+		    break;
+		    
+    	case "verify":
+    		verify(command[1]); // Enables or disables the checksum trailers of transfers
+		    break;
+		    
+    	case "chunkinfo":
+    		chunkInfo(command[1]); // Prepares a chunked upload and lists the chunks still missing
+		    break;
+		    
+    	case "putchunk":
+    		putChunk(command[1]); // Receives one chunk of a chunked upload
+		    break;
+		    
+    	case "commitchunks":
+    		commitChunks(command[1]); // Completes a chunked upload
+		    break;
+		    
+    	case "filesize":
+    		fileSize(command[1]); // Prepares a chunked download
+		    break;
+		    
+    	case "getchunk":
+    		getChunk(command[1]); // Sends one chunk of a chunked download
+		    break;
+		    
+    	case "dupload":
+    		dedupUpload(command[1]); // Saves a file through the deduplicating store
+		    break;
+		    
+    	case "delta":
+    		deltaUpload(command[1]); // Updates a file by receiving only what changed
 		    break;
 		    
 	    default:
 	    	out.writeUTF("Unknown command: " + command[0]);
-	    	System.out.println("Unknown command: " + command[0]);
+	    	outcome = "unknown";
 	    	break;
     	}
     } 
     
     /**
-     * Lists all files and directories in the current directory.
+     * Lists the files and directories of the current directory with their size and modification time.
+     * The listing comes from the shared cache and is sent one page at a time ("ls 2" for the second page,
+     * "ls all" for every entry), split over as many messages as needed.
      * 
+     * @param page The page number, empty for the first page.
      * @throws IOException If an I/O error occurs during file listing.
      */
     
-    private void ls() throws IOException {
+    private void ls(String page) throws IOException {
+        List<String> entries;
         try {
-        	
-            DirectoryStream<Path> stream = Files.newDirectoryStream(currentDirectory);
-            StringBuilder filesList = new StringBuilder("Files in " + currentDirectory + ":\n");
+            entries = listings.list(currentDirectory);
+        } catch (IOException e) {
+            error("Error listing files: " + e.getMessage());
+            return;
+        }
 
-            for (Path entry : stream) {
-                filesList.append(entry.getFileName()).append("\n");
+        int pageSize = config.listPageSize;
+        int pages = Math.max(1, (entries.size() + pageSize - 1) / pageSize);
+        String header = "Files in " + currentDirectory + " (" + entries.size() + " entries";
+        int from = 0;
+        int to = entries.size();
+        if (!page.equals("all")) {
+            int number;
+            try {
+                number = page.isEmpty() ? 1 : Integer.parseInt(page);
+            } catch (NumberFormatException e) {
+                number = 0;
+            }
+            if (number < 1 || number > pages) {
+                out.writeUTF("Invalid page: " + page + " (expected 1-" + pages + " or all)");
+                outcome = "error";
+                return;
             }
-            stream.close();
-            out.writeUTF(filesList.toString());
+            from = (number - 1) * pageSize;
+            to = Math.min(entries.size(), from + pageSize);
+            if (pages > 1) {
+                header += ", page " + number + " of " + pages;
+            }
+        }
 
-        } catch (IOException e) {
-            out.writeUTF("Error listing files: " + e.getMessage());
-            System.err.println("Error listing files: " + e.getMessage());
+        sendLines(header + "):", entries.subList(from, to));
+    }
+
+    /**
+     * Searches the file index for the entries below the current directory matching a glob and filters,
+     * e.g. "find *.log -size +10M -newer 7d". The first matches by path are sent like the lines of "ls",
+     * with their path relative to the current directory.
+     *
+     * @param arguments The pattern and filters, see FileIndex.Query.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void find(String arguments) throws IOException {
+        if (index == null) {
+            error("find is not available, the file index is disabled (server.fileIndex)");
+            return;
+        }
+        FileIndex.Query query;
+        try {
+            query = FileIndex.Query.parse(arguments);
+        } catch (IllegalArgumentException e) {
+            error(e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        FileIndex.Result result = index.find(currentDirectory, query, config.findLimit);
+        String header = "Found " + result.total + " matches under " + currentDirectory + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms";
+        if (result.total > result.matches.size()) {
+            header += ", showing the first " + result.matches.size();
+        }
+        sendLines(header + ":", result.matches);
+    }
+
+    /**
+     * Sends a header and lines split over as many messages as writeUTF needs.
+     */
+
+    private void sendLines(String header, List<String> lines) throws IOException {
+        StringBuilder message = new StringBuilder(header).append("\n");
+        int length = utfLength(message);
+        for (String line : lines) {
+            int lineLength = utfLength(line) + 1;
+            if (length + lineLength > MAX_LISTING_MESSAGE) {
+                out.writeUTF(message.toString());
+                message.setLength(0);
+                length = 0;
+            }
+            message.append(line).append('\n');
+            length += lineLength;
+        }
+        if (message.length() > 0) {
+            out.writeUTF(message.toString());
+        }
+    }
+
+    /**
+     * Returns the number of bytes writeUTF needs for a string.
+     */
+
+    private static int utfLength(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
         }
+        return length;
     }
     
     /**
@@ -129,11 +399,16 @@ public class ClientHandler extends Thread {
     private void mkdir(String directoryName) throws IOException {
         try {
             Path newDir = currentDirectory.resolve(directoryName);
-            Files.createDirectory(newDir);
+            Lock lock = locks.write(newDir);
+            try {
+                Files.createDirectory(newDir);
+                updated(newDir);
+            } finally {
+                lock.unlock();
+            }
             out.writeUTF("Created directory: " + newDir);
         } catch (IOException e) {
-            out.writeUTF("Error creating directory: " + e.getMessage());
-            System.err.println("Error creating directory: " + e.getMessage());
+            error("Error creating directory: " + e.getMessage());
         }
     }
     
@@ -154,133 +429,1439 @@ public class ClientHandler extends Thread {
                     currentDirectory = newDir; // Change to the new directory
                 } else {
                     out.writeUTF("Directory does not exist: " + newDir);
+                    outcome = "error";
                     return;
                 }
             }
             out.writeUTF("Current directory changed to: " + currentDirectory);
         } catch (Exception e) {
-            out.writeUTF("Error changing directory: " + e.getMessage());
-            System.err.println("Error changing directory: " + e.getMessage());
+            error("Error changing directory: " + e.getMessage());
         }
     }
     
     /**
-     * Saves a file sent by the client.
+     * Saves a file sent by the client in the current directory.
+     * The file is preallocated from the announced size, then filled straight from the socket channel.
+     * It is written to a temporary file and renamed over the target once complete, see install.
      * 
      * @param fileName The name of the file to save.
      * @throws IOException If an error occurs during file upload.
      */
     
-	private void saveFile(String fileName) throws IOException { // Using https://stackoverflow.com/questions/858980/file-to-byte-in-java
-		DataInputStream dis = new DataInputStream(socket.getInputStream());
-		FileOutputStream fos = new FileOutputStream(fileName);
-		byte[] buffer = new byte[4096]; 
-		long fileSize = dis.readLong();
-		int read = 0;
-		while(fileSize > 0 && (read = dis.read(buffer)) > 0) {
-			fos.write(buffer, 0, read);
-			fileSize -= read;
+	private void saveFile(String fileName) throws IOException {
+		long fileSize = in.readLong();
+		long received = fileSize;
+		Path target = currentDirectory.resolve(fileName);
+		Path temporary = temporaryFor(target);
+		String mismatch = null;
+		try (FileChannel file = FileTransfer.openPreallocated(temporary, fileSize)) {
+			Integrity integrity = verifyMode != Integrity.Mode.OFF ? new Integrity(verifyMode) : null;
+			if (compressionLevel > 0) {
+				received = CompressedTransfer.receive(in, file, fileSize, bandwidth);
+				if (integrity != null) {
+					FileTransfer.checksum(file, 0, fileSize, transferBuffer(), integrity); // The inflated data is not in our buffer
+				}
+			} else {
+				FileTransfer.receive(file, 0, fileSize, socket, in, transferBuffer(), integrity, bandwidth);
+			}
+			if (integrity != null) {
+				mismatch = integrity.verify(in);
+			}
+			if (mismatch == null) {
+				durability.sync(file);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		transferred = received;
+		if (mismatch != null) {
+			Files.deleteIfExists(temporary);
+			error("Error saving " + fileName + ": " + mismatch);
+			return;
 		}
-		fos.close();
-		out.writeUTF(fileName + " succesfully uploaded");
+		try {
+			install(temporary, target);
+		} catch (IOException e) {
+			error("Error saving " + fileName + ": " + e.getMessage()); // The whole file was read, the session is still in step
+			return;
+		}
+		out.writeUTF(fileName + " succesfully uploaded" + compressionReport(fileSize, received));
 	}
 	
     /**
-     * Checks if a file exists in the current directory.
+     * Returns the temporary file an upload to the given target is written to, in the same directory
+     * so it can be renamed over the target. The name is unique to the session.
+     *
+     * @param target The file being uploaded.
+     * @return The temporary file.
+     */
+
+    Path temporaryFor(Path target) {
+        return target.resolveSibling("." + target.getFileName() + "." + clientNumber + ".upload");
+    }
+
+    /**
+     * Renames a completed upload over its target, so that readers see either the old or the new file,
+     * then syncs the directory as the durability policy requires and drops the cached state of the target.
+     *
+     * @param temporary The completed upload, from temporaryFor.
+     * @param target    The file it replaces.
+     * @throws IOException If the rename fails, in which case the temporary file is deleted.
+     */
+
+    void install(Path temporary, Path target) throws IOException {
+        boolean replaced;
+        Lock lock = locks.write(target); // Waits for the downloads opening the previous file
+        try {
+            replaced = ChunkStore.isShared(target);
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            forget(target);
+            updated(target);
+        } finally {
+            lock.unlock();
+        }
+        if (replaced) {
+            ChunkStore store = dedupStore();
+            if (store != null) {
+                store.collectLater(); // The previous contents may not be used anymore
+            }
+        }
+        durability.syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Returns the buffer used to move file data, allocated on first use.
+     *
+     * @return The direct transfer buffer of the session.
+     */
+
+    private ByteBuffer transferBuffer() {
+        if (transferBuffer == null) {
+            transferBuffer = ByteBuffer.allocateDirect(config.bufferSize);
+        }
+        return transferBuffer;
+    }
+
+    /**
+     * Returns the state of a chunked upload, shared by every session writing to the same file.
+     * A transfer started with a different size or chunk size is discarded and started over.
+     *
+     * @param target    The absolute path of the uploaded file.
+     * @param size      The size of the file.
+     * @param chunkSize The size of a chunk.
+     * @return The transfer state.
+     * @throws IOException If the state cannot be opened.
+     */
+
+    private static ChunkState chunkedUpload(Path target, long size, int chunkSize) throws IOException {
+        synchronized (chunkedUploads) {
+            ChunkState state = chunkedUploads.get(target);
+            if (state != null && (state.size() != size || state.chunkSize() != chunkSize)) {
+                state.close();
+                state = null;
+            }
+            if (state == null) {
+                state = ChunkState.open(target, size, chunkSize);
+                chunkedUploads.put(target, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Returns the state of a chunked upload already prepared with chunkinfo. After a restart the client
+     * sends chunkinfo again, which resumes the upload from its state files.
+     *
+     * @param target The absolute path of the uploaded file.
+     * @return The transfer state.
+     * @throws IOException If chunkinfo did not prepare an upload of this file.
+     */
+
+    private static ChunkState chunkedUpload(Path target) throws IOException {
+        synchronized (chunkedUploads) {
+            ChunkState state = chunkedUploads.get(target);
+            if (state == null) {
+                throw new IOException("No chunked upload of " + target + " in progress, start it with chunkinfo");
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Resolves the path of a chunk command against the current directory, so that a relative path
+     * names the same file as in the other commands; the path sent by chunkinfo or filesize is absolute.
+     */
+
+    private Path chunkPath(String name) {
+        return currentDirectory.resolve(name).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Prepares a chunked upload and sends the list of chunks the server does not have yet,
+     * so an interrupted upload resumes where it stopped.
+     * Arguments: the file size, the chunk size and the file name.
      * 
-     * @param fileName The name of the file to check.
-     * @return true if the file exists, false otherwise.
+     * @param arguments The arguments of the command.
      * @throws IOException If an I/O error occurs.
      */
 
-    private boolean isFileExist(String fileName) throws IOException {
-        Path filePath = currentDirectory.resolve(fileName);
-        if (Files.notExists(filePath)) {
-            out.writeUTF("File does not exist.");
-            return false;
+    private void chunkInfo(String arguments) throws IOException {
+        try {
+            String[] parts = arguments.split(" ", 3);
+            Path target = currentDirectory.resolve(parts[2]).toAbsolutePath().normalize();
+            ChunkState state = chunkedUpload(target, Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+            List<Integer> missing = state.missing();
+
+            out.writeUTF("Chunks");
+            out.writeUTF(target.toString()); // Absolute, so other connections can send chunks without cd
+            out.writeInt(missing.size());
+            for (int index : missing) {
+                out.writeInt(index);
+            }
+        } catch (IOException | RuntimeException e) {
+            error("Error preparing chunked upload: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Receives one chunk of a chunked upload: once the server answers READY, its length, its CRC32C and
+     * its bytes. The chunk is acknowledged only if the checksum matches. Malformed arguments or an upload
+     * that is not in progress are refused before READY, so the client sends nothing.
+     * Arguments: the chunk index and the absolute path sent by chunkinfo.
+     * 
+     * @param arguments The arguments of the command.
+     * @throws IOException If an I/O error occurs or the chunk does not match the upload.
+     */
+
+    private void putChunk(String arguments) throws IOException {
+        String[] parts = arguments.split(" ", 2);
+        if (parts.length < 2) {
+            error("Usage: putchunk <index> <path>");
+            return;
+        }
+        int index;
+        ChunkState state;
+        try {
+            index = Integer.parseInt(parts[0]);
+            state = chunkedUpload(chunkPath(parts[1]));
+            state.checkIndex(index);
+        } catch (IllegalArgumentException e) { // Malformed index or path
+            error("Invalid putchunk arguments: " + arguments);
+            return;
+        } catch (IOException e) {
+            error(e.getMessage());
+            return;
+        }
+        out.writeUTF(READY);
+
+        long length = in.readLong();
+        int expected = in.readInt();
+        if (length != state.length(index)) {
+            throw new IOException("Chunk " + index + " has " + length + " bytes, expected " + state.length(index));
+        }
+
+        CRC32C crc = new CRC32C();
+        FileTransfer.receive(state.data(), state.offset(index), length, socket, in, transferBuffer(), crc, bandwidth);
+        transferred = length;
+        if ((int) crc.getValue() == expected) {
+            state.markDone(index);
+            out.writeUTF("Chunk " + index + " ok");
         } else {
-            out.writeUTF("Sending file...");
-            return true;
+            out.writeUTF("Chunk " + index + " checksum mismatch");
+            outcome = "error";
         }
     }
-    
+
+    /**
+     * Completes a chunked upload by moving the assembled file in place.
+     * 
+     * @param target The absolute path sent by chunkinfo.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void commitChunks(String target) throws IOException {
+        Path path = chunkPath(target);
+        try {
+            synchronized (chunkedUploads) {
+                ChunkState state = chunkedUpload(path);
+                List<Integer> missing = state.missing();
+                if (!missing.isEmpty()) {
+                    out.writeUTF("Upload incomplete: " + missing.size() + " chunks missing");
+                    return;
+                }
+                state.commit(durability);
+                chunkedUploads.remove(path);
+                updated(path);
+                forget(path);
+            }
+            out.writeUTF(path.getFileName() + " succesfully uploaded");
+        } catch (IOException e) {
+            error("Error completing chunked upload: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the absolute path and size of a file, the first step of a chunked download.
+     * 
+     * @param fileName The name of the file.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void fileSize(String fileName) throws IOException {
+        Path path = currentDirectory.resolve(fileName).toAbsolutePath().normalize();
+        if (!Files.isRegularFile(path)) {
+            out.writeUTF("File does not exist.");
+            outcome = "error";
+            return;
+        }
+        synchronized (chunkedDownloads) {
+            chunkedDownloads.put(path, Boolean.TRUE);
+        }
+        out.writeUTF("Size");
+        out.writeUTF(path.toString());
+        out.writeLong(Files.size(path));
+    }
+
+    /**
+     * Sends one chunk of a file: its length, its CRC32C and its bytes.
+     * A negative length is followed by an error message instead.
+     * Arguments: the chunk index, the chunk size and the absolute path sent by filesize.
+     * The chunk is read from the file, not the hot-file cache, since its CRC is computed from its bytes.
+     * The file is opened under its read lock, like a download.
+     * 
+     * @param arguments The arguments of the command.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void getChunk(String arguments) throws IOException {
+        String[] parts = arguments.split(" ", 3);
+        int index;
+        int chunkSize;
+        Path path;
+        try {
+            if (parts.length < 3) {
+                throw new IllegalArgumentException("Usage: getchunk <index> <chunk size> <path>");
+            }
+            index = Integer.parseInt(parts[0]);
+            chunkSize = Integer.parseInt(parts[1]);
+            path = chunkPath(parts[2]);
+        } catch (IllegalArgumentException e) { // Malformed index, chunk size or path
+            out.writeLong(-1);
+            error(parts.length < 3 ? e.getMessage() : "Invalid getchunk arguments: " + arguments);
+            return;
+        }
+        boolean handedOut;
+        synchronized (chunkedDownloads) {
+            handedOut = chunkedDownloads.containsKey(path);
+        }
+        if (!handedOut) {
+            out.writeLong(-1);
+            out.writeUTF("No chunked download of " + path + " in progress, start it with filesize");
+            outcome = "error";
+            return;
+        }
+
+        FileChannel opened;
+        Lock lock = locks.read(path);
+        try {
+            opened = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            out.writeLong(-1);
+            out.writeUTF("File does not exist.");
+            outcome = "error";
+            return;
+        } finally {
+            lock.unlock();
+        }
+        try (FileChannel file = opened) {
+            long offset = (long) index * chunkSize;
+            if (index < 0 || chunkSize <= 0 || offset >= file.size()) {
+                out.writeLong(-1);
+                out.writeUTF("Chunk " + index + " out of range");
+                return;
+            }
+            long length = Math.min(chunkSize, file.size() - offset);
+            CRC32C crc = new CRC32C();
+            FileTransfer.checksum(file, offset, length, transferBuffer(), crc);
+
+            out.writeLong(length);
+            out.writeInt((int) crc.getValue());
+            FileTransfer.send(file, offset, length, socket, out, bandwidth);
+            transferred = length;
+        }
+    }
+
     /**
-     * Sends a file to the client.
+     * Sends a file to the client: "Sending file..." once the file is open (or "File does not exist."), its
+     * length, then its contents handed to the socket with transferTo, or written from memory when the file
+     * is in the hot-file cache, then the trailer set by verify. The file is checked and opened under its
+     * read lock, so it cannot be deleted or replaced in between; the contents are sent from the open
+     * channel or mapping once the lock is released.
      * 
      * @param fileName The name of the file to send.
      * @throws IOException If an error occurs during file download.
      */
 
-	private void sendFile(String fileName) throws IOException { 
-		
-		File file = currentDirectory.resolve(fileName).toFile();
-		DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-		FileInputStream fis = new FileInputStream(file.toString());
-		byte[] buffer = new byte[4096];
-		int read;
-		dos.writeLong(file.length());
-		while ((read=fis.read(buffer)) > 0) {
-			dos.write(buffer, 0, read);
+	private void sendFile(String fileName) throws IOException {
+		sendFile(fileName, null);
+	}
+
+    /**
+     * Sends a file, or the part of it given by a range, which is announced with "Sending bytes first-last/size"
+     * instead of "Sending file..." and followed by the same length, contents and trailer as a whole file.
+     * The bytes are read at their offset in the file, so a range costs its own length whatever the size
+     * of the file.
+     *
+     * @param fileName The name of the file to send.
+     * @param range    The part of the file to send, or null for the whole file.
+     * @throws IOException If an error occurs during file download.
+     */
+
+	private void sendFile(String fileName, DownloadRange range) throws IOException {
+		Path path = currentDirectory.resolve(fileName);
+		long size;
+		long sent;
+		ByteBuffer cached;
+		FileChannel opened = null;
+		Lock lock = locks.read(path);
+		try {
+			cached = compressionLevel == 0 && verifyMode == Integrity.Mode.OFF ? cached(path) : null; // A trailer reads the bytes
+			if (cached == null) {
+				opened = FileChannel.open(path, StandardOpenOption.READ);
+			}
+			size = cached != null ? cached.remaining() : opened.size();
+		} catch (NoSuchFileException e) {
+			out.writeUTF("File does not exist.");
+			outcome = "error";
+			return;
+		} catch (IOException e) {
+			if (opened != null) {
+				opened.close();
+			}
+			error("Error opening " + fileName + ": " + e.getMessage());
+			return;
+		} finally {
+			lock.unlock();
+		}
+		long start = range != null ? range.start(size) : 0;
+		long count = range != null ? range.count(size) : size;
+		if (start < 0) {
+			if (opened != null) {
+				opened.close();
+			}
+			error("Range starts after the end of " + fileName + " (" + size + " bytes)");
+			return;
+		}
+		try {
+			out.writeUTF(range != null ? "Sending " + range.describe(size) : "Sending file...");
+		} catch (IOException e) {
+			if (opened != null) {
+				opened.close();
+			}
+			throw e;
+		}
+		String done = fileName + " succesfully downloaded" + (range != null ? " (" + range.describe(size) + ")" : "");
+		if (cached != null) {
+			cached.position((int) start).limit((int) (start + count));
+			out.writeLong(count);
+			out.flush();
+			FileTransfer.send(cached, socket.getChannel(), bandwidth); // Straight from memory
+			transferred = count;
+			out.writeUTF(done);
+			return;
 		}
-		fis.close();
-		out.writeUTF(fileName + " succesfully downloaded");
+		try (FileChannel file = opened) {
+			sent = count;
+			out.writeLong(count);
+			if (compressionLevel > 0) {
+				sent = CompressedTransfer.send(file, start, count, out, compressionLevel, bandwidth);
+			} else {
+				FileTransfer.send(file, start, count, socket, out, bandwidth); // Zero-copy when the socket has a channel
+			}
+			if (verifyMode != Integrity.Mode.OFF) {
+				Integrity.of(verifyMode, file, start, count, transferBuffer()).writeTrailer(out); // Read back from the page cache
+			}
+		}
+		transferred = sent;
+		out.writeUTF(done + compressionReport(count, sent));
 	}
 
     /**
-     * Deletes a file or directory in the current directory.
-     * 
-     * @param name The name of the file or directory to delete.
-     * @throws IOException If an error occurs during deletion.
+     * Answers "download -range" and "download -follow": sends part of a file, or keeps sending the bytes
+     * appended to it until the client stops, see DownloadRange and FollowTransfer.
+     *
+     * @param argument The options and the name of the file.
+     * @throws IOException If an I/O error occurs on the socket.
      */
 
-    private void delete(String name) throws IOException {
+    private void sendRange(String argument) throws IOException {
+        DownloadRange range;
         try {
-            Path pathToDelete = currentDirectory.resolve(name);
-            if (Files.exists(pathToDelete)) {
-                Files.delete(pathToDelete);
-                out.writeUTF("Deleted: " + pathToDelete);
+            range = DownloadRange.parse(argument);
+        } catch (IllegalArgumentException e) {
+            error(e.getMessage());
+            return;
+        }
+        if (!range.follow) {
+            sendFile(range.name, range);
+            return;
+        }
+
+        Path path = currentDirectory.resolve(range.name);
+        FileChannel file = null;
+        Object fileKey;
+        Lock lock = locks.read(path);
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            if (file != null) {
+                file.close();
+            }
+            if (e instanceof NoSuchFileException) {
+                out.writeUTF("File does not exist.");
+                outcome = "error";
             } else {
-                out.writeUTF("File or directory does not exist: " + pathToDelete);
+                error("Error opening " + range.name + ": " + e.getMessage());
             }
-        } catch (IOException e) {
-            out.writeUTF("Error deleting file/directory: " + e.getMessage());
-            System.err.println("Error deleting file/directory: " + e.getMessage());
+            return;
+        } finally {
+            lock.unlock();
         }
+        long size = file.size();
+        long start = range.start(size);
+        if (start < 0) {
+            file.close();
+            error("Range starts after the end of " + range.name + " (" + size + " bytes)");
+            return;
+        }
+
+        out.writeUTF("Following " + range.name + " from byte " + start + " of " + size);
+        transferred = FollowTransfer.send(path, file, fileKey, start, in, out, config.followPollMillis, bandwidth, locks);
+        out.writeUTF("Stopped following " + range.name + " after " + transferred + " bytes");
     }
 
     /**
-     * The main logic for handling client commands. 
-     * It reads commands from the client, processes them, and sends responses back.
+     * Tells whether a download argument asks for an archive: a directory, or any path preceded by a
+     * format ("-tar", "-tgz" or "-zip").
+     *
+     * @param argument The argument of download.
+     * @return true if the download is sent by sendArchive.
      */
 
-    public void run() {
-        try {
-            out = new DataOutputStream(socket.getOutputStream());
-            in = new DataInputStream(socket.getInputStream());
-            out.writeUTF("Hello from server - you are client#" + clientNumber); 
+    boolean isArchiveDownload(String argument) {
+        if (DownloadRange.isRequested(argument)) {
+            return false;
+        }
+        return argument.startsWith("-") || Files.isDirectory(currentDirectory.resolve(argument));
+    }
 
-            String clientCommand;
-            String clientAddress = socket.getInetAddress().getHostAddress();
-            int clientPort = socket.getPort();
-            while (true) {
-                clientCommand = in.readUTF();
+    /**
+     * Sends a directory tree as one archive streamed while the tree is walked, then a summary of the entries
+     * sent. The format is tar, or a gzipped tar once the session has enabled compression, unless the argument
+     * starts with "-tar", "-tgz" or "-zip". The client is told the format with "Sending archive <format>".
+     *
+     * @param argument The directory to send, optionally preceded by the format.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void sendArchive(String argument) throws IOException {
+        Archive.Format format = compressionLevel > 0 ? Archive.Format.TGZ : Archive.Format.TAR;
+        String name = argument;
+        if (argument.startsWith("-")) {
+            String[] option = argument.split(" ", 2);
+            try {
+                format = Archive.parse(option[0].substring(1));
+            } catch (IllegalArgumentException e) {
+                error(e.getMessage());
+                return;
+            }
+            name = option.length > 1 ? option[1].trim() : "";
+        }
+        Path root = currentDirectory.resolve(name).normalize();
+        if (name.isEmpty() || Files.notExists(root)) {
+            out.writeUTF("File does not exist.");
+            outcome = "error";
+            return;
+        }
+
+        out.writeUTF("Sending archive " + format.name().toLowerCase(Locale.ROOT));
+        int level = compressionLevel > 0 ? compressionLevel : Deflater.DEFAULT_COMPRESSION;
+        Integrity integrity = verifyMode != Integrity.Mode.OFF ? new Integrity(verifyMode) : null;
+        Archive.Report report = Archive.write(root, format, level, out, bandwidth, integrity);
+        transferred = report.bytes;
+        out.writeUTF(summary("Sent " + report.files + " files and " + report.directories + " directories ("
+                + report.bytes + " bytes)", report.errors));
+    }
+
+    /**
+     * Returns the contents of a file from the hot-file cache.
+     *
+     * @param path The file to send.
+     * @return A buffer over the whole file, or null if it must be read from disk.
+     * @throws IOException If the file cannot be read.
+     */
+
+    private ByteBuffer cached(Path path) throws IOException {
+        if (files == null || socket == null || socket.getChannel() == null) {
+            return null; // Mappings are only written to channels, see FileCache
+        }
+        return files.get(path);
+    }
+
+    /**
+     * Drops a file the server writes, replaces or deletes from the hot-file cache.
+     */
+
+    private void forget(Path path) {
+        if (files != null) {
+            files.invalidate(path);
+        }
+    }
+
+    /**
+     * Enables or disables compression of the upload and download commands for the rest of the session.
+     * 
+     * @param level A Deflater level from 1 (fastest) to 9 (smallest), or "off".
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void compress(String level) throws IOException {
+        if (level.equals("off")) {
+            compressionLevel = 0;
+            out.writeUTF("Compression off");
+            return;
+        }
+        try {
+            int value = Integer.parseInt(level);
+            if (value < 1 || value > 9) {
+                throw new NumberFormatException();
+            }
+            compressionLevel = value;
+            out.writeUTF("Compression level set to " + value);
+        } catch (NumberFormatException e) {
+            out.writeUTF("Invalid compression level: " + level + " (expected 1-9 or off)");
+            outcome = "error";
+        }
+    }
+
+    /**
+     * Sets the checksum trailer following the data of the upload and download commands for the rest
+     * of the session, see Integrity.
+     * 
+     * @param mode "crc32c", "sha256" (CRC32C and SHA-256) or "off".
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void verify(String mode) throws IOException {
+        try {
+            verifyMode = Integrity.parse(mode);
+            if (verifyMode == Integrity.Mode.OFF) {
+                out.writeUTF("Verification off");
+            } else {
+                out.writeUTF("Verification set to " + verifyMode.name().toLowerCase(Locale.ROOT));
+            }
+        } catch (IllegalArgumentException e) {
+            out.writeUTF(e.getMessage());
+            outcome = "error";
+        }
+    }
+
+    /**
+     * Describes the compression achieved by a transfer, empty when compression is off.
+     */
+
+    private String compressionReport(long size, long transferred) {
+        return compressionLevel > 0 ? " (" + CompressedTransfer.ratio(size, transferred) + ")" : "";
+    }
+
+    /**
+     * Saves a file through the deduplicating store. The client sends the size, the chunk size and the
+     * SHA-256 of every chunk; the server answers with the chunks it does not hold yet and the client
+     * sends only those, after READY. A file whose content is already stored costs no transfer and no write.
+     * 
+     * @param fileName The name of the file to save.
+     * @throws IOException If an I/O error occurs on the socket or the announcement is malformed.
+     */
+
+    private void dedupUpload(String fileName) throws IOException {
+        ChunkStore store;
+        try {
+            store = dedupStore();
+        } catch (IOException e) {
+            error("Error opening the deduplicating store: " + e.getMessage());
+            return;
+        }
+        if (store == null) {
+            out.writeUTF("Deduplicated uploads are disabled on this server");
+            outcome = "error";
+            return;
+        }
+        out.writeUTF(READY);
+
+        long size = in.readLong();
+        int chunkSize = in.readInt();
+        int count = in.readInt();
+        if (size < 0 || chunkSize < ChunkStore.MIN_CHUNK_SIZE || chunkSize > ChunkStore.MAX_CHUNK_SIZE
+                || count < 0 || count > ChunkStore.MAX_CHUNKS || count != (size + chunkSize - 1) / chunkSize) {
+            throw new IOException("Invalid dupload layout: size " + size + ", chunk size " + chunkSize + ", " + count + " chunks");
+        }
+        byte[][] hashes = new byte[count][ChunkStore.HASH_SIZE];
+        for (byte[] hash : hashes) {
+            in.readFully(hash);
+        }
+
+        List<Integer> missing = store.missing(hashes);
+        out.writeUTF("Chunks");
+        out.writeInt(missing.size());
+        for (int index : missing) {
+            out.writeInt(index);
+        }
+
+        for (int index : missing) {
+            transferred += Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+        Path target = currentDirectory.resolve(fileName);
+        try {
+            store.store(target, size, chunkSize, hashes, missing, socket, in, transferBuffer(), bandwidth);
+            updated(target);
+            forget(target);
+            out.writeUTF(fileName + " succesfully uploaded (" + (count - missing.size()) + " of " + count
+                    + " chunks already stored)");
+        } catch (IOException e) {
+            error("Error storing " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Updates a file by receiving only the parts the server does not already hold (see DeltaSync).
+     * The server sends the signatures of its copy, or none if the file does not exist yet, and
+     * rebuilds the new version in a temporary file next to it. The temporary file replaces the old
+     * one only once its SHA-256 matches the client's, so a session that breaks or sends a bad delta
+     * leaves the old version in place.
+     * 
+     * @param fileName The name of the file to update.
+     * @throws IOException If an I/O error occurs on the socket or an instruction is invalid.
+     */
+
+    private void deltaUpload(String fileName) throws IOException {
+        Path target = currentDirectory.resolve(fileName);
+        if (Files.isDirectory(target)) {
+            out.writeUTF(fileName + " is a directory");
+            outcome = "error";
+            return;
+        }
+        Path temporary = temporaryFor(target);
+        int blocks;
+        long reused;
+        try (FileChannel base = Files.isRegularFile(target) ? FileChannel.open(target, StandardOpenOption.READ) : null;
+                FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.writeUTF("Signatures");
+            long size = base != null ? base.size() : 0;
+            int blockSize = DeltaSync.blockSize(size);
+            blocks = DeltaSync.writeSignatures(base, blockSize,
+                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)));
+
+            DeltaSync.Result result = DeltaSync.apply(base, blockSize, blocks, file, socket, in, transferBuffer(), bandwidth);
+            transferred = result.literalBytes;
+            reused = result.reusedBlocks;
+            if (result.hash == null) {
+                Files.deleteIfExists(temporary);
+                error("Error updating " + fileName + ": the rebuilt file does not match the client's");
+                return;
+            }
+            durability.sync(file);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        try {
+            install(temporary, target);
+        } catch (IOException e) {
+            error("Error updating " + fileName + ": " + e.getMessage());
+            return;
+        }
+        out.writeUTF(fileName + " succesfully updated (" + transferred + " bytes sent, " + reused + " of " + blocks
+                + " blocks reused)");
+    }
+
+    /**
+     * Returns the deduplicating store, opened on first use.
+     *
+     * @return The store, or null if deduplicated uploads are disabled.
+     * @throws IOException If the store cannot be opened.
+     */
+
+    private ChunkStore dedupStore() throws IOException {
+        synchronized (ClientHandler.class) {
+            if (dedupStore == null && !config.dedupStore.isEmpty()) {
+                dedupStore = ChunkStore.open(Paths.get(config.dedupStore));
+            }
+            return dedupStore;
+        }
+    }
+
+    /**
+     * Unlinks a file that shares its contents with the deduplicating store, so it can be written
+     * or deleted without touching the stored copy, and releases that copy once nothing uses it.
+     * The file is also dropped from the hot-file cache.
+     *
+     * @param path The file about to be overwritten or deleted.
+     * @return true if the file was unlinked.
+     * @throws IOException If the file cannot be unlinked.
+     */
+
+    boolean unshare(Path path) throws IOException {
+        forget(path);
+        if (!ChunkStore.isShared(path)) {
+            return false;
+        }
+        Files.delete(path);
+        ChunkStore store = dedupStore();
+        if (store != null) {
+            store.collectLater();
+        }
+        return true;
+    }
+
+    /**
+     * Saves the files of a batch upload. Once the server answers READY, the client sends a manifest (the number
+     * of files, then the relative path and size of each) followed by the contents of every file back to back.
+     * Missing parent directories are created. Each file is renamed into place once received. A file
+     * that cannot be created is skipped without breaking the stream, and a single summary is sent once
+     * every file has been received.
+     * 
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void batchSave() throws IOException {
+        out.writeUTF(READY);
+        int count = in.readInt();
+        if (count < 0 || count > MAX_BATCH_FILES) {
+            throw new IOException("Invalid mupload manifest: " + count + " files");
+        }
+        String[] names = new String[count];
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+            sizes[i] = in.readLong();
+            if (sizes[i] < 0) {
+                throw new IOException("Invalid mupload manifest: " + names[i] + " has a size of " + sizes[i]);
+            }
+        }
+
+        List<String> errors = new ArrayList<>();
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            FileChannel file;
+            try {
+                Path target = currentDirectory.resolve(names[i]);
+                if (target.getParent() != null) {
+                    Files.createDirectories(target.getParent());
+                }
+                file = FileTransfer.openPreallocated(temporaryFor(target), sizes[i]);
+            } catch (IOException e) {
+                errors.add(names[i] + ": " + e.getMessage());
+                FileTransfer.skip(sizes[i], socket, in, transferBuffer());
+                continue;
+            }
+            Path target = currentDirectory.resolve(names[i]);
+            try (file) {
+                FileTransfer.receive(file, 0, sizes[i], socket, in, transferBuffer(), null, bandwidth);
+                durability.sync(file);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporaryFor(target));
+                throw e;
+            }
+            try {
+                install(temporaryFor(target), target);
+            } catch (IOException e) {
+                errors.add(names[i] + ": " + e.getMessage());
+                continue;
+            }
+            changed(target);
+            bytes += sizes[i];
+        }
+        transferred = bytes;
+        out.writeUTF(summary("Uploaded " + (count - errors.size()) + " of " + count + " files (" + bytes + " bytes)", errors));
+    }
+
+    /**
+     * Sends a list of files in one stream, after READY: for each file its size, or -1 if it cannot be read, then
+     * its contents. A single summary follows the last file. Each file is checked and opened under its read
+     * lock, like a download, and one that cannot be opened only adds an error to the summary.
+     * 
+     * @param fileNames The names of the files, separated by spaces.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void batchSend(String fileNames) throws IOException {
+        String[] names = fileNames.trim().split("\\s+");
+        List<String> errors = new ArrayList<>();
+        long bytes = 0;
+        out.writeUTF(READY);
+        for (String name : names) {
+            FileChannel opened = null;
+            String error = "File does not exist.";
+            try {
+                Path path = currentDirectory.resolve(name);
+                Lock lock = locks.read(path);
+                try {
+                    if (Files.isRegularFile(path)) {
+                        opened = FileChannel.open(path, StandardOpenOption.READ);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (NoSuchFileException e) {
+                // Removed from outside the server
+            } catch (IOException | InvalidPathException e) {
+                error = e.getMessage();
+            }
+            if (opened == null) {
+                out.writeLong(-1);
+                errors.add(name + ": " + error);
+                continue;
+            }
+            try (FileChannel file = opened) {
+                long size = file.size();
+                out.writeLong(size);
+                FileTransfer.send(file, 0, size, socket, out, bandwidth);
+                bytes += size;
+            }
+        }
+        transferred = bytes;
+        out.writeUTF(summary("Downloaded " + (names.length - errors.size()) + " of " + names.length + " files (" + bytes + " bytes)", errors));
+    }
+
+    /**
+     * Deletes a list of files or empty directories and reports the outcome in one message.
+     * 
+     * @param names The names of the entries, separated by spaces.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void batchDelete(String names) throws IOException {
+        String[] entries = names.trim().split("\\s+");
+        List<String> errors = new ArrayList<>();
+        for (String name : entries) {
+            Lock lock = locks.write(currentDirectory.resolve(name));
+            try {
+                if (!unshare(currentDirectory.resolve(name))) {
+                    Files.delete(currentDirectory.resolve(name));
+                }
+                updated(currentDirectory.resolve(name));
+            } catch (NoSuchFileException e) {
+                errors.add(name + ": does not exist");
+            } catch (IOException e) {
+                errors.add(name + ": " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        out.writeUTF(summary("Deleted " + (entries.length - errors.size()) + " of " + entries.length + " entries", errors));
+    }
+
+    /**
+     * Creates a list of directories, with their missing parents, and reports the outcome in one message.
+     * Each directory is created under its write lock, like mkdir.
+     * 
+     * @param names The names of the directories, separated by spaces.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void batchMkdir(String names) throws IOException {
+        String[] entries = names.trim().split("\\s+");
+        List<String> errors = new ArrayList<>();
+        for (String name : entries) {
+            Path directory = currentDirectory.resolve(name);
+            Lock lock = locks.write(directory);
+            try {
+                changed(Files.createDirectories(directory));
+            } catch (IOException e) {
+                errors.add(name + ": " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        out.writeUTF(summary("Created " + (entries.length - errors.size()) + " of " + entries.length + " directories", errors));
+    }
+
+    /**
+     * Records a path the server created, replaced or deleted: drops the cached listing of its directory
+     * and updates its entry in the file index.
+     */
+
+    private void updated(Path path) {
+        listings.changed(path);
+        if (index != null) {
+            index.refresh(path);
+        }
+    }
+
+    /**
+     * Drops the cached listings of a path and of every parent directory up to the current directory,
+     * which a batch command may have created along the way.
+     */
+
+    private void changed(Path path) {
+        for (Path p = path.normalize(); p != null && p.startsWith(currentDirectory); p = p.getParent()) {
+            updated(p);
+        }
+    }
+
+    /**
+     * Builds the answer of a batch command: a headline followed by the first failures.
+     * 
+     * @param headline The outcome of the command.
+     * @param errors   The failures, one per entry.
+     * @return The message to send.
+     */
+
+    private String summary(String headline, List<String> errors) {
+        if (!errors.isEmpty()) {
+            outcome = "partial";
+        }
+        StringBuilder summary = new StringBuilder(headline);
+        for (int i = 0; i < Math.min(errors.size(), MAX_REPORTED_ERRORS); i++) {
+            summary.append("\n  ").append(errors.get(i));
+        }
+        if (errors.size() > MAX_REPORTED_ERRORS) {
+            summary.append("\n  ... and ").append(errors.size() - MAX_REPORTED_ERRORS).append(" more");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Deletes a file or directory in the current directory.
+     * 
+     * @param name The name of the file or directory to delete.
+     * @throws IOException If an error occurs during deletion.
+     */
+
+    private void delete(String name) throws IOException {
+        try {
+            Path pathToDelete = currentDirectory.resolve(name);
+            boolean deleted = false;
+            Lock lock = locks.write(pathToDelete); // Waits for the downloads opening the file
+            try {
+                if (Files.exists(pathToDelete)) {
+                    if (!unshare(pathToDelete)) {
+                        Files.delete(pathToDelete);
+                    }
+                    updated(pathToDelete);
+                    deleted = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (deleted) {
+                out.writeUTF("Deleted: " + pathToDelete);
+            } else {
+                out.writeUTF("File or directory does not exist: " + pathToDelete);
+                outcome = "error";
+            }
+        } catch (IOException e) {
+            error("Error deleting file/directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tells whether a command walks a whole tree on the server: copy, move and "delete -r".
+     *
+     * @param command The command and its argument.
+     * @return true for a tree command.
+     */
+
+    static boolean isTreeCommand(String[] command) {
+        return command[0].equals("copy") || command[0].equals("move")
+                || (command[0].equals("delete") && command[1].startsWith("-r "));
+    }
+
+    /**
+     * Deletes a directory with all its contents, or a single file. The tree is deleted in parallel by the
+     * shared pool, and a progress message is sent every second until a summary reports what was deleted.
+     *
+     * @param name The name of the file or directory to delete.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void deleteTree(String name) throws IOException {
+        Path root = currentDirectory.resolve(name).normalize();
+        if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            out.writeUTF("File or directory does not exist: " + root);
+            outcome = "error";
+            return;
+        }
+        if (currentDirectory.normalize().startsWith(root)) {
+            error("Cannot delete " + root + ": it contains the current directory");
+            return;
+        }
+        ParallelTree.Progress progress = new ParallelTree.Progress(MAX_REPORTED_ERRORS);
+        ForkJoinTask<Void> walk = ParallelTree.delete(ParallelTree.pool(config), root, progress);
+        try {
+            awaitTree(walk, progress, "Deleted");
+        } finally {
+            treeChanged(root, true);
+        }
+        out.writeUTF(treeSummary("Deleted", progress));
+    }
+
+    /**
+     * Copies a file or directory tree to a path that does not exist yet, in parallel, with the same
+     * progress messages as "delete -r".
+     *
+     * @param arguments The source and the destination, separated by a space.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void copyTree(String arguments) throws IOException {
+        Path[] paths = treeArguments("copy", arguments);
+        if (paths == null) {
+            return;
+        }
+        ParallelTree.Progress progress = new ParallelTree.Progress(MAX_REPORTED_ERRORS);
+        ForkJoinTask<Void> walk = ParallelTree.copy(ParallelTree.pool(config), paths[0], paths[1], progress);
+        try {
+            awaitTree(walk, progress, "Copied");
+        } finally {
+            changed(paths[1]);
+        }
+        out.writeUTF(treeSummary("Copied", progress));
+    }
+
+    /**
+     * Moves or renames a file or directory tree. Within a file system this is a single rename; otherwise
+     * the tree is copied and deleted in parallel, with progress messages.
+     *
+     * @param arguments The source and the destination, separated by a space.
+     * @throws IOException If an I/O error occurs on the socket.
+     */
+
+    private void moveTree(String arguments) throws IOException {
+        Path[] paths = treeArguments("move", arguments);
+        if (paths == null) {
+            return;
+        }
+        if (currentDirectory.normalize().startsWith(paths[0])) {
+            error("Cannot move " + paths[0] + ": it contains the current directory");
+            return;
+        }
+        ParallelTree.Progress progress = new ParallelTree.Progress(MAX_REPORTED_ERRORS);
+        ForkJoinTask<Void> walk;
+        try {
+            walk = ParallelTree.move(ParallelTree.pool(config), paths[0], paths[1], progress);
+        } catch (FileAlreadyExistsException e) {
+            error("Destination already exists: " + paths[1]);
+            return;
+        } catch (IOException e) {
+            error("Error moving " + paths[0] + ": " + e.getMessage());
+            return;
+        }
+        try {
+            if (walk != null) {
+                awaitTree(walk, progress, "Moved");
+            }
+        } finally {
+            treeChanged(paths[0], walk == null || progress.files.sum() > 0);
+            changed(paths[1]);
+        }
+        out.writeUTF(walk == null ? "Moved: " + paths[0] + " -> " + paths[1] : treeSummary("Moved", progress));
+    }
+
+    /**
+     * Reads the source and destination of copy or move, and checks that the source exists and that the
+     * destination is free and not inside the source.
+     *
+     * @return The normalized source and destination, or null once the error has been reported.
+     */
+
+    private Path[] treeArguments(String command, String arguments) throws IOException {
+        String[] names = arguments.trim().split("\\s+");
+        if (names.length != 2) {
+            error("Usage: " + command + " <source> <destination>");
+            return null;
+        }
+        Path source = currentDirectory.resolve(names[0]).normalize();
+        Path target = currentDirectory.resolve(names[1]).normalize();
+        if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+            error("File or directory does not exist: " + source);
+            return null;
+        }
+        if (target.startsWith(source)) {
+            error("Cannot " + command + " " + source + " into itself");
+            return null;
+        }
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            error("Destination already exists: " + target);
+            return null;
+        }
+        return new Path[] {source, target};
+    }
+
+    /**
+     * Waits for a tree walk, sending the counters to the client every second. If the client cannot be
+     * reached anymore the walk is cancelled, leaving the entries it has not reached in place.
+     */
+
+    private void awaitTree(ForkJoinTask<Void> walk, ParallelTree.Progress progress, String verb) throws IOException {
+        while (true) {
+            try {
+                walk.get(TREE_PROGRESS_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                try {
+                    out.writeUTF(verb + " " + progress.files.sum() + " files and " + progress.directories.sum()
+                            + " directories so far...");
+                    out.flush();
+                } catch (IOException closed) {
+                    progress.cancel();
+                    throw closed;
+                }
+            } catch (ExecutionException e) {
+                progress.failed(currentDirectory, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                return;
+            } catch (InterruptedException e) {
+                progress.cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during a tree command");
+            }
+        }
+    }
+
+    /**
+     * Drops the cached listings and mappings of a tree the server removed, and the deduplicated chunks
+     * only its files used.
+     */
+
+    private void treeChanged(Path root, boolean removed) throws IOException {
+        listings.changedTree(root);
+        if (index != null) {
+            index.refresh(root);
+        }
+        if (files != null) {
+            files.invalidateTree(root);
+        }
+        if (removed) {
+            ChunkStore store = dedupStore();
+            if (store != null) {
+                store.collectLater();
+            }
+        }
+    }
+
+    /**
+     * Builds the answer of a tree command from its counters.
+     */
+
+    private String treeSummary(String verb, ParallelTree.Progress progress) {
+        List<String> errors = new ArrayList<>(progress.errors);
+        String headline = verb + " " + progress.files.sum() + " files and " + progress.directories.sum()
+                + " directories (" + progress.bytes.sum() + " bytes)";
+        if (progress.failures.get() > 0) {
+            headline += ", " + progress.failures.get() + " failed";
+        }
+        transferred = progress.bytes.sum();
+        return summary(headline, errors);
+    }
+
+    /**
+     * Returns the rate limit of the file transfers of this session.
+     *
+     * @return The bucket of the session, or null if no limit is configured.
+     */
+
+    Bandwidth bandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Returns the hot-file cache shared by the sessions.
+     *
+     * @return The cache, or null if it is disabled.
+     */
+
+    FileCache files() {
+        return files;
+    }
+
+    /**
+     * Records a command in the access log and in the server metrics.
+     * Unknown commands share a single metric, so that clients cannot create one per typo.
+     *
+     * @param clientCommand The raw command line sent by the client.
+     * @param bytes         The number of file bytes transferred by the command.
+     * @param start         The System.nanoTime at which the command was received.
+     * @param outcome       "ok", "error" or the reason the command failed.
+     */
+
+    void logCommand(String clientCommand, long bytes, long start, String outcome) {
+        long duration = System.nanoTime() - start;
+        accessLog.record(client, clientCommand, bytes, duration, outcome);
+        String name = outcome.equals("unknown") ? "unknown" : clientCommand.trim().split(" ", 2)[0];
+        Metrics.shared().commandDone(name, duration, bytes, !outcome.equals("ok"));
+    }
+
+    /**
+     * Sends an error message to the client, prints it on the server console and marks the command as failed.
+     *
+     * @param message The error message.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void error(String message) throws IOException {
+        out.writeUTF(message);
+        System.err.println(message);
+        outcome = "error";
+    }
+
+    /**
+     * Executes a single command and records it in the access log.
+     * A command that breaks the connection is logged with the reason before the exception is passed on.
+     * A runtime error (e.g. a malformed path or number) is answered as an error and the session goes on,
+     * except in a command streaming data, which may have left part of it on the socket.
+     *
+     * @param clientCommand The raw command line sent by the client.
+     * @param command       The command split by command().
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void execute(String clientCommand, String[] command) throws IOException {
+        long start = System.nanoTime();
+        transferred = 0;
+        outcome = "ok";
+        try {
+            handleCommand(command);
+        } catch (RuntimeException e) {
+            if (STREAMING_COMMANDS.contains(command[0])) {
+                logCommand(clientCommand, transferred, start, "failed: " + e);
+                throw e;
+            }
+            error("Error executing " + command[0] + ": " + e);
+        } catch (IOException e) {
+            logCommand(clientCommand, transferred, start, "failed: " + e.getMessage());
+            throw e;
+        }
+        logCommand(clientCommand, transferred, start, outcome);
+    }
+
+    /**
+     * Executes a single command, then signals the end of its responses to the client.
+     *
+     * @param clientCommand The raw command line sent by the client.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    void process(String clientCommand) throws IOException {
+        execute(clientCommand, command(clientCommand));
+        out.writeUTF("Process done");
+    }
+
+    /**
+     * Resolves a name sent by the client against the current directory.
+     *
+     * @param name The file or directory name.
+     * @return The resolved path.
+     */
+
+    Path resolve(String name) {
+        return currentDirectory.resolve(name);
+    }
+
+    /**
+     * Answers a request to switch to another protocol version.
+     *
+     * @param version The version requested by the client.
+     * @return true if the session switches to the framed protocol.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private boolean negotiate(String version) throws IOException {
+        if (version.equals(String.valueOf(Frame.VERSION))) {
+            out.writeUTF("proto " + Frame.VERSION);
+            return true;
+        }
+        out.writeUTF("Unsupported protocol version: " + version);
+        out.writeUTF("Process done");
+        return false;
+    }
+
+    /**
+     * Serves the session with the framed protocol until the client exits.
+     * Requests are read through a buffer so pipelined commands are picked up without a system call each,
+     * and responses are flushed only once no further request is waiting, so a burst of commands
+     * is answered with a few large writes. Commands streaming raw file data are refused in this mode.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void runFramed() throws IOException {
+        DataInputStream requests = new DataInputStream(new BufferedInputStream(socket.getInputStream(), FRAME_BUFFER_SIZE));
+        DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FRAME_BUFFER_SIZE));
+        Frame.ResponseStream captured = new Frame.ResponseStream(responses);
+        out = new DataOutputStream(captured); // Commands write their messages into the response frames
+
+        while (true) {
+            Frame request = Frame.read(requests);
+            captured.begin(request.requestId);
+            String clientCommand = new String(request.payload, StandardCharsets.UTF_8);
+            if (clientCommand.equals("exit")) {
+                System.out.println("Client requested exit.");
+                break;
+            }
+
+            String[] command = command(clientCommand);
+            if (STREAMING_COMMANDS.contains(command[0])) {
+                out.writeUTF(command[0] + " is not available in framed mode, use a text session");
+                logCommand(clientCommand, 0, System.nanoTime(), "refused");
+            } else {
+                execute(clientCommand, command);
+            }
+            captured.finish();
+
+            if (requests.available() == 0) {
+                responses.flush();
+            }
+        }
+        responses.flush();
+    }
+
+    /**
+     * The main logic for handling client commands. 
+     * It reads commands from the client, processes them, and sends responses back.
+     */
+
+    public void run() {
+        try {
+            out = new DataOutputStream(socket.getOutputStream());
+            in = new DataInputStream(socket.getInputStream());
+            out.writeUTF("Hello from server - you are client#" + clientNumber); 
+
+            String clientCommand;
+            while (true) {
+                clientCommand = in.readUTF();
                 if (clientCommand.equals("exit")) {
                     System.out.println("Client requested exit."); 
                     break;
                 }
-                
-                // Log the client command with timestamp
-                
-                DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd@HH:mm:ss");
-                Date date = new Date();
-                System.out.println("[" + clientAddress + ":" + clientPort + " - " + dateFormat.format(date) + "]" + " : " + clientCommand);
-                
-                String[] command = command(clientCommand);
-                handleCommand(command);
-                
-                out.writeUTF("Process done");
+                if (clientCommand.startsWith("proto ")) {
+                    if (negotiate(clientCommand.substring(6))) {
+                        runFramed();
+                        break;
+                    }
+                    continue;
+                }
+                process(clientCommand);
             }
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) { // Runtime errors only break streaming commands, see execute
             System.err.println("Error handling client# " + clientNumber + ": " + e.getMessage());
 
         } finally {
@@ -0,0 +1,215 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Sends file contents as a sequence of independently compressed blocks, used by upload and download
+ * once a session has enabled compression. Each block is a mode byte (stored or deflated), the raw
+ * length, the encoded length and the encoded bytes; the receiver knows the file size from the header
+ * that precedes the blocks. If the first block does not shrink by at least 10% the rest of the file
+ * is sent stored, so already-compressed files cost no CPU.
+ */
+
+public class CompressedTransfer {
+    // Raw bytes per block
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    // A deflated block must be smaller than this fraction of its raw size to be worth sending
+    private static final double MAX_RATIO = 0.9;
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    private static final int HEADER_SIZE = 1 + Integer.BYTES + Integer.BYTES;
+    private static final int MAX_ENCODED = BLOCK_SIZE + BLOCK_SIZE / 100 + 64; // Worst case of deflate on random data
+
+    /**
+     * Sends part of a file as compressed blocks.
+     *
+     * @param file  The file to read from.
+     * @param size  The number of bytes to send from the start of the file.
+     * @param out   The destination stream.
+     * @param level The Deflater compression level, from 1 (fastest) to 9 (smallest).
+     * @return The number of bytes written to the stream.
+     * @throws IOException If an I/O error occurs or the file is shorter than expected.
+     */
+
+    public static long send(FileChannel file, long size, DataOutputStream out, int level) throws IOException {
+        return send(file, size, out, level, null);
+    }
+
+    /**
+     * Sends part of a file as compressed blocks, charging the encoded bytes to a bandwidth limit.
+     *
+     * @param file      The file to read from.
+     * @param size      The number of bytes to send from the start of the file.
+     * @param out       The destination stream.
+     * @param level     The Deflater compression level, from 1 (fastest) to 9 (smallest).
+     * @param bandwidth The bucket charged for every block sent, or null for no limit.
+     * @return The number of bytes written to the stream.
+     * @throws IOException If an I/O error occurs or the file is shorter than expected.
+     */
+
+    public static long send(FileChannel file, long size, DataOutputStream out, int level, Bandwidth bandwidth) throws IOException {
+        return send(file, 0, size, out, level, bandwidth);
+    }
+
+    /**
+     * Sends a range of a file as compressed blocks, charging the encoded bytes to a bandwidth limit.
+     * The receiver writes the blocks from the start of its file.
+     *
+     * @param file      The file to read from.
+     * @param start     The offset of the first byte to send.
+     * @param size      The number of bytes to send.
+     * @param out       The destination stream.
+     * @param level     The Deflater compression level, from 1 (fastest) to 9 (smallest).
+     * @param bandwidth The bucket charged for every block sent, or null for no limit.
+     * @return The number of bytes written to the stream.
+     * @throws IOException If an I/O error occurs or the file is shorter than expected.
+     */
+
+    public static long send(FileChannel file, long start, long size, DataOutputStream out, int level, Bandwidth bandwidth)
+            throws IOException {
+        Deflater deflater = new Deflater(level);
+        byte[] raw = new byte[BLOCK_SIZE];
+        byte[] encoded = new byte[MAX_ENCODED];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        boolean compress = true;
+        long position = 0;
+        long sent = 0;
+
+        try {
+            while (position < size) {
+                int length = (int) Math.min(BLOCK_SIZE, size - position);
+                readFully(file, start + position, raw, length);
+
+                byte mode = STORED;
+                byte[] data = raw;
+                int dataLength = length;
+                if (compress) {
+                    deflater.reset();
+                    deflater.setInput(raw, 0, length);
+                    deflater.finish();
+                    int deflated = deflater.deflate(encoded);
+                    if (deflater.finished() && deflated < length * MAX_RATIO) {
+                        mode = DEFLATED;
+                        data = encoded;
+                        dataLength = deflated;
+                    } else if (position == 0) {
+                        compress = false; // The sample does not compress, the rest is sent as is
+                    }
+                }
+
+                header.clear().put(mode).putInt(length).putInt(dataLength);
+                out.write(header.array());
+                out.write(data, 0, dataLength);
+                position += length;
+                sent += HEADER_SIZE + dataLength;
+                if (bandwidth != null) {
+                    bandwidth.acquire(HEADER_SIZE + dataLength);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return sent;
+    }
+
+    /**
+     * Receives compressed blocks and writes the decoded bytes to the start of a file.
+     *
+     * @param in   The source stream.
+     * @param file The file to write to.
+     * @param size The number of raw bytes announced by the sender.
+     * @return The number of bytes read from the stream.
+     * @throws IOException If an I/O error occurs or a block is malformed.
+     */
+
+    public static long receive(DataInputStream in, FileChannel file, long size) throws IOException {
+        return receive(in, file, size, null);
+    }
+
+    /**
+     * Receives compressed blocks, charging the encoded bytes to a bandwidth limit.
+     *
+     * @param in        The source stream.
+     * @param file      The file to write to.
+     * @param size      The number of raw bytes announced by the sender.
+     * @param bandwidth The bucket charged for every block received, or null for no limit.
+     * @return The number of bytes read from the stream.
+     * @throws IOException If an I/O error occurs or a block is malformed.
+     */
+
+    public static long receive(DataInputStream in, FileChannel file, long size, Bandwidth bandwidth) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] raw = new byte[BLOCK_SIZE];
+        byte[] encoded = new byte[MAX_ENCODED];
+        long position = 0;
+        long received = 0;
+
+        try {
+            while (position < size) {
+                byte mode = in.readByte();
+                int length = in.readInt();
+                int dataLength = in.readInt();
+                if (length <= 0 || length > BLOCK_SIZE || length > size - position || dataLength < 0 || dataLength > MAX_ENCODED
+                        || (mode == STORED && dataLength != length) || (mode != STORED && mode != DEFLATED)) {
+                    throw new IOException("Malformed compressed block at offset " + position);
+                }
+                in.readFully(encoded, 0, dataLength);
+                if (bandwidth != null) {
+                    bandwidth.acquire(HEADER_SIZE + dataLength);
+                }
+
+                ByteBuffer block;
+                if (mode == DEFLATED) {
+                    inflater.reset();
+                    inflater.setInput(encoded, 0, dataLength);
+                    try {
+                        if (inflater.inflate(raw, 0, length) != length || !inflater.finished()) {
+                            throw new IOException("Corrupted compressed block at offset " + position);
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupted compressed block at offset " + position + ": " + e.getMessage());
+                    }
+                    block = ByteBuffer.wrap(raw, 0, length);
+                } else {
+                    block = ByteBuffer.wrap(encoded, 0, length);
+                }
+                while (block.hasRemaining()) {
+                    file.write(block, position + block.position());
+                }
+                position += length;
+                received += HEADER_SIZE + dataLength;
+            }
+        } finally {
+            inflater.end();
+        }
+        return received;
+    }
+
+    /**
+     * Describes how much a transfer was reduced, for the completion messages.
+     *
+     * @param raw     The size of the file.
+     * @param encoded The number of bytes that went over the connection.
+     * @return A short description of the compression ratio.
+     */
+
+    public static String ratio(long raw, long encoded) {
+        return String.format("%d bytes sent as %d, ratio %.1fx", raw, encoded, encoded == 0 ? 1.0 : (double) raw / encoded);
+    }
+
+    private static void readFully(FileChannel file, long position, byte[] array, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(array, 0, length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File ended " + buffer.remaining() + " bytes early");
+            }
+        }
+    }
+}
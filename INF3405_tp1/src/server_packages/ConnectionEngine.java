@@ -0,0 +1,130 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs client sessions on a shared executor instead of creating a new platform thread per connection.
+ * Sessions run on virtual threads by default, or on a bounded pool of platform threads.
+ * The number of concurrent sessions is capped; clients above the limit receive a rejection message.
+ */
+
+public class ConnectionEngine {
+    private final ExecutorService executor;
+    private final Semaphore sessions;
+    private final int maxSessions;
+    private final ServerConfig config;
+
+    /**
+     * Constructor for ConnectionEngine.
+     * Creates the executor matching the engine selected in the configuration.
+     *
+     * @param config The server configuration.
+     */
+
+    public ConnectionEngine(ServerConfig config) {
+        this.config = config;
+        this.maxSessions = config.effectiveMaxSessions();
+        this.sessions = new Semaphore(maxSessions);
+
+        switch (config.engine) {
+        case "virtual":
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            break;
+
+        case "pool":
+            executor = Executors.newFixedThreadPool(config.poolSize);
+            break;
+
+        default:
+            throw new IllegalArgumentException("Unknown connection engine: " + config.engine);
+        }
+        System.out.format("Connection engine: %s, up to %d concurrent sessions%n", config.engine, maxSessions);
+    }
+
+    /**
+     * Checks the name of a connection engine.
+     *
+     * @param name The engine setting.
+     * @return The name, if it is "virtual", "pool" or "nio".
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+
+    public static String parse(String name) {
+        if (!name.equals("virtual") && !name.equals("pool") && !name.equals("nio")) {
+            throw new IllegalArgumentException("Invalid engine: " + name + " (expected virtual, pool or nio)");
+        }
+        return name;
+    }
+
+    /**
+     * Hands an accepted connection to the engine. The session runs asynchronously
+     * if a slot is free, otherwise the client is told the server is busy and disconnected.
+     *
+     * @param socket       The accepted client socket.
+     * @param clientNumber The number associated with the client.
+     */
+
+    public void submit(Socket socket, int clientNumber) {
+        if (!sessions.tryAcquire()) {
+            reject(socket, clientNumber);
+            return;
+        }
+
+        ClientHandler handler = new ClientHandler(socket, clientNumber, config);
+        Metrics.shared().sessionOpened();
+        executor.execute(() -> {
+            try {
+                handler.run();
+            } finally {
+                Metrics.shared().sessionClosed();
+                sessions.release();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of sessions currently being served.
+     *
+     * @return The number of active sessions.
+     */
+
+    public int activeSessions() {
+        return maxSessions - sessions.availablePermits();
+    }
+
+    /**
+     * Sends the rejection message in place of the hello message and closes the connection.
+     *
+     * @param socket       The rejected client socket.
+     * @param clientNumber The number associated with the client.
+     */
+
+    private void reject(Socket socket, int clientNumber) {
+        Metrics.shared().sessionRejected();
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("Server busy: " + maxSessions + " sessions already connected, please try again later");
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Couldn't notify rejected client# " + clientNumber + ": " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Couldn't close the socket: " + e.getMessage());
+            }
+        }
+        System.out.println("Rejected client#" + clientNumber + ": session limit reached");
+    }
+
+    /**
+     * Stops accepting new sessions and lets the running ones finish.
+     */
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,475 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * rsync-style delta transfer, used by "delta" to update a file the server already holds.
+ *
+ * The server splits its copy into blocks and sends a signature per block: a rolling checksum
+ * (the weak sum of rsync, an Adler-32 variant that slides one byte at a time) and the first
+ * 16 bytes of its SHA-256. The client slides a block-sized window over its version of the file;
+ * wherever the weak sum matches a signature and the SHA-256 confirms it, it sends a reference to
+ * the server's block instead of the bytes. Everything else is sent as literal data. The server
+ * rebuilds the file from its old blocks and the literals, and keeps it only if its SHA-256 matches
+ * the one computed by the client.
+ *
+ * Instructions sent by the client: COPY (first block, number of blocks), LITERAL (length, bytes)
+ * and END (SHA-256 of the whole new file).
+ */
+
+public class DeltaSync {
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    public static final int MAX_BLOCKS = 1 << 24;
+    public static final int MAX_LITERAL = 1024 * 1024;
+    public static final int STRONG_SIZE = 16;
+    public static final int HASH_SIZE = 32;
+
+    static final byte END = 0;
+    static final byte COPY = 1;
+    static final byte LITERAL = 2;
+
+    private static final int SIGNATURE_SIZE = Integer.BYTES + STRONG_SIZE;
+    private static final int FILTER_BITS = 20; // Bits of the filter that rules out most window positions without a lookup
+
+    /**
+     * The block signatures of the server's copy, indexed for lookups by weak sum.
+     */
+
+    public static class Signatures {
+        public final long size;
+        public final int blockSize;
+        public final int count;
+        private final int[] weak;
+        private final byte[][] strong;
+        private final int[] sortedWeak; // Weak sums in ascending order
+        private final int[] sortedIndex; // Block of each entry of sortedWeak
+        private final long[] filter = new long[(1 << FILTER_BITS) / 64];
+
+        Signatures(long size, int blockSize, int[] weak, byte[][] strong) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.count = weak.length;
+            this.weak = weak;
+            this.strong = strong;
+
+            long[] entries = new long[count];
+            for (int i = 0; i < count; i++) {
+                entries[i] = ((long) weak[i] << 32) | i; // Sorting by weak sum keeps equal sums in block order
+                int bit = filterBit(weak[i]);
+                filter[bit >>> 6] |= 1L << bit;
+            }
+            Arrays.sort(entries);
+            sortedWeak = new int[count];
+            sortedIndex = new int[count];
+            for (int i = 0; i < count; i++) {
+                sortedWeak[i] = (int) (entries[i] >> 32);
+                sortedIndex[i] = (int) entries[i];
+            }
+        }
+
+        /**
+         * Finds a block with the given weak sum whose strong hash matches the data.
+         *
+         * @param sum       The weak sum of the data.
+         * @param data      The array holding the data.
+         * @param offset    The offset of the data in the array, blockSize bytes are compared.
+         * @param preferred The block tried first, usually the one following the last match, or -1.
+         * @param digest    The digest used to compute the strong hash.
+         * @return The index of the matching block, or -1.
+         */
+
+        int find(int sum, byte[] data, int offset, int preferred, MessageDigest digest) {
+            int bit = filterBit(sum);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return -1;
+            }
+            int first = lowerBound(sum);
+            if (first == count || sortedWeak[first] != sum) {
+                return -1;
+            }
+            digest.update(data, offset, blockSize);
+            byte[] hash = digest.digest();
+            if (preferred >= 0 && preferred < count && weak[preferred] == sum && matches(preferred, hash)) {
+                return preferred;
+            }
+            for (int i = first; i < count && sortedWeak[i] == sum; i++) {
+                if (matches(sortedIndex[i], hash)) {
+                    return sortedIndex[i];
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(int index, byte[] hash) {
+            return Arrays.equals(strong[index], 0, STRONG_SIZE, hash, 0, STRONG_SIZE);
+        }
+
+        private int lowerBound(int sum) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sortedWeak[middle] < sum) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * What a delta transfer sent.
+     */
+
+    public static class Result {
+        public long literalBytes;
+        public long reusedBlocks;
+        public byte[] hash;
+    }
+
+    /**
+     * Picks the block size for a file, about the square root of its size like rsync does,
+     * so that both the signatures and the bytes lost around each change stay small.
+     *
+     * @param size The size of the server's copy.
+     * @return The block size.
+     */
+
+    public static int blockSize(long size) {
+        int root = (int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt((double) size));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, Integer.highestOneBit(Math.max(1, root))));
+    }
+
+    /**
+     * Computes the weak sum of a block: the low 16 bits hold the sum of the bytes, the high 16 bits
+     * the sum of the running sums.
+     *
+     * @param data   The array holding the block.
+     * @param offset The offset of the block.
+     * @param length The length of the block.
+     * @return The weak sum.
+     */
+
+    public static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += a;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    /**
+     * Sends the signatures of every full block of a file, preceded by its size, the block size and the count.
+     * A file shorter than a block has no signature and is sent whole by the client.
+     *
+     * @param file      The server's copy, or null if the file does not exist yet.
+     * @param blockSize The block size, from blockSize.
+     * @param out       The destination stream, preferably buffered.
+     * @return The number of signatures sent.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    public static int writeSignatures(FileChannel file, int blockSize, DataOutputStream out) throws IOException {
+        long size = file != null ? file.size() : 0;
+        long count = size / blockSize;
+        if (count > MAX_BLOCKS) {
+            count = 0; // Too large to index, the client sends the whole file
+        }
+        out.writeLong(size);
+        out.writeInt(blockSize);
+        out.writeInt((int) count);
+
+        MessageDigest digest = digest();
+        byte[] block = new byte[blockSize];
+        ByteBuffer signatures = ByteBuffer.allocate(Math.max(SIGNATURE_SIZE, 64 * 1024 / SIGNATURE_SIZE * SIGNATURE_SIZE));
+        for (long i = 0; i < count; i++) {
+            readFully(file, i * blockSize, block, blockSize);
+            digest.update(block, 0, blockSize);
+            signatures.putInt(weak(block, 0, blockSize)).put(digest.digest(), 0, STRONG_SIZE);
+            if (!signatures.hasRemaining()) {
+                out.write(signatures.array(), 0, signatures.position());
+                signatures.clear();
+            }
+        }
+        out.write(signatures.array(), 0, signatures.position());
+        out.flush();
+        return (int) count;
+    }
+
+    /**
+     * Reads the signatures sent by writeSignatures.
+     *
+     * @param in The source stream.
+     * @return The indexed signatures.
+     * @throws IOException If an I/O error occurs or the layout is invalid.
+     */
+
+    public static Signatures readSignatures(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        int blockSize = in.readInt();
+        int count = in.readInt();
+        if (size < 0 || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count < 0 || count > MAX_BLOCKS
+                || count > size / blockSize) {
+            throw new IOException("Invalid signatures: size " + size + ", block size " + blockSize + ", " + count + " blocks");
+        }
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][STRONG_SIZE];
+        ByteBuffer batch = ByteBuffer.allocate(64 * 1024 / SIGNATURE_SIZE * SIGNATURE_SIZE); // Few large reads, the stream may not be buffered
+        for (int i = 0; i < count; i++) {
+            if (!batch.hasRemaining() || i == 0) {
+                int length = (int) Math.min(batch.capacity(), (long) (count - i) * SIGNATURE_SIZE);
+                in.readFully(batch.array(), 0, length);
+                batch.position(0).limit(length);
+            }
+            weak[i] = batch.getInt();
+            batch.get(strong[i]);
+        }
+        return new Signatures(size, blockSize, weak, strong);
+    }
+
+    /**
+     * Sends the instructions rebuilding a file from the server's blocks and literal data.
+     *
+     * @param file       The client's version of the file.
+     * @param signatures The signatures of the server's copy.
+     * @param out        The destination stream, preferably buffered.
+     * @return What was sent.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    public static Result writeDelta(FileChannel file, Signatures signatures, DataOutputStream out) throws IOException {
+        int blockSize = signatures.blockSize;
+        long size = file.size();
+        MessageDigest whole = digest();
+        MessageDigest blockDigest = digest();
+        Window window = new Window(file, MAX_LITERAL + 2 * blockSize);
+        Result result = new Result();
+
+        long literalStart = 0; // First byte not sent yet
+        long position = 0; // Start of the window being matched
+        int runStart = -1; // Pending COPY, merged with the following blocks while they match in order
+        int runCount = 0;
+        int a = 0;
+        int b = 0;
+        boolean summed = false;
+
+        while (signatures.count > 0 && position + blockSize <= size) {
+            if (!summed) {
+                window.load(literalStart, position + blockSize);
+                int sum = weak(window.data, window.offset(position), blockSize);
+                a = sum & 0xFFFF;
+                b = sum >>> 16;
+                summed = true;
+            }
+            int match = signatures.find((b << 16) | a, window.data, window.offset(position),
+                    runCount > 0 ? runStart + runCount : -1, blockDigest);
+            if (match >= 0) {
+                if (literalStart < position) {
+                    writeCopy(out, runStart, runCount);
+                    runCount = 0;
+                    writeLiteral(out, window, literalStart, position, whole, result);
+                }
+                if (runCount > 0 && match == runStart + runCount) {
+                    runCount++;
+                } else {
+                    writeCopy(out, runStart, runCount);
+                    runStart = match;
+                    runCount = 1;
+                }
+                whole.update(window.data, window.offset(position), blockSize);
+                result.reusedBlocks++;
+                position += blockSize;
+                literalStart = position;
+                summed = false;
+                continue;
+            }
+
+            if (position + blockSize == size) {
+                break; // No byte left to slide in
+            }
+            window.load(literalStart, position + blockSize + 1);
+            int leaving = window.data[window.offset(position)] & 0xFF;
+            int entering = window.data[window.offset(position + blockSize)] & 0xFF;
+            a = (a - leaving + entering) & 0xFFFF;
+            b = (b - blockSize * leaving + a) & 0xFFFF;
+            position++;
+            if (position - literalStart >= MAX_LITERAL) {
+                writeCopy(out, runStart, runCount);
+                runCount = 0;
+                writeLiteral(out, window, literalStart, position, whole, result);
+                literalStart = position;
+            }
+        }
+
+        writeCopy(out, runStart, runCount);
+        while (literalStart < size) {
+            long end = Math.min(size, literalStart + MAX_LITERAL);
+            window.load(literalStart, end);
+            writeLiteral(out, window, literalStart, end, whole, result);
+            literalStart = end;
+        }
+        result.hash = whole.digest();
+        out.writeByte(END);
+        out.write(result.hash);
+        out.flush();
+        return result;
+    }
+
+    private static void writeCopy(DataOutputStream out, int first, int count) throws IOException {
+        if (count > 0) {
+            out.writeByte(COPY);
+            out.writeInt(first);
+            out.writeInt(count);
+        }
+    }
+
+    private static void writeLiteral(DataOutputStream out, Window window, long from, long to, MessageDigest whole, Result result)
+            throws IOException {
+        int length = (int) (to - from);
+        out.writeByte(LITERAL);
+        out.writeInt(length);
+        out.write(window.data, window.offset(from), length);
+        whole.update(window.data, window.offset(from), length);
+        result.literalBytes += length;
+    }
+
+    /**
+     * Rebuilds a file from the instructions of the client, then checks it against the client's hash.
+     *
+     * @param base      The server's copy, or null if there is none.
+     * @param blockSize The block size of the signatures that were sent.
+     * @param blocks    The number of signatures that were sent.
+     * @param target    The file receiving the new version, empty.
+     * @param socket    The source socket.
+     * @param in        The stream of the socket.
+     * @param buffer    The buffer used to receive literal data.
+     * @param bandwidth The bucket charged for the literal data, or null for no limit.
+     * @return What was received; its hash is null if the rebuilt file does not match the client's.
+     * @throws IOException If an I/O error occurs or an instruction is invalid.
+     */
+
+    public static Result apply(FileChannel base, int blockSize, int blocks, FileChannel target, Socket socket, DataInputStream in,
+            ByteBuffer buffer, Bandwidth bandwidth) throws IOException {
+        Result result = new Result();
+        byte[] header = new byte[2 * Integer.BYTES];
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        long written = 0;
+        while (true) {
+            byte instruction = in.readByte();
+            if (instruction == END) {
+                byte[] expected = new byte[HASH_SIZE];
+                in.readFully(expected);
+                byte[] actual = ChunkStore.hash(target, 0, written, buffer);
+                result.hash = Arrays.equals(expected, actual) ? actual : null;
+                return result;
+            }
+            if (instruction == COPY) {
+                in.readFully(header, 0, 2 * Integer.BYTES);
+                int first = fields.getInt(0);
+                int count = fields.getInt(Integer.BYTES);
+                if (first < 0 || count <= 0 || (long) first + count > blocks) {
+                    throw new IOException("Invalid delta instruction: copy " + count + " blocks from " + first);
+                }
+                long offset = (long) first * blockSize;
+                long length = (long) count * blockSize;
+                target.position(written);
+                for (long copied = 0; copied < length; ) {
+                    long moved = base.transferTo(offset + copied, length - copied, target);
+                    if (moved <= 0) {
+                        throw new EOFException("The server's copy changed during the delta transfer");
+                    }
+                    copied += moved;
+                }
+                written += length;
+                result.reusedBlocks += count;
+            } else if (instruction == LITERAL) {
+                in.readFully(header, 0, Integer.BYTES);
+                int length = fields.getInt(0);
+                if (length <= 0 || length > MAX_LITERAL) {
+                    throw new IOException("Invalid delta instruction: literal of " + length + " bytes");
+                }
+                FileTransfer.receive(target, written, length, socket, in, buffer, null, bandwidth);
+                written += length;
+                result.literalBytes += length;
+            } else {
+                throw new IOException("Invalid delta instruction: " + instruction);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel file, long position, byte[] array, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(array, 0, length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File ended " + buffer.remaining() + " bytes early");
+            }
+        }
+    }
+
+    private static int filterBit(int sum) {
+        return (sum * 0x9E3779B1) >>> (32 - FILTER_BITS);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM provides SHA-256
+        }
+    }
+
+    /**
+     * A sliding view of a file held in an array, refilled in large reads as the delta moves forward.
+     */
+
+    private static class Window {
+        final FileChannel file;
+        final byte[] data;
+        long base; // File offset of data[0]
+        int length;
+
+        Window(FileChannel file, int capacity) {
+            this.file = file;
+            this.data = new byte[capacity];
+        }
+
+        /**
+         * Makes the bytes from..to available, discarding everything before from.
+         */
+
+        void load(long from, long to) throws IOException {
+            if (from >= base && to <= base + length) {
+                return;
+            }
+            int keep = (int) Math.max(0, base + length - from);
+            System.arraycopy(data, (int) (from - base), data, 0, keep);
+            base = from;
+            length = keep;
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (base + length < to) {
+                buffer.limit(data.length).position(length);
+                int read = file.read(buffer, base + length);
+                if (read < 0) {
+                    throw new EOFException("File ended at " + (base + length) + " bytes, expected " + to);
+                }
+                length += read;
+            }
+        }
+
+        int offset(long position) {
+            return (int) (position - base);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server-wide cache of directory listings, shared by every session.
+ * A listing is built once (sorted by name, with size and modification time) and reused until
+ * a WatchService reports a change in the directory or the server changes it itself.
+ * The least recently used listings are dropped past a fixed number of directories.
+ */
+
+public class DirectoryCache {
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private final int maxDirectories;
+    private final Map<Path, Listing> listings;
+    private final WatchService watcher;
+
+    /**
+     * The formatted entries of a directory and the watch registration that keeps them valid.
+     */
+
+    private static class Listing {
+        final List<String> entries;
+        final WatchKey key;
+
+        Listing(List<String> entries, WatchKey key) {
+            this.entries = entries;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Constructor for DirectoryCache.
+     * Starts the thread that drops listings when their directory changes.
+     *
+     * @param maxDirectories The number of directory listings kept in memory.
+     */
+
+    public DirectoryCache(int maxDirectories) {
+        this.maxDirectories = maxDirectories;
+        this.listings = new LinkedHashMap<>(16, 0.75f, true) { // Access order, eldest is least recently used
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+                if (size() > DirectoryCache.this.maxDirectories) {
+                    eldest.getValue().key.cancel();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Directory listings won't be cached: " + e.getMessage());
+        }
+        this.watcher = service;
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "directory-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns the entries of a directory, one formatted line each, sorted by name.
+     *
+     * @param directory The directory to list.
+     * @return The entries, from the cache when the directory has not changed.
+     * @throws IOException If the directory cannot be read.
+     */
+
+    public List<String> list(Path directory) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        synchronized (listings) {
+            Listing listing = listings.get(key);
+            if (listing != null) {
+                return listing.entries;
+            }
+        }
+        if (watcher == null) {
+            return scan(key);
+        }
+
+        // Watch before scanning so a change made during the scan still invalidates the result
+        WatchKey watchKey = key.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        List<String> entries = scan(key);
+        synchronized (listings) {
+            if (watchKey.isValid()) { // Cancelled if the directory changed during the scan
+                listings.put(key, new Listing(entries, watchKey));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Drops the listing of the directory containing a path the server just changed,
+     * without waiting for the WatchService notification.
+     *
+     * @param path The created, modified or deleted path.
+     */
+
+    public void changed(Path path) {
+        Path parent = path.toAbsolutePath().normalize().getParent();
+        if (parent != null) {
+            invalidate(parent);
+        }
+    }
+
+    /**
+     * Drops the listings of a directory the server removed or moved, and of every directory below it.
+     *
+     * @param root The removed or moved directory.
+     */
+
+    public void changedTree(Path root) {
+        Path key = root.toAbsolutePath().normalize();
+        changed(key);
+        synchronized (listings) {
+            Iterator<Map.Entry<Path, Listing>> entries = listings.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Path, Listing> entry = entries.next();
+                if (entry.getKey().startsWith(key)) {
+                    entry.getValue().key.cancel();
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private void invalidate(Path directory) {
+        synchronized (listings) {
+            Listing listing = listings.remove(directory);
+            if (listing != null) {
+                listing.key.cancel();
+            }
+        }
+    }
+
+    /**
+     * Reads a directory and formats its entries as "name  size  modification time",
+     * with a trailing slash on directory names.
+     */
+
+    private static List<String> scan(Path directory) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                paths.add(entry);
+            }
+        }
+        paths.sort((a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+
+        List<String> entries = new ArrayList<>(paths.size());
+        for (Path entry : paths) {
+            String name = entry.getFileName().toString();
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                entries.add(format(attributes.isDirectory() ? name + "/" : name, attributes.size(),
+                        attributes.lastModifiedTime().toMillis()));
+            } catch (IOException e) {
+                entries.add(name); // Deleted or unreadable since the directory was read
+            }
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Formats an entry as "name  size  modification time", the line format of "ls", also used by "find".
+     *
+     * @param name     The name, with a trailing slash for a directory.
+     * @param size     The size in bytes.
+     * @param modified The modification time in milliseconds since the epoch.
+     * @return The formatted line.
+     */
+
+    static String format(String name, long size, long modified) {
+        StringBuilder line = new StringBuilder(80).append(name); // Same as "%-40s %14d  %s", without parsing a format
+        while (line.length() < 40) {
+            line.append(' ');
+        }
+        String digits = Long.toString(size);
+        line.append(' ');
+        for (int i = digits.length(); i < 14; i++) {
+            line.append(' ');
+        }
+        return line.append(digits).append("  ").append(DATE_FORMAT.format(Instant.ofEpochMilli(modified))).toString();
+    }
+
+    /**
+     * Drops the listing of every directory the WatchService reports as changed.
+     */
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                key.cancel(); // The next listing registers the directory again
+                invalidate((Path) key.watchable());
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The server is shutting down
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Options of a download that reads part of a file: "download -range OFFSET[:LENGTH] name" sends LENGTH
+ * bytes (all of them up to the end by default) from OFFSET, counted from the end of the file when negative,
+ * and "download -follow [-range OFFSET] name" keeps sending the bytes appended to the file until the
+ * client stops it, starting at the end of the file by default. Offsets and lengths accept a k, M or G
+ * suffix, so "download -range -1M app.log" fetches the last megabyte of a log.
+ */
+
+public class DownloadRange {
+    public final long offset; // Counted from the end of the file when negative
+    public final long length; // -1 for up to the end of the file
+    public final boolean follow;
+    public final String name;
+
+    private DownloadRange(long offset, long length, boolean follow, String name) {
+        this.offset = offset;
+        this.length = length;
+        this.follow = follow;
+        this.name = name;
+    }
+
+    /**
+     * Tells whether a download argument asks for part of a file or to follow it.
+     *
+     * @param argument The argument of download.
+     * @return true if the argument starts with -range or -follow.
+     */
+
+    public static boolean isRequested(String argument) {
+        return argument.startsWith("-range ") || argument.startsWith("-follow ");
+    }
+
+    /**
+     * Reads the options of a partial download.
+     *
+     * @param argument The argument of download: the options, then the file name.
+     * @return The range.
+     * @throws IllegalArgumentException If an option is malformed or the name is missing.
+     */
+
+    public static DownloadRange parse(String argument) {
+        String rest = argument.trim();
+        String range = null;
+        boolean follow = false;
+        while (rest.startsWith("-range ") || rest.startsWith("-follow ")) {
+            String[] words = rest.split(" ", 2);
+            rest = words.length > 1 ? words[1].trim() : "";
+            if (words[0].equals("-follow")) {
+                follow = true;
+            } else {
+                words = rest.split(" ", 2);
+                range = words[0];
+                rest = words.length > 1 ? words[1].trim() : "";
+            }
+        }
+        if (rest.isEmpty()) {
+            throw new IllegalArgumentException("Missing file name (expected download [-range OFFSET[:LENGTH]] [-follow] name)");
+        }
+
+        long offset = 0;
+        long length = -1;
+        if (range != null) {
+            int colon = range.indexOf(':');
+            offset = FileIndex.Query.size(colon >= 0 ? range.substring(0, colon) : range);
+            if (colon >= 0 && colon < range.length() - 1) {
+                length = FileIndex.Query.size(range.substring(colon + 1));
+                if (length < 0) {
+                    throw new IllegalArgumentException("Invalid length: " + range.substring(colon + 1));
+                }
+                if (follow) {
+                    throw new IllegalArgumentException("-follow takes an offset, not a length");
+                }
+            }
+        } else if (follow) {
+            offset = Long.MIN_VALUE; // The end of the file
+        }
+        return new DownloadRange(offset, length, follow, rest);
+    }
+
+    /**
+     * Returns the offset of the first byte sent.
+     *
+     * @param size The size of the file.
+     * @return The offset, at most the size, or -1 if the range starts past the end of the file.
+     */
+
+    public long start(long size) {
+        if (offset == Long.MIN_VALUE) {
+            return size;
+        }
+        if (offset < 0) {
+            return Math.max(0, size + offset); // Like tail -c, a longer suffix is the whole file
+        }
+        return offset <= size ? offset : -1;
+    }
+
+    /**
+     * Returns the number of bytes sent.
+     *
+     * @param size The size of the file.
+     * @return The length of the range, cut at the end of the file.
+     */
+
+    public long count(long size) {
+        long remaining = size - Math.max(0, start(size));
+        return length < 0 ? remaining : Math.min(length, remaining);
+    }
+
+    /**
+     * Describes the bytes sent, for the messages of the download.
+     *
+     * @param size The size of the file.
+     * @return The first and last byte and the size of the file, as in an HTTP Content-Range.
+     */
+
+    public String describe(long size) {
+        long first = Math.max(0, start(size));
+        if (count(size) == 0) {
+            return "bytes */" + size;
+        }
+        return "bytes " + first + "-" + (first + count(size) - 1) + "/" + size;
+    }
+}
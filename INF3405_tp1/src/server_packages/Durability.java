@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * When uploaded files are forced to disk, set by server.durability. Uploads are always written to a
+ * temporary file and renamed over the target, so a reader never sees a half-written file; the policy
+ * only decides whether the data and the rename survive a crash of the machine.
+ *
+ *   none   Nothing is forced; the operating system writes the data back when it sees fit.
+ *   close  Each upload forces its file before the rename and its directory after, and waits for both.
+ *   group  Like close, but concurrent uploads share their directory syncs: while one thread syncs a
+ *          batch of directories the others queue up, and the next batch syncs each directory once,
+ *          however many uploads were renamed into it. Files are still synced by their own upload, in
+ *          parallel, since one sync per file is needed whatever the batching.
+ */
+
+public class Durability {
+    public enum Policy { NONE, CLOSE, GROUP }
+
+    private static Durability shared;
+
+    private final Policy policy;
+
+    // Group commit: directories queued for the next batch, and whether a thread is syncing the current one
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized, which would pin virtual threads while they wait
+    private final Condition synced = lock.newCondition();
+    private List<Sync> batch = new ArrayList<>();
+    private boolean syncing;
+
+    /**
+     * A directory waiting to be synced by a group commit.
+     */
+
+    private static class Sync {
+        final Path directory;
+        boolean done;
+        IOException error;
+
+        Sync(Path directory) {
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Constructor for Durability.
+     *
+     * @param policy The policy applied to every upload.
+     */
+
+    public Durability(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Returns the policy of the server.
+     *
+     * @param config The server configuration.
+     * @return The shared policy.
+     * @throws IllegalArgumentException If server.durability is not none, close or group.
+     */
+
+    public static synchronized Durability shared(ServerConfig config) {
+        if (shared == null) {
+            shared = new Durability(parse(config.durability));
+        }
+        return shared;
+    }
+
+    /**
+     * Reads a policy name.
+     *
+     * @param name "none", "close" or "group".
+     * @return The policy.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+
+    public static Policy parse(String name) {
+        try {
+            return Policy.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid durability: " + name + " (expected none, close or group)");
+        }
+    }
+
+    /**
+     * Forces an uploaded file to disk, according to the policy, before it is closed and renamed.
+     *
+     * @param file The temporary file holding the upload.
+     * @throws IOException If the file cannot be synced.
+     */
+
+    public void sync(FileChannel file) throws IOException {
+        if (policy != Policy.NONE) {
+            file.force(true); // With the metadata, the size changed
+        }
+    }
+
+    /**
+     * Forces a directory to disk, according to the policy, after an upload was renamed into it.
+     *
+     * @param directory The directory of the renamed file.
+     * @throws IOException If the directory cannot be synced.
+     */
+
+    public void syncDirectory(Path directory) throws IOException {
+        if (policy == Policy.CLOSE) {
+            force(directory);
+        } else if (policy == Policy.GROUP) {
+            group(new Sync(directory));
+        }
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    /**
+     * Queues a directory sync and waits until a batch containing it is done. The first thread to find no batch
+     * in progress syncs everything queued so far, then hands over to the threads queued meanwhile.
+     */
+
+    private void group(Sync sync) throws IOException {
+        List<Sync> mine;
+        lock.lock();
+        try {
+            batch.add(sync);
+            while (syncing && !sync.done) {
+                synced.awaitUninterruptibly(); // The upload is already received, finish it
+            }
+            if (!sync.done) {
+                syncing = true; // Still queued: this thread syncs the batch
+                mine = batch;
+                batch = new ArrayList<>();
+            } else {
+                mine = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (mine != null) {
+            Map<Path, IOException> directories = new LinkedHashMap<>();
+            for (Sync queued : mine) {
+                directories.put(queued.directory, null);
+            }
+            for (Map.Entry<Path, IOException> directory : directories.entrySet()) { // Each directory once
+                try {
+                    force(directory.getKey());
+                } catch (IOException e) {
+                    directory.setValue(e);
+                }
+            }
+            lock.lock();
+            try {
+                for (Sync queued : mine) {
+                    queued.error = directories.get(queued.directory);
+                    queued.done = true;
+                }
+                syncing = false;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (sync.error != null) {
+            throw sync.error;
+        }
+    }
+
+    private static void force(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!System.getProperty("os.name").startsWith("Windows")) {
+                throw e; // Directories cannot be opened on Windows, where a rename is durable once it returns
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Server-wide cache of memory-mapped files, shared by every session, so that popular downloads are
+ * served from memory instead of opening and reading the file again for each request.
+ *
+ * A file is mapped the second time it is requested, which keeps files downloaded once from pushing
+ * the popular ones out. A cached mapping is reused while the size, modification time and identity of
+ * the file are unchanged (one stat per request), and dropped at once when the server writes or deletes
+ * the file. The least recently used mappings are dropped past a total size.
+ *
+ * Mappings are only written to socket channels, never read from Java: if the file is truncated while it
+ * is being sent the kernel fails the write, which ends the session like a file shrinking under transferTo
+ * does, whereas reading the mapping would fault. Transfers that checksum the bytes read the file instead.
+ */
+
+public class FileCache {
+    // Number of paths remembered as requested once, waiting for a second request
+    private static final int MAX_CANDIDATES = 4096;
+
+    private static FileCache shared;
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final Map<Path, Mapping> mappings;
+    private final Map<Path, Boolean> candidates;
+    private long cachedBytes;
+
+    /**
+     * A mapped file and the attributes it was mapped with.
+     */
+
+    private static class Mapping {
+        final MappedByteBuffer data;
+        final long size;
+        final FileTime modified;
+        final Object fileKey;
+
+        Mapping(MappedByteBuffer data, BasicFileAttributes attributes) {
+            this.data = data;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+            this.fileKey = attributes.fileKey();
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modified.equals(attributes.lastModifiedTime())
+                    && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+
+    /**
+     * Constructor for FileCache.
+     *
+     * @param maxBytes    The total size of the files kept mapped.
+     * @param maxFileSize The size of the largest file mapped.
+     */
+
+    public FileCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, maxBytes);
+        this.mappings = new LinkedHashMap<>(16, 0.75f, true); // Access order, eldest is least recently used
+        this.candidates = new LinkedHashMap<>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+                return size() > MAX_CANDIDATES;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache of the server.
+     *
+     * @param config The server configuration.
+     * @return The shared cache, or null if it is disabled.
+     */
+
+    public static synchronized FileCache shared(ServerConfig config) {
+        if (shared == null && config.fileCacheBytes > 0 && config.fileCacheMaxFile > 0) {
+            shared = new FileCache(config.fileCacheBytes, config.fileCacheMaxFile);
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the contents of a file from the cache, mapping it if it is requested often enough.
+     *
+     * @param path The file to read.
+     * @return A read-only buffer over the whole file, positioned at 0, or null if the file is not
+     *         cached and must be read from disk.
+     * @throws IOException If the file cannot be read.
+     */
+
+    public ByteBuffer get(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            invalidate(key);
+            throw e;
+        }
+        synchronized (this) {
+            Mapping mapping = mappings.get(key);
+            if (mapping != null) {
+                if (mapping.matches(attributes)) {
+                    return mapping.data.asReadOnlyBuffer();
+                }
+                remove(key); // Changed by another program since it was mapped
+            }
+            if (!attributes.isRegularFile() || attributes.size() == 0 || attributes.size() > maxFileSize
+                    || candidates.put(key, Boolean.TRUE) == null) {
+                return null; // First request: remembered, but read from disk
+            }
+        }
+
+        MappedByteBuffer data;
+        try (FileChannel file = FileChannel.open(key, StandardOpenOption.READ)) {
+            BasicFileAttributes mapped = Files.readAttributes(key, BasicFileAttributes.class);
+            if (mapped.size() != file.size() || mapped.size() == 0 || mapped.size() > maxFileSize) {
+                return null; // Being written
+            }
+            data = file.map(FileChannel.MapMode.READ_ONLY, 0, mapped.size()); // Stays valid once the channel is closed
+            attributes = mapped;
+        }
+        synchronized (this) {
+            candidates.remove(key);
+            remove(key);
+            mappings.put(key, new Mapping(data, attributes));
+            cachedBytes += attributes.size();
+            Iterator<Mapping> eldest = mappings.values().iterator();
+            while (cachedBytes > maxBytes && eldest.hasNext()) {
+                cachedBytes -= eldest.next().size;
+                eldest.remove(); // Unmapped by the garbage collector once the last download using it is done
+            }
+        }
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops the mapping of a file the server is about to write or delete, so that no new download
+     * starts from it. Downloads in progress keep their own view of the mapping.
+     *
+     * @param path The file.
+     */
+
+    public synchronized void invalidate(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        remove(key);
+        candidates.remove(key);
+    }
+
+    /**
+     * Drops the mappings of every file below a directory the server removed or moved.
+     *
+     * @param root The removed or moved directory.
+     */
+
+    public synchronized void invalidateTree(Path root) {
+        Path key = root.toAbsolutePath().normalize();
+        Iterator<Map.Entry<Path, Mapping>> entries = mappings.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, Mapping> entry = entries.next();
+            if (entry.getKey().startsWith(key)) {
+                cachedBytes -= entry.getValue().size;
+                entries.remove();
+            }
+        }
+        candidates.keySet().removeIf(path -> path.startsWith(key));
+    }
+
+    /**
+     * Returns the total size of the files currently mapped.
+     *
+     * @return The number of bytes mapped.
+     */
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    private void remove(Path key) {
+        Mapping mapping = mappings.remove(key);
+        if (mapping != null) {
+            cachedBytes -= mapping.size;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index of the names, sizes and modification times of every file under the root of the
+ * server, backing the "find" command. It is built in parallel when the server starts, on the pool of
+ * the tree commands, then kept current by the server's own changes (reported by the sessions as they
+ * make them) and by a WatchService for the changes made by other programs.
+ *
+ * The index holds one map of entries per directory, so a query only walks the directories under the
+ * current directory of the session, in parallel, without touching the disk. When the system refuses
+ * to watch more directories (fs.inotify.max_user_watches on Linux) the index keeps working, but the
+ * directories it could not watch only follow the changes made through the server.
+ */
+
+public class FileIndex {
+    private static FileIndex shared;
+
+    private final Path root;
+    private final ForkJoinPool pool;
+    private final Map<Path, Map<String, Entry>> directories = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> watched = new ConcurrentHashMap<>();
+    private final WatchService watcher; // null if the file system cannot be watched
+    private volatile boolean watchLimitReached;
+    private final ForkJoinTask<Void> build;
+
+    /**
+     * The attributes of a file or directory.
+     */
+
+    private static class Entry {
+        final long size;
+        final long modified; // Milliseconds since the epoch
+        final boolean directory;
+
+        Entry(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.directory = attributes.isDirectory();
+        }
+    }
+
+    /**
+     * The answer to a query: the first matches, sorted by path, and how many entries matched in all.
+     */
+
+    public static class Result {
+        public final List<String> matches; // Formatted like the lines of "ls", with the path relative to the scope
+        public final int total;
+
+        Result(List<String> matches, int total) {
+            this.matches = matches;
+            this.total = total;
+        }
+    }
+
+    /**
+     * A match before formatting, sorted by directory then name.
+     */
+
+    private static class Match {
+        final String directory; // Relative to the scope, empty for the scope itself
+        final String name;
+        final Entry entry;
+
+        Match(String directory, String name, Entry entry) {
+            this.directory = directory;
+            this.name = name;
+            this.entry = entry;
+        }
+
+        String path() {
+            return directory.isEmpty() ? name : directory + "/" + name;
+        }
+    }
+
+    private static final Comparator<Match> BY_PATH =
+            Comparator.<Match, String>comparing(m -> m.directory).thenComparing(m -> m.name);
+
+    /**
+     * Constructor for FileIndex. Starts building the index and watching the tree.
+     *
+     * @param root The directory indexed.
+     * @param pool The pool scanning the tree.
+     */
+
+    private FileIndex(Path root, ForkJoinPool pool) {
+        this.root = root.toAbsolutePath().normalize();
+        this.pool = pool;
+
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("The file index won't see changes made outside the server: " + e.getMessage());
+        }
+        this.watcher = service;
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "index-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.build = pool.submit(new Scan(this.root));
+    }
+
+    /**
+     * Returns the index of the server, built on the first call.
+     *
+     * @param config The server configuration.
+     * @return The shared index, or null if it is disabled.
+     */
+
+    public static synchronized FileIndex shared(ServerConfig config) {
+        if (shared == null && config.fileIndex) {
+            shared = new FileIndex(Paths.get(config.root), ParallelTree.pool(config));
+        }
+        return shared;
+    }
+
+    /**
+     * Updates the entry of a path the server just created, modified or deleted. A new directory is
+     * indexed with everything below it, a deleted one is dropped with everything below it.
+     *
+     * @param path The changed path.
+     */
+
+    public void refresh(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        Path parent = key.getParent();
+        if (!key.startsWith(root) || key.equals(root) || parent == null) {
+            return;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(key, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            remove(key);
+            return;
+        } catch (IOException e) {
+            return; // Unreadable, the entry is left as it was
+        }
+
+        Map<String, Entry> siblings = directories.get(parent);
+        if (siblings == null) {
+            refresh(parent); // A new directory: indexed with its contents, this path included
+            return;
+        }
+        Entry previous = siblings.put(key.getFileName().toString(), new Entry(attributes));
+        if (previous != null && previous.directory && !attributes.isDirectory()) {
+            removeBelow(key);
+        }
+        if (attributes.isDirectory() && !directories.containsKey(key)) {
+            pool.invoke(new Scan(key));
+        }
+    }
+
+    /**
+     * Finds the entries below a directory matching a query.
+     *
+     * @param scope The directory searched, usually the current directory of the session.
+     * @param query The filters.
+     * @param limit The number of matches returned, the others are only counted.
+     * @return The first matches by path and the number of matches.
+     */
+
+    public Result find(Path scope, Query query, int limit) {
+        build.join(); // Queries made while the server starts wait for the first scan
+        Path base = scope.toAbsolutePath().normalize();
+        List<Match> matches = directories.entrySet().parallelStream()
+                .filter(directory -> directory.getKey().startsWith(base))
+                .flatMap(directory -> {
+                    String relative = base.relativize(directory.getKey()).toString().replace('\\', '/');
+                    return directory.getValue().entrySet().stream()
+                            .filter(child -> query.matches(relative, child.getKey(), child.getValue()))
+                            .map(child -> new Match(relative, child.getKey(), child.getValue()));
+                })
+                .collect(Collectors.toList());
+
+        List<Match> first;
+        if (matches.size() <= limit) {
+            first = matches;
+            first.sort(BY_PATH);
+        } else {
+            PriorityQueue<Match> smallest = new PriorityQueue<>(limit + 1, BY_PATH.reversed());
+            for (Match match : matches) {
+                if (smallest.size() == limit && BY_PATH.compare(match, smallest.peek()) >= 0) {
+                    continue; // After the largest path kept so far, as most are once the queue is full
+                }
+                smallest.add(match);
+                if (smallest.size() > limit) {
+                    smallest.poll();
+                }
+            }
+            first = new ArrayList<>(smallest);
+            first.sort(BY_PATH);
+        }
+
+        List<String> lines = new ArrayList<>(first.size());
+        for (Match match : first) {
+            lines.add(DirectoryCache.format(match.entry.directory ? match.path() + "/" : match.path(),
+                    match.entry.size, match.entry.modified));
+        }
+        return new Result(lines, matches.size());
+    }
+
+    /**
+     * Returns the number of files and directories indexed.
+     *
+     * @return The number of entries.
+     */
+
+    public long size() {
+        long size = 0;
+        for (Map<String, Entry> entries : directories.values()) {
+            size += entries.size();
+        }
+        return size;
+    }
+
+    /**
+     * Drops a deleted path, and everything below it if it was a directory.
+     */
+
+    private void remove(Path key) {
+        Map<String, Entry> siblings = directories.get(key.getParent());
+        if (siblings != null) {
+            siblings.remove(key.getFileName().toString());
+        }
+        removeBelow(key);
+    }
+
+    private void removeBelow(Path directory) {
+        if (directories.remove(directory) == null) {
+            return; // Not a directory, or already dropped
+        }
+        directories.keySet().removeIf(path -> path.startsWith(directory));
+        watched.entrySet().removeIf(watch -> {
+            if (watch.getKey().startsWith(directory)) {
+                watch.getValue().cancel();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Indexes a directory: watches it, reads its entries, then forks one scan per subdirectory.
+     */
+
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private class Scan extends RecursiveAction {
+        final Path directory;
+
+        Scan(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            watch(directory); // Before reading, so a change made during the scan is still reported
+            Map<String, Entry> entries = new ConcurrentHashMap<>();
+            List<Scan> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path child : stream) {
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                        entries.put(child.getFileName().toString(), new Entry(attributes));
+                        if (attributes.isDirectory()) {
+                            subdirectories.add(new Scan(child));
+                        }
+                    } catch (IOException e) {
+                        // Deleted since the directory was read
+                    }
+                }
+            } catch (IOException e) {
+                return; // Deleted or unreadable, left out of the index
+            }
+            directories.put(directory, entries);
+            invokeAll(subdirectories);
+        }
+    }
+
+    private void watch(Path directory) {
+        if (watcher == null || watchLimitReached) {
+            return;
+        }
+        try {
+            watched.put(directory, directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (IOException e) {
+            if (!watchLimitReached) {
+                watchLimitReached = true;
+                System.err.println("The file index stops watching new directories at " + directory + ": " + e.getMessage()
+                        + " (changes made outside the server below them are not seen)");
+            }
+        }
+    }
+
+    /**
+     * Applies the changes the WatchService reports. When events were lost the whole directory is scanned again.
+     */
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        removeBelow(directory);
+                        refresh(directory);
+                        if (directory.equals(root)) {
+                            pool.invoke(new Scan(root));
+                        }
+                    } else {
+                        refresh(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    watched.remove(directory, key); // The directory is gone, its parent reports the deletion
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The server is shutting down
+        }
+    }
+
+    /**
+     * The filters of a "find" command: a glob on the name (or on the path when it contains a slash),
+     * then any of -type f|d, -size +N|-N (k, M or G suffixes), -newer and -older, which take a date
+     * (2024-05-01 or 2024-05-01T14:30) or an age (30m, 12h, 7d).
+     */
+
+    public static class Query {
+        private final Pattern pattern;
+        private final boolean matchPath;
+        private final Pattern namePattern; // What the name alone must match when the pattern applies to the path, or null
+        private final String suffix; // The literal end of every matching name, checked before the patterns
+        private char type; // 'f', 'd' or 0 for both
+        private long minSize = -1; // Exclusive bounds, -1 when not set
+        private long maxSize = -1;
+        private long newer = Long.MIN_VALUE; // Exclusive bounds on the modification time
+        private long older = Long.MAX_VALUE;
+
+        private Query(String glob) {
+            this.pattern = Pattern.compile(globToRegex(glob));
+            this.matchPath = glob.contains("/");
+            String last = glob.substring(glob.lastIndexOf('/') + 1);
+            boolean separate = matchPath && !last.contains("**") && last.indexOf('}') >= last.indexOf('{')
+                    && (last.indexOf('}') < 0 || last.indexOf('{') >= 0); // Braces closed within the last segment
+            this.namePattern = separate ? Pattern.compile(globToRegex(last)) : null;
+            int wildcard = -1;
+            for (int i = 0; i < last.length(); i++) {
+                if ("*?[]{},".indexOf(last.charAt(i)) >= 0) {
+                    wildcard = i;
+                }
+            }
+            this.suffix = separate || !matchPath ? last.substring(wildcard + 1) : "";
+        }
+
+        /**
+         * Reads the arguments of "find".
+         *
+         * @param arguments The pattern and the filters, separated by spaces.
+         * @return The query.
+         * @throws IllegalArgumentException If an argument is malformed.
+         */
+
+        public static Query parse(String arguments) {
+            String[] words = arguments.trim().isEmpty() ? new String[0] : arguments.trim().split("\\s+");
+            int i = 0;
+            Query query = new Query(words.length > 0 && !words[0].startsWith("-") ? words[i++] : "*");
+            for (; i < words.length; i++) {
+                String option = words[i];
+                if (i + 1 >= words.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = words[++i];
+                switch (option) {
+                case "-type":
+                    if (!value.equals("f") && !value.equals("d")) {
+                        throw new IllegalArgumentException("Invalid type: " + value + " (expected f or d)");
+                    }
+                    query.type = value.charAt(0);
+                    break;
+                case "-size":
+                    if (value.startsWith("+")) {
+                        query.minSize = size(value.substring(1));
+                    } else if (value.startsWith("-")) {
+                        query.maxSize = size(value.substring(1));
+                    } else {
+                        throw new IllegalArgumentException("Invalid size: " + value + " (expected +N or -N, like +10M)");
+                    }
+                    break;
+                case "-newer":
+                    query.newer = time(value);
+                    break;
+                case "-older":
+                    query.older = time(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option
+                            + " (expected -type f|d, -size +N|-N, -newer or -older)");
+                }
+            }
+            return query;
+        }
+
+        boolean matches(String directory, String name, Entry entry) {
+            if ((type == 'f' && entry.directory) || (type == 'd' && !entry.directory)
+                    || (minSize >= 0 && entry.size <= minSize) || (maxSize >= 0 && entry.size >= maxSize)
+                    || entry.modified <= newer || entry.modified >= older) {
+                return false;
+            }
+            if (!name.endsWith(suffix) || (namePattern != null && !namePattern.matcher(name).matches())) {
+                return false; // Most entries stop here, without building their path
+            }
+            return pattern.matcher(matchPath && !directory.isEmpty() ? directory + "/" + name : name).matches();
+        }
+
+        static long size(String value) {
+            long unit = 1;
+            char suffix = Character.toUpperCase(value.isEmpty() ? ' ' : value.charAt(value.length() - 1));
+            if (suffix == 'K' || suffix == 'M' || suffix == 'G') {
+                unit = suffix == 'K' ? 1024 : suffix == 'M' ? 1024 * 1024 : 1024 * 1024 * 1024;
+                value = value.substring(0, value.length() - 1);
+            }
+            try {
+                return Math.multiplyExact(Long.parseLong(value), unit);
+            } catch (NumberFormatException | ArithmeticException e) {
+                throw new IllegalArgumentException("Invalid size: " + value + " (expected a number with k, M or G)");
+            }
+        }
+
+        private static long time(String value) {
+            try {
+                if (value.matches("\\d+[mhd]")) {
+                    long amount = Long.parseLong(value.substring(0, value.length() - 1));
+                    char unit = value.charAt(value.length() - 1);
+                    Duration age = unit == 'm' ? Duration.ofMinutes(amount) : unit == 'h' ? Duration.ofHours(amount) : Duration.ofDays(amount);
+                    return System.currentTimeMillis() - age.toMillis();
+                }
+                if (value.contains("T")) {
+                    return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                }
+                return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException | ArithmeticException e) {
+                throw new IllegalArgumentException("Invalid date: " + value + " (expected 2024-05-01, 2024-05-01T14:30 or an age like 7d)");
+            }
+        }
+
+        /**
+         * Translates a glob: * and ? stop at slashes, ** does not, [abc] and [!abc] are classes and {a,b} alternatives.
+         */
+
+        static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            boolean inGroup = false;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+                    String members = glob.substring(i + 1, end);
+                    regex.append('[').append(members.startsWith("!") ? "^" + quoteClass(members.substring(1)) : quoteClass(members)).append(']');
+                    i = end;
+                    break;
+                case '{':
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    regex.append(inGroup ? ")" : "\\}");
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                default:
+                    regex.append(Character.isLetterOrDigit(c) ? String.valueOf(c) : Pattern.quote(String.valueOf(c)));
+                    break;
+                }
+            }
+            if (inGroup) {
+                throw new IllegalArgumentException("Invalid pattern: " + glob + " (unclosed {)");
+            }
+            return regex.toString();
+        }
+
+        private static String quoteClass(String members) {
+            return members.replace("\\", "\\\\").replace("[", "\\[").replace("^", "\\^").replace("&", "\\&");
+        }
+    }
+}
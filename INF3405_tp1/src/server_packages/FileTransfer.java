@@ -0,0 +1,280 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.zip.Checksum;
+
+/**
+ * Moves file contents between a FileChannel and a socket.
+ * When the socket was opened through a SocketChannel the kernel copies outgoing data directly
+ * (sendfile) and incoming data is read into a caller-owned direct buffer; otherwise the bytes
+ * go through a buffered copy loop.
+ */
+
+public class FileTransfer {
+    // Largest amount handed to a single transferTo call
+    public static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    // Size of the buffer used when the socket has no channel
+    public static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Sends part of a file to the socket.
+     *
+     * @param file     The file to read from.
+     * @param position The offset of the first byte to send.
+     * @param count    The number of bytes to send.
+     * @param socket   The destination socket.
+     * @param out      The stream of the socket, used when the socket has no channel.
+     * @throws IOException If an I/O error occurs or the file is shorter than expected.
+     */
+
+    public static void send(FileChannel file, long position, long count, Socket socket, OutputStream out) throws IOException {
+        send(file, position, count, socket, out, null);
+    }
+
+    /**
+     * Sends part of a file to the socket, no faster than the given bandwidth allows.
+     * A limited transfer is sent a quantum at a time, taking turns with the other transfers.
+     *
+     * @param file      The file to read from.
+     * @param position  The offset of the first byte to send.
+     * @param count     The number of bytes to send.
+     * @param socket    The destination socket.
+     * @param out       The stream of the socket, used when the socket has no channel.
+     * @param bandwidth The bucket charged for the bytes sent, or null for no limit.
+     * @throws IOException If an I/O error occurs or the file is shorter than expected.
+     */
+
+    public static void send(FileChannel file, long position, long count, Socket socket, OutputStream out, Bandwidth bandwidth)
+            throws IOException {
+        SocketChannel channel = socket.getChannel();
+        long step = bandwidth != null ? Bandwidth.QUANTUM : TRANSFER_CHUNK;
+        long end = position + count;
+        if (channel == null) {
+            while (position < end) {
+                long length = Math.min(end - position, step);
+                copy(file, position, length, out);
+                position += length;
+                if (bandwidth != null) {
+                    bandwidth.acquire(length);
+                }
+            }
+            return;
+        }
+
+        out.flush(); // Anything written through the stream must reach the socket before the file
+        while (position < end) {
+            long sent = file.transferTo(position, Math.min(end - position, step), channel);
+            if (sent <= 0) {
+                if (position >= file.size()) {
+                    throw new IOException("File ended " + (end - position) + " bytes early");
+                }
+                // The socket buffer is full and the channel reported it instead of blocking (this happens
+                // on virtual threads): send one buffer through the stream, which waits for room
+                sent = Math.min(COPY_BUFFER_SIZE, end - position);
+                copy(file, position, sent, out);
+            }
+            position += sent;
+            if (bandwidth != null) {
+                bandwidth.acquire(sent);
+            }
+        }
+    }
+
+    /**
+     * Sends part of a file held in memory, such as a mapping from FileCache, to a socket channel.
+     *
+     * @param data      The bytes to send, from its position to its limit. Its position is moved.
+     * @param channel   The destination channel, in blocking mode.
+     * @param bandwidth The bucket charged for the bytes sent, or null for no limit.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    public static void send(ByteBuffer data, SocketChannel channel, Bandwidth bandwidth) throws IOException {
+        int end = data.limit();
+        while (data.position() < end) {
+            int start = data.position();
+            if (bandwidth != null) {
+                data.limit((int) Math.min(end, start + (long) Bandwidth.QUANTUM));
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            if (bandwidth != null) {
+                data.limit(end);
+                bandwidth.acquire(data.position() - start);
+            }
+        }
+    }
+
+    /**
+     * Copies part of a file to a stream through a heap buffer.
+     */
+
+    private static void copy(FileChannel file, long position, long count, OutputStream out) throws IOException {
+        byte[] array = new byte[COPY_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        long end = position + count;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(array.length, end - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ended " + (end - position) + " bytes early");
+            }
+            out.write(array, 0, read);
+            position += read;
+        }
+    }
+
+    /**
+     * Receives part of a file from the socket and writes it at the given position.
+     * The buffer is owned by the caller so it can be reused across transfers; a direct buffer
+     * lets the socket read land outside the Java heap.
+     *
+     * @param file     The file to write to.
+     * @param position The offset where the first received byte is written.
+     * @param count    The number of bytes to receive.
+     * @param socket   The source socket.
+     * @param in       The stream of the socket, used when the socket has no channel.
+     * @param buffer   The buffer used to move the data.
+     * @throws IOException If an I/O error occurs or the connection closes early.
+     */
+
+    public static void receive(FileChannel file, long position, long count, Socket socket, InputStream in, ByteBuffer buffer) throws IOException {
+        receive(file, position, count, socket, in, buffer, null);
+    }
+
+    /**
+     * Receives part of a file from the socket, updating a checksum with every byte written.
+     *
+     * @param file     The file to write to.
+     * @param position The offset where the first received byte is written.
+     * @param count    The number of bytes to receive.
+     * @param socket   The source socket.
+     * @param in       The stream of the socket, used when the socket has no channel.
+     * @param buffer   The buffer used to move the data.
+     * @param checksum The checksum to update, or null.
+     * @throws IOException If an I/O error occurs or the connection closes early.
+     */
+
+    public static void receive(FileChannel file, long position, long count, Socket socket, InputStream in, ByteBuffer buffer,
+            Checksum checksum) throws IOException {
+        receive(file, position, count, socket, in, buffer, checksum, null);
+    }
+
+    /**
+     * Receives part of a file from the socket, no faster than the given bandwidth allows.
+     * While a limited transfer waits, the data stays in the socket buffers and TCP slows the sender down.
+     *
+     * @param file      The file to write to.
+     * @param position  The offset where the first received byte is written.
+     * @param count     The number of bytes to receive.
+     * @param socket    The source socket.
+     * @param in        The stream of the socket, used when the socket has no channel.
+     * @param buffer    The buffer used to move the data.
+     * @param checksum  The checksum to update, or null.
+     * @param bandwidth The bucket charged for the bytes received, or null for no limit.
+     * @throws IOException If an I/O error occurs or the connection closes early.
+     */
+
+    public static void receive(FileChannel file, long position, long count, Socket socket, InputStream in, ByteBuffer buffer,
+            Checksum checksum, Bandwidth bandwidth) throws IOException {
+        ReadableByteChannel source = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(in);
+        int step = bandwidth != null ? Math.min(Bandwidth.QUANTUM, buffer.capacity()) : buffer.capacity();
+        long end = position + count;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(step, end - position));
+            if (source.read(buffer) < 0) {
+                throw new EOFException("Connection closed " + (end - position) + " bytes before the end of the file");
+            }
+            buffer.flip();
+            if (bandwidth != null) {
+                bandwidth.acquire(buffer.remaining());
+            }
+            if (checksum != null) {
+                checksum.update(buffer.duplicate());
+            }
+            while (buffer.hasRemaining()) {
+                position += file.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Reads and discards data announced on the socket, used when the receiving file cannot be opened
+     * so the stream stays in step with the sender.
+     *
+     * @param count  The number of bytes to discard.
+     * @param socket The source socket.
+     * @param in     The stream of the socket, used when the socket has no channel.
+     * @param buffer The buffer used to read the data.
+     * @throws IOException If an I/O error occurs or the connection closes early.
+     */
+
+    public static void skip(long count, Socket socket, InputStream in, ByteBuffer buffer) throws IOException {
+        ReadableByteChannel source = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(in);
+        while (count > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count));
+            int read = source.read(buffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed " + count + " bytes before the end of the file");
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * Computes the checksum of part of a file.
+     *
+     * @param file     The file to read.
+     * @param position The offset of the first byte.
+     * @param count    The number of bytes.
+     * @param buffer   The buffer used to read the file.
+     * @param checksum The checksum to update.
+     * @throws IOException If an I/O error occurs or the file is shorter than expected.
+     */
+
+    public static void checksum(FileChannel file, long position, long count, ByteBuffer buffer, Checksum checksum) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ended " + (end - position) + " bytes early");
+            }
+            buffer.flip();
+            checksum.update(buffer);
+            position += read;
+        }
+    }
+
+    /**
+     * Opens a file for writing and sets its length to the announced size up front,
+     * so the file system can lay out the blocks once instead of growing the file on every write.
+     *
+     * @param path The file to open, created if needed.
+     * @param size The final size of the file.
+     * @return A channel positioned at the start of the file.
+     * @throws IOException If the file cannot be opened or resized.
+     */
+
+    public static FileChannel openPreallocated(Path path, long size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return file.getChannel();
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Streams the bytes appended to a growing file, for "download -follow", like tail -F. The sender polls the
+ * size of the file and sends what was appended since the last poll as blocks: a length, then the bytes read
+ * at their offset in the file. A block of length 0 is a heartbeat, sent when the file has not grown for a
+ * while so that a client that went away is noticed; NOTICE is followed by a message about the file:
+ * truncated (followed from its start again), removed, or replaced by another file, as by a log rotation
+ * or an upload, which is then followed from its start. The stream ends with END once the receiver asks to
+ * stop by sending a line, which is the only way it ends besides a broken connection.
+ *
+ * Followed files are neither compressed nor verified: the stream has no end at which to check a trailer.
+ */
+
+public class FollowTransfer {
+    // Largest number of bytes sent in one block
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    // Interval after which a file that did not grow is reported alive with an empty block
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final int NOTICE = -1;
+    private static final int END = -2;
+
+    /**
+     * Sends the bytes appended to a file until the receiver asks to stop.
+     *
+     * @param path       The followed path, watched for truncation, removal and replacement.
+     * @param file       The file open on the path, closed once the stream ends.
+     * @param fileKey    The identity of the open file, from its attributes.
+     * @param position   The offset of the first byte to send.
+     * @param in         The stream receiving the request to stop.
+     * @param out        The destination stream.
+     * @param pollMillis The interval between two checks of a file that did not grow.
+     * @param bandwidth  The bucket charged for the bytes sent, or null for no limit.
+     * @param locks      The locks taken to open a replacing file.
+     * @return The number of file bytes sent.
+     * @throws IOException If an I/O error occurs on the connection or the file.
+     */
+
+    public static long send(Path path, FileChannel file, Object fileKey, long position, DataInputStream in, DataOutputStream out,
+            long pollMillis, Bandwidth bandwidth, PathLocks locks) throws IOException {
+        byte[] block = new byte[Integer.BYTES + BLOCK_SIZE]; // Length and bytes, written at once
+        long sent = 0;
+        long quiet = System.nanoTime();
+        boolean removed = false;
+        try {
+            while (in.available() == 0) {
+                long size = file.size();
+                if (size < position) {
+                    notice(out, path.getFileName() + " was truncated to " + size + " bytes, following it from its start");
+                    position = 0;
+                }
+                int length = size > position ? read(file, position, block, (int) Math.min(BLOCK_SIZE, size - position)) : 0;
+                if (length > 0) {
+                    ByteBuffer.wrap(block).putInt(length);
+                    out.write(block, 0, Integer.BYTES + length);
+                    out.flush();
+                    position += length;
+                    sent += length;
+                    if (bandwidth != null) {
+                        bandwidth.acquire(length);
+                    }
+                    quiet = System.nanoTime();
+                    continue; // More may be waiting
+                }
+
+                // Caught up: look for a file that took the place of the open one
+                BasicFileAttributes current;
+                try {
+                    current = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    current = null;
+                }
+                if (current == null) {
+                    if (!removed) {
+                        notice(out, path.getFileName() + " was removed, waiting for it to reappear");
+                        removed = true;
+                    }
+                } else if (!Objects.equals(current.fileKey(), fileKey)) {
+                    FileChannel replacement = null;
+                    Lock lock = locks.read(path);
+                    try {
+                        replacement = FileChannel.open(path, StandardOpenOption.READ);
+                        fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+                    } catch (IOException e) {
+                        if (replacement != null) {
+                            replacement.close();
+                        }
+                        if (e instanceof NoSuchFileException) {
+                            continue; // Removed again
+                        }
+                        throw e;
+                    } finally {
+                        lock.unlock();
+                    }
+                    file.close();
+                    file = replacement;
+                    position = 0;
+                    removed = false;
+                    notice(out, path.getFileName() + " was replaced, following the new file from its start");
+                    continue;
+                }
+
+                if (System.nanoTime() - quiet > HEARTBEAT_NANOS) {
+                    out.writeInt(0);
+                    out.flush();
+                    quiet = System.nanoTime();
+                }
+                try {
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while following " + path);
+                }
+            }
+        } finally {
+            file.close();
+        }
+        in.readUTF(); // The request to stop
+        out.writeInt(END);
+        return sent;
+    }
+
+    /**
+     * Asks the sender to stop following the file. The blocks already sent are still received.
+     *
+     * @param out The stream to the sender.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    public static void stop(DataOutputStream out) throws IOException {
+        out.writeUTF("stop");
+        out.flush();
+    }
+
+    /**
+     * Receives the bytes of a followed file until the end of the stream.
+     *
+     * @param in      The source stream.
+     * @param data    The stream receiving the bytes of the file.
+     * @param notices The stream receiving the messages about the file.
+     * @return The number of file bytes received.
+     * @throws IOException If an I/O error occurs or a block is malformed.
+     */
+
+    public static long receive(DataInputStream in, OutputStream data, PrintStream notices) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        long received = 0;
+        while (true) {
+            int length = in.readInt();
+            if (length == END) {
+                return received;
+            }
+            if (length == NOTICE) {
+                notices.println(in.readUTF());
+                continue;
+            }
+            if (length < 0 || length > BLOCK_SIZE) {
+                throw new IOException("Malformed follow block of length " + length);
+            }
+            in.readFully(block, 0, length);
+            data.write(block, 0, length);
+            data.flush();
+            received += length;
+        }
+    }
+
+    private static void notice(DataOutputStream out, String message) throws IOException {
+        out.writeInt(NOTICE);
+        out.writeUTF(message);
+        out.flush();
+    }
+
+    /**
+     * Reads up to length bytes at a position, after the length field of the block.
+     *
+     * @return The number of bytes read, fewer if the file was truncated in between.
+     */
+
+    private static int read(FileChannel file, long position, byte[] block, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block, Integer.BYTES, length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position() - Integer.BYTES) < 0) {
+                break;
+            }
+        }
+        return buffer.position() - Integer.BYTES;
+    }
+}
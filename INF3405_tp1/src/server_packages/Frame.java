@@ -0,0 +1,189 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message of the framed protocol (version 2), negotiated with "proto 2" after the hello message.
+ * Each frame is an opcode byte, a request id, a payload length and the payload. Requests carry a
+ * command line in UTF-8; responses carry the messages produced by that command, encoded one after
+ * the other like writeUTF does, and complete the request with the same id. Because every response
+ * names its request, a client can send many commands without waiting for each answer.
+ *
+ * A response larger than PART_SIZE, or one whose command flushes progress messages while it runs, is
+ * sent as PARTIAL frames followed by the RESPONSE frame, see ResponseStream; the receiver joins their
+ * payloads. No frame carries more than MAX_PAYLOAD bytes.
+ */
+
+public class Frame {
+    // Protocol version announced by "proto"
+    public static final int VERSION = 2;
+
+    // Opcodes
+    public static final byte COMMAND = 1;
+    public static final byte RESPONSE = 2;
+    public static final byte PARTIAL = 3;
+
+    // Largest payload accepted, protects against corrupted length fields
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    // Size past which the messages of a response are sent ahead in a PARTIAL frame
+    public static final int PART_SIZE = 1024 * 1024;
+
+    private static final int HEADER_SIZE = 1 + Integer.BYTES + Integer.BYTES;
+
+    public final byte opcode;
+    public final int requestId;
+    public final byte[] payload;
+
+    /**
+     * Constructor for Frame.
+     *
+     * @param opcode    The kind of frame.
+     * @param requestId The id of the request this frame belongs to.
+     * @param payload   The payload of the frame.
+     */
+
+    public Frame(byte opcode, int requestId, byte[] payload) {
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    /**
+     * Reads the next frame from the stream.
+     *
+     * @param in The stream to read from.
+     * @return The frame.
+     * @throws IOException If an I/O error occurs or the frame is malformed.
+     */
+
+    public static Frame read(DataInputStream in) throws IOException {
+        byte opcode = in.readByte();
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(opcode, requestId, payload);
+    }
+
+    /**
+     * Writes a frame with a single write call, so frames from different threads never interleave
+     * as long as the caller holds the stream.
+     *
+     * @param out       The stream to write to.
+     * @param opcode    The kind of frame.
+     * @param requestId The id of the request this frame belongs to.
+     * @param payload   The payload of the frame.
+     * @throws IOException If an I/O error occurs or the payload is larger than MAX_PAYLOAD.
+     */
+
+    public static void write(DataOutputStream out, byte opcode, int requestId, byte[] payload) throws IOException {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IOException("Frame payload of " + payload.length + " bytes exceeds " + MAX_PAYLOAD);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.put(opcode).putInt(requestId).putInt(payload.length).put(payload);
+        out.write(frame.array());
+    }
+
+    /**
+     * Collects the messages a command writes for one request and sends them as frames: a PARTIAL frame
+     * whenever PART_SIZE bytes are waiting or the command flushes, so that progress messages reach the
+     * client while the command runs, then the RESPONSE frame with the rest once the command is done.
+     * A single write, such as one writeUTF message, is never split between two frames.
+     */
+
+    public static class ResponseStream extends OutputStream {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private int requestId;
+
+        /**
+         * Constructor for ResponseStream.
+         *
+         * @param out The stream the frames are written to, flushed when the command flushes.
+         */
+
+        public ResponseStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Starts the response to a request.
+         *
+         * @param requestId The id of the request answered by the next messages.
+         */
+
+        public void begin(int requestId) {
+            this.requestId = requestId;
+            buffer.reset();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (buffer.size() > 0 && buffer.size() + length > PART_SIZE) {
+                sendPart();
+            }
+            buffer.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.size() > 0) {
+                sendPart();
+            }
+            out.flush();
+        }
+
+        /**
+         * Completes the response with a RESPONSE frame holding the messages not sent yet.
+         *
+         * @throws IOException If an I/O error occurs.
+         */
+
+        public void finish() throws IOException {
+            Frame.write(out, RESPONSE, requestId, buffer.toByteArray());
+            buffer.reset();
+        }
+
+        private void sendPart() throws IOException {
+            Frame.write(out, PARTIAL, requestId, buffer.toByteArray());
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Splits a response payload back into the messages written by the command.
+     *
+     * @return The messages, in the order they were written.
+     * @throws IOException If the payload is malformed.
+     */
+
+    public List<String> messages() throws IOException {
+        List<String> messages = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            while (in.available() > 0) {
+                messages.add(in.readUTF());
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated response for request " + requestId);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side of the framed protocol. Commands are sent without waiting for the previous
+ * answers; a reader thread matches every response frame to its request id and completes
+ * the future returned by send, whatever order the responses arrive in.
+ */
+
+public class FramedConnection implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Map<Integer, CompletableFuture<List<String>>> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, ByteArrayOutputStream> parts = new HashMap<>(); // Responses received in part, by request id
+    private int nextRequestId;
+    private volatile boolean closed;
+
+    /**
+     * Connects to the server and switches the session to the framed protocol.
+     *
+     * @param address The IP address of the server.
+     * @param port    The port of the server.
+     * @throws IOException If the connection fails or the server only speaks the text protocol.
+     */
+
+    public FramedConnection(String address, int port) throws IOException {
+        socket = SocketChannel.open(new InetSocketAddress(address, port)).socket();
+        socket.setTcpNoDelay(true);
+        try {
+            DataInputStream hello = new DataInputStream(socket.getInputStream());
+            DataOutputStream negotiation = new DataOutputStream(socket.getOutputStream());
+            hello.readUTF(); // Welcome message
+            negotiation.writeUTF("proto " + Frame.VERSION);
+            String answer = hello.readUTF();
+            if (!answer.equals("proto " + Frame.VERSION)) {
+                throw new IOException("The server does not support the framed protocol: " + answer);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        Thread reader = new Thread(this::readResponses, "framed-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a command without waiting for its answer.
+     *
+     * @param command The command line, as typed in the console client.
+     * @return A future completed with the messages of the response.
+     */
+
+    public CompletableFuture<List<String>> send(String command) {
+        CompletableFuture<List<String>> response = new CompletableFuture<>();
+        synchronized (out) {
+            if (closed) {
+                response.completeExceptionally(new IOException("Connection closed"));
+                return response;
+            }
+            int requestId = nextRequestId++;
+            pending.put(requestId, response);
+            try {
+                Frame.write(out, Frame.COMMAND, requestId, command.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                pending.remove(requestId);
+                response.completeExceptionally(e);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Completes the pending requests as their responses arrive.
+     */
+
+    private void readResponses() {
+        IOException failure = new IOException("Connection closed");
+        try {
+            while (true) {
+                Frame frame = Frame.read(in);
+                if (frame.opcode == Frame.PARTIAL) {
+                    parts.computeIfAbsent(frame.requestId, id -> new ByteArrayOutputStream()).write(frame.payload);
+                    continue;
+                }
+                ByteArrayOutputStream earlier = parts.remove(frame.requestId);
+                if (earlier != null) {
+                    earlier.write(frame.payload);
+                    frame = new Frame(frame.opcode, frame.requestId, earlier.toByteArray());
+                }
+                CompletableFuture<List<String>> response = pending.remove(frame.requestId);
+                if (response != null) {
+                    response.complete(frame.messages());
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                failure = e;
+            }
+        }
+        synchronized (out) { // Under the lock of send, so no request is registered once pending is failed
+            closed = true;
+            for (CompletableFuture<List<String>> response : pending.values()) {
+                response.completeExceptionally(failure);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Returns the number of requests still waiting for their response.
+     *
+     * @return The number of requests in flight.
+     */
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Ends the session. Requests still in flight fail.
+     */
+
+    public void close() throws IOException {
+        synchronized (out) {
+            if (!closed) {
+                closed = true;
+                try {
+                    Frame.write(out, Frame.COMMAND, nextRequestId++, "exit".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException e) {
+                    // The connection is already gone
+                }
+            }
+        }
+        socket.close();
+    }
+}
@@ -0,0 +1,316 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide metrics: sessions, bytes transferred, a latency histogram per command and the contention
+ * of the path locks.
+ * Every update is a LongAdder or atomic increment, cheap enough for each command of each session.
+ * The values are registered as MXBeans under "inf3405:type=Server" and "inf3405:type=Command,name=..."
+ * for JConsole and other JMX clients, and rendered in the Prometheus text format by MetricsEndpoint.
+ */
+
+public class Metrics {
+    // Commands receiving file data, their bytes count as bytes in; the others count as bytes out
+    private static final Set<String> INBOUND_COMMANDS = Set.of("upload", "mupload", "putchunk", "dupload", "delta");
+
+    private static final Metrics shared = new Metrics();
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final LongAccumulator peakSessions = new LongAccumulator(Math::max, 0);
+    private final LongAdder acceptedSessions = new LongAdder();
+    private final LongAdder rejectedSessions = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder lockAcquisitions = new LongAdder();
+    private final LongAdder lockContentions = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongAccumulator lockMaxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final long startTime = System.currentTimeMillis();
+    private final Map<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    /**
+     * The server-wide values, as seen through JMX.
+     */
+
+    public interface ServerMXBean {
+        int getActiveSessions();
+        long getPeakSessions();
+        long getAcceptedSessions();
+        long getRejectedSessions();
+        long getBytesIn();
+        long getBytesOut();
+        long getUptimeSeconds();
+        long getLockAcquisitions();
+        long getLockContentions();
+        double getLockWaitMillis();
+        double getLockMaxWaitMillis();
+    }
+
+    /**
+     * The values of one command, as seen through JMX. Latencies are in microseconds.
+     */
+
+    public interface CommandMXBean {
+        long getCount();
+        long getErrors();
+        long getBytes();
+        double getMeanMicros();
+        long getP50Micros();
+        long getP90Micros();
+        long getP99Micros();
+        long getP999Micros();
+        long getMaxMicros();
+    }
+
+    /**
+     * Counters and latency histogram of one command.
+     */
+
+    public static class CommandMetrics implements CommandMXBean {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        public long getCount() {
+            return latency.count();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public double getMeanMicros() {
+            long count = latency.count();
+            return count == 0 ? 0 : (double) latency.sum() / count;
+        }
+
+        public long getP50Micros() {
+            return latency.percentile(0.5);
+        }
+
+        public long getP90Micros() {
+            return latency.percentile(0.9);
+        }
+
+        public long getP99Micros() {
+            return latency.percentile(0.99);
+        }
+
+        public long getP999Micros() {
+            return latency.percentile(0.999);
+        }
+
+        public long getMaxMicros() {
+            return latency.max();
+        }
+    }
+
+    private Metrics() {
+        register("inf3405:type=Server", new ServerMXBean() {
+            public int getActiveSessions() {
+                return activeSessions.get();
+            }
+
+            public long getPeakSessions() {
+                return peakSessions.get();
+            }
+
+            public long getAcceptedSessions() {
+                return acceptedSessions.sum();
+            }
+
+            public long getRejectedSessions() {
+                return rejectedSessions.sum();
+            }
+
+            public long getBytesIn() {
+                return bytesIn.sum();
+            }
+
+            public long getBytesOut() {
+                return bytesOut.sum();
+            }
+
+            public long getUptimeSeconds() {
+                return (System.currentTimeMillis() - startTime) / 1000;
+            }
+
+            public long getLockAcquisitions() {
+                return lockAcquisitions.sum();
+            }
+
+            public long getLockContentions() {
+                return lockContentions.sum();
+            }
+
+            public double getLockWaitMillis() {
+                return lockWaitNanos.sum() / 1e6;
+            }
+
+            public double getLockMaxWaitMillis() {
+                return lockMaxWaitNanos.get() / 1e6;
+            }
+        });
+    }
+
+    /**
+     * Returns the metrics of the server.
+     *
+     * @return The shared registry.
+     */
+
+    public static Metrics shared() {
+        return shared;
+    }
+
+    /**
+     * Records the start of a session.
+     */
+
+    public void sessionOpened() {
+        acceptedSessions.increment();
+        peakSessions.accumulate(activeSessions.incrementAndGet());
+    }
+
+    /**
+     * Records the end of a session started with sessionOpened.
+     */
+
+    public void sessionClosed() {
+        activeSessions.decrementAndGet();
+    }
+
+    /**
+     * Records a connection turned away because the session limit was reached.
+     */
+
+    public void sessionRejected() {
+        rejectedSessions.increment();
+    }
+
+    /**
+     * Records a completed command.
+     *
+     * @param command  The name of the command, "unknown" for commands the server does not know.
+     * @param duration The time taken, in nanoseconds.
+     * @param bytes    The number of file bytes transferred.
+     * @param failed   true if the command reported an error or broke the connection.
+     */
+
+    public void commandDone(String command, long duration, long bytes, boolean failed) {
+        CommandMetrics metrics = commands.get(command);
+        if (metrics == null) {
+            metrics = commands.computeIfAbsent(command, name -> {
+                CommandMetrics created = new CommandMetrics();
+                register("inf3405:type=Command,name=" + ObjectName.quote(name), created);
+                return created;
+            });
+        }
+        metrics.latency.record(duration / 1000);
+        if (failed) {
+            metrics.errors.increment();
+        }
+        if (bytes > 0) {
+            metrics.bytes.add(bytes);
+            (INBOUND_COMMANDS.contains(command) ? bytesIn : bytesOut).add(bytes);
+        }
+    }
+
+    /**
+     * Records a path lock acquired without waiting.
+     */
+
+    public void lockAcquired() {
+        lockAcquisitions.increment();
+    }
+
+    /**
+     * Records a path lock acquired after waiting for another command.
+     *
+     * @param wait The time waited, in nanoseconds.
+     */
+
+    public void lockContended(long wait) {
+        lockAcquisitions.increment();
+        lockContentions.increment();
+        lockWaitNanos.add(wait);
+        lockMaxWaitNanos.accumulate(wait);
+    }
+
+    public int activeSessions() {
+        return activeSessions.get();
+    }
+
+    public long peakSessions() {
+        return peakSessions.get();
+    }
+
+    public long acceptedSessions() {
+        return acceptedSessions.sum();
+    }
+
+    public long rejectedSessions() {
+        return rejectedSessions.sum();
+    }
+
+    public long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long lockAcquisitions() {
+        return lockAcquisitions.sum();
+    }
+
+    public long lockContentions() {
+        return lockContentions.sum();
+    }
+
+    public long lockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    public long lockMaxWaitNanos() {
+        return lockMaxWaitNanos.get();
+    }
+
+    public long startTime() {
+        return startTime;
+    }
+
+    /**
+     * Returns the metrics of every command seen so far, sorted by name.
+     *
+     * @return The command metrics, keyed by command name.
+     */
+
+    public Map<String, CommandMetrics> commands() {
+        return new TreeMap<>(commands);
+    }
+
+    private void register(String name, Object mxbean) {
+        try {
+            mbeanServer.registerMBean(mxbean, new ObjectName(name));
+        } catch (JMException e) {
+            System.err.println("Couldn't register " + name + " with JMX: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the server metrics over HTTP in the Prometheus text format, on the loopback interface only.
+ * A scrape of http://127.0.0.1:port/metrics reads the counters without stopping the sessions;
+ * the bytes per second are averaged over the time since the previous scrape.
+ */
+
+public class MetricsEndpoint {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Metrics metrics;
+    private final HttpServer server;
+
+    // Totals seen by the previous scrape, for the rates
+    private long lastScrape;
+    private long lastBytesIn;
+    private long lastBytesOut;
+
+    /**
+     * Constructor for MetricsEndpoint. Binds the endpoint without starting it.
+     *
+     * @param metrics The metrics to serve.
+     * @param port    The local port to listen on.
+     * @throws IOException If the port cannot be bound.
+     */
+
+    public MetricsEndpoint(Metrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.lastScrape = System.nanoTime();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    }
+
+    /**
+     * Starts serving scrapes on a background thread.
+     */
+
+    public void start() {
+        server.createContext("/metrics", this::scrape);
+        server.start(); // The default executor runs the handler on the dispatcher thread, one scrape at a time
+        System.out.format("Metrics available on http://%s:%d/metrics%n",
+                server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Formats every metric in the Prometheus text exposition format.
+     *
+     * @return The text of a scrape.
+     */
+
+    String render() {
+        StringBuilder text = new StringBuilder(4096);
+        long now = System.nanoTime();
+        long bytesIn = metrics.bytesIn();
+        long bytesOut = metrics.bytesOut();
+        double seconds = Math.max(1e-9, (now - lastScrape) / 1e9);
+
+        gauge(text, "inf3405_sessions_active", "Sessions currently connected", metrics.activeSessions());
+        gauge(text, "inf3405_sessions_peak", "Highest number of sessions connected at the same time", metrics.peakSessions());
+        counter(text, "inf3405_sessions_accepted_total", "Sessions accepted", metrics.acceptedSessions());
+        counter(text, "inf3405_sessions_rejected_total", "Connections rejected because the session limit was reached", metrics.rejectedSessions());
+        counter(text, "inf3405_bytes_in_total", "File bytes received from clients", bytesIn);
+        counter(text, "inf3405_bytes_out_total", "File bytes sent to clients", bytesOut);
+        gauge(text, "inf3405_bytes_in_per_second", "File bytes received per second since the previous scrape", (bytesIn - lastBytesIn) / seconds);
+        gauge(text, "inf3405_bytes_out_per_second", "File bytes sent per second since the previous scrape", (bytesOut - lastBytesOut) / seconds);
+        gauge(text, "inf3405_uptime_seconds", "Time since the server started", (System.currentTimeMillis() - metrics.startTime()) / 1000.0);
+        counter(text, "inf3405_path_lock_acquisitions_total", "Path locks taken by uploads, downloads, deletes and mkdirs", metrics.lockAcquisitions());
+        counter(text, "inf3405_path_lock_contentions_total", "Path locks that had to wait for another command", metrics.lockContentions());
+        counter(text, "inf3405_path_lock_wait_seconds_total", "Time spent waiting for path locks", metrics.lockWaitNanos() / 1e9);
+        gauge(text, "inf3405_path_lock_max_wait_seconds", "Longest wait for a path lock", metrics.lockMaxWaitNanos() / 1e9);
+        lastScrape = now;
+        lastBytesIn = bytesIn;
+        lastBytesOut = bytesOut;
+
+        Map<String, Metrics.CommandMetrics> commands = metrics.commands();
+        header(text, "inf3405_command_errors_total", "Commands that reported an error or broke the connection", "counter");
+        for (Map.Entry<String, Metrics.CommandMetrics> entry : commands.entrySet()) {
+            sample(text, "inf3405_command_errors_total", entry.getKey(), null, entry.getValue().getErrors());
+        }
+        header(text, "inf3405_command_bytes_total", "File bytes transferred by the command", "counter");
+        for (Map.Entry<String, Metrics.CommandMetrics> entry : commands.entrySet()) {
+            sample(text, "inf3405_command_bytes_total", entry.getKey(), null, entry.getValue().getBytes());
+        }
+        header(text, "inf3405_command_latency_seconds", "Time taken by the command", "summary");
+        for (Map.Entry<String, Metrics.CommandMetrics> entry : commands.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            for (double quantile : QUANTILES) {
+                sample(text, "inf3405_command_latency_seconds", entry.getKey(), quantile, latency.percentile(quantile) / 1e6);
+            }
+            sample(text, "inf3405_command_latency_seconds_sum", entry.getKey(), null, latency.sum() / 1e6);
+            sample(text, "inf3405_command_latency_seconds_count", entry.getKey(), null, latency.count());
+        }
+        header(text, "inf3405_command_latency_max_seconds", "Longest time taken by the command", "gauge");
+        for (Map.Entry<String, Metrics.CommandMetrics> entry : commands.entrySet()) {
+            sample(text, "inf3405_command_latency_max_seconds", entry.getKey(), null, entry.getValue().latency.max() / 1e6);
+        }
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(number(value)).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, double value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(number(value)).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String command, Double quantile, double value) {
+        text.append(name).append("{command=\"").append(escape(command)).append('"');
+        if (quantile != null) {
+            text.append(",quantile=\"").append(quantile).append('"');
+        }
+        text.append("} ").append(number(value)).append('\n');
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
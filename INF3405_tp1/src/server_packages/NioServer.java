@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to the thread-per-session server. Connections are accepted
+ * on a ServerSocketChannel and spread over a small number of event loops, each owning
+ * a Selector, so thousands of clients are served without a stack per connection.
+ */
+
+public class NioServer {
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger nextClientNumber = new AtomicInteger();
+
+    /**
+     * Constructor for NioServer.
+     * Opens one selector per event loop.
+     *
+     * @param config The server configuration.
+     * @throws IOException If a selector cannot be opened.
+     */
+
+    public NioServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.loops = new EventLoop[config.eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Binds to the given addresses, starts the event loops and accepts connections until the channels are closed.
+     * The first address is accepted on the calling thread, every other one on its own thread.
+     *
+     * @param addresses The addresses to listen on.
+     * @throws IOException If a server channel cannot be bound.
+     */
+
+    public void run(List<InetSocketAddress> addresses) throws IOException {
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            for (InetSocketAddress address : addresses) {
+                listeners.add(Server.bind(address, config));
+                System.out.format("The server is running on %s with %d event loops%n", Server.describe(address), loops.length);
+            }
+
+            for (EventLoop loop : loops) {
+                Thread thread = new Thread(loop, "nio-loop-" + loop.index);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            for (ServerSocketChannel listener : listeners.subList(1, listeners.size())) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        accept(listener);
+                    } catch (IOException e) {
+                        System.err.println("Server error: " + e.getMessage());
+                    }
+                }, "accept-" + listener.socket().getLocalSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            }
+            accept(listeners.get(0));
+        } finally {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on one listener and spreads them over the event loops.
+     * A connection that cannot be set up (e.g. reset by the client already) is closed and the loop goes on.
+     */
+
+    private void accept(ServerSocketChannel listener) throws IOException {
+        while (true) {
+            SocketChannel channel = listener.accept(); // Blocking accept, the loops only do I/O
+            int clientNumber = nextClientNumber.getAndIncrement();
+            if (activeSessions.incrementAndGet() > config.maxSessions) {
+                activeSessions.decrementAndGet();
+                reject(channel, clientNumber);
+                continue;
+            }
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (config.socketBufferSize > 0) {
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, config.socketBufferSize);
+                }
+                loops[clientNumber % loops.length].register(channel, clientNumber);
+            } catch (IOException e) {
+                activeSessions.decrementAndGet();
+                System.err.println("Couldn't set up client#" + clientNumber + ": " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already broken
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sessions currently being served.
+     *
+     * @return The number of active sessions.
+     */
+
+    public int activeSessions() {
+        return activeSessions.get();
+    }
+
+    /**
+     * Sends the rejection message in place of the hello message and closes the connection.
+     *
+     * @param channel      The rejected client channel.
+     * @param clientNumber The number associated with the client.
+     */
+
+    private void reject(SocketChannel channel, int clientNumber) {
+        Metrics.shared().sessionRejected();
+        try (channel) {
+            ByteBuffer message = NioSession.encodeUTF("Server busy: " + config.maxSessions
+                    + " sessions already connected, please try again later");
+            channel.write(message); // Best effort, the socket is still in blocking mode
+        } catch (IOException e) {
+            System.err.println("Couldn't notify rejected client# " + clientNumber + ": " + e.getMessage());
+        }
+        System.out.println("Rejected client#" + clientNumber + ": session limit reached");
+    }
+
+    /**
+     * A single-threaded loop multiplexing the I/O of many sessions over one selector.
+     */
+
+    private class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<NioSession> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> finished = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> waiting = new PriorityQueue<>(Comparator.comparingLong(NioSession::resumeAt));
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Queues a new connection for registration by the loop thread and wakes the selector up.
+         */
+
+        void register(SocketChannel channel, int clientNumber) throws IOException {
+            channel.configureBlocking(false);
+            pending.add(new NioSession(channel, clientNumber, config));
+            Metrics.shared().sessionOpened();
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    select();
+                    registerPending();
+                    finishWorks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                    resumeWaiting();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Waits for I/O, but no longer than until the first session waiting for bandwidth can resume.
+         */
+
+        private void select() throws IOException {
+            NioSession next = waiting.peek();
+            if (next == null) {
+                selector.select();
+                return;
+            }
+            long delay = next.resumeAt() - System.nanoTime();
+            if (delay <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay + 999_999)));
+            }
+        }
+
+        private void resumeWaiting() {
+            long now = System.nanoTime();
+            NioSession session;
+            while ((session = waiting.peek()) != null && session.resumeAt() - now <= 0) {
+                waiting.poll();
+                if (session.isClosed()) {
+                    continue;
+                }
+                try {
+                    session.resume();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error handling client# " + session.clientNumber() + ": " + e);
+                    session.close();
+                }
+                if (session.isClosed()) {
+                    close(session);
+                }
+            }
+        }
+
+        private void finishWorks() {
+            NioSession session;
+            while ((session = finished.poll()) != null) {
+                if (session.isClosed()) {
+                    session.discardWork(); // Already counted as closed by the loop
+                    continue;
+                }
+                try {
+                    session.finishWork();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error handling client# " + session.clientNumber() + ": " + e);
+                    session.close();
+                }
+                if (session.isClosed()) {
+                    close(session);
+                }
+            }
+        }
+
+        private void registerPending() {
+            NioSession session;
+            while ((session = pending.poll()) != null) {
+                try {
+                    session.start(selector, waiting, finished);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Couldn't register client#" + session.clientNumber() + ": " + e.getMessage());
+                    close(session);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            NioSession session = (NioSession) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    session.onWritable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    session.onReadable();
+                }
+            } catch (IOException | RuntimeException e) { // A bad request ends its own session, never the loop
+                System.err.println("Error handling client# " + session.clientNumber() + ": " + e);
+                session.close();
+            }
+            if (session.isClosed()) {
+                close(session);
+            }
+        }
+
+        private void close(NioSession session) {
+            session.close();
+            activeSessions.decrementAndGet();
+            Metrics.shared().sessionClosed();
+            System.out.println("Connection with client# " + session.clientNumber() + " closed");
+        }
+    }
+}
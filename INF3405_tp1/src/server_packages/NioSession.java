@@ -0,0 +1,660 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * State of one client connection served by a NioServer event loop.
+ * Frames the writeUTF-style messages of the command protocol out of ByteBuffers
+ * and streams uploads and downloads without blocking the loop thread on the socket.
+ * Plain commands are delegated to a ClientHandler writing its responses to memory, on a worker thread
+ * since they may wait for the disk or the lock of a path.
+ */
+
+public class NioSession {
+    private static final int READ_BUFFER_SIZE = 128 * 1024; // Holds at least one maximal UTF frame (2 + 65535 bytes)
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024; // Bytes sent per wakeup, keeps the loop fair
+
+    private enum State { COMMAND, UPLOAD_LENGTH, UPLOAD_BODY, WORKING, SENDING_FILE, CLOSED }
+
+    // Threads doing the work that may block, off the event loops: commands, opening downloads, installing uploads
+    private static final ExecutorService WORKERS = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Work handed to a worker thread, or its completion run by the event loop.
+     */
+
+    private interface Work {
+        void run() throws IOException;
+    }
+
+    private final SocketChannel channel;
+    private final int clientNumber;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+    private final DataOutputStream responses = new DataOutputStream(responseBytes);
+    private final ClientHandler handler;
+
+    private SelectionKey key;
+    private State state = State.COMMAND;
+    private FileChannel file;
+    private ByteBuffer cached; // Contents of the file being downloaded when it comes from the hot-file cache
+    private Path temporary; // File receiving the upload in progress, renamed over the target once complete
+    private String fileName;
+    private long position;
+    private long remaining;
+    private long first; // Offset of the first byte of the download
+    private String part; // Range of the download, described in its completion message
+    private String streamedCommand; // Command line of the upload or download in progress, for the access log
+    private long streamStart;
+    private final Bandwidth bandwidth; // Rate limit of uploads and downloads, null when none is configured
+    private final Durability durability;
+    private final PathLocks locks;
+    private Queue<NioSession> waiting; // Sessions of the event loop waiting for bandwidth
+    private Queue<NioSession> finished; // Sessions of the event loop whose work a worker has done
+    private Work then; // Completion of the work in progress, run by the event loop
+    private Exception failure; // Error that ended the work in progress, closes the session
+    private long uploaded; // Size of the upload being installed
+    private String installError; // Outcome of the install, null when it succeeded
+    private long resumeAt; // System.nanoTime at which a transfer waiting for bandwidth resumes, 0 when not waiting
+
+    /**
+     * Constructor for NioSession.
+     *
+     * @param channel      The non-blocking client channel.
+     * @param clientNumber The number associated with the client.
+     * @param config       The server configuration.
+     * @throws IOException If the remote address cannot be read.
+     */
+
+    public NioSession(SocketChannel channel, int clientNumber, ServerConfig config) throws IOException {
+        this.channel = channel;
+        this.clientNumber = clientNumber;
+        this.handler = new ClientHandler((InetSocketAddress) channel.getRemoteAddress(), clientNumber, responses, config);
+        this.bandwidth = handler.bandwidth();
+        this.durability = Durability.shared(config);
+        this.locks = PathLocks.shared(config);
+    }
+
+    /**
+     * Encodes a message exactly like DataOutputStream.writeUTF does.
+     *
+     * @param message The message to encode.
+     * @return A buffer ready to be written to a channel.
+     * @throws IOException If the message is too long for the format.
+     */
+
+    static ByteBuffer encodeUTF(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(message);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Registers the session with the selector of its event loop and sends the hello message.
+     *
+     * @param selector  The selector of the event loop owning this session.
+     * @param waiting   The queue where the session puts itself while its transfer waits for bandwidth,
+     *                  the event loop calls resume once resumeAt is reached.
+     * @param finished  The queue where the session is put once a worker has done its work, the event loop
+     *                  then calls finishWork.
+     * @throws IOException If the channel cannot be registered.
+     */
+
+    void start(Selector selector, Queue<NioSession> waiting, Queue<NioSession> finished) throws IOException {
+        this.waiting = waiting;
+        this.finished = finished;
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        responses.writeUTF("Hello from server - you are client#" + clientNumber);
+        queueResponses();
+        onWritable();
+    }
+
+    /**
+     * Reads what is available on the channel and processes every complete message.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        processInput();
+        onWritable();
+    }
+
+    /**
+     * Writes queued responses and the file being downloaded for as long as the channel accepts data.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+
+    void onWritable() throws IOException {
+        while (state != State.CLOSED) {
+            if (!drainQueue()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (resumeAt != 0 || state == State.WORKING) {
+                key.interestOps(0); // Neither read nor send file data until the event loop resumes the session
+                return;
+            }
+            if (state != State.SENDING_FILE) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (!sendFileChunk()) {
+                key.interestOps(resumeAt != 0 ? 0 : SelectionKey.OP_WRITE);
+                return;
+            }
+            finishDownload();
+            processInput(); // Commands may have been pipelined behind the download
+        }
+    }
+
+    /**
+     * Continues the transfer that was waiting for bandwidth, called by the event loop once resumeAt is reached.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+
+    void resume() throws IOException {
+        resumeAt = 0;
+        processInput(); // Upload data may be left in the read buffer
+        onWritable();
+    }
+
+    long resumeAt() {
+        return resumeAt;
+    }
+
+    /**
+     * Charges bytes moved by the transfer in progress and, if the bandwidth is exhausted,
+     * suspends the transfer until the bucket is out of debt.
+     *
+     * @return true if the transfer must wait.
+     */
+
+    private boolean charge(long bytes) {
+        if (bandwidth == null || bytes == 0) {
+            return false;
+        }
+        long wait = bandwidth.reserve(bytes);
+        if (wait <= 0) {
+            return false;
+        }
+        resumeAt = System.nanoTime() + wait;
+        waiting.add(this);
+        return true;
+    }
+
+    /**
+     * Consumes the complete messages held in the read buffer according to the current state.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void processInput() throws IOException {
+        readBuffer.flip();
+        try {
+            while (true) {
+                if (state == State.COMMAND) {
+                    if (readBuffer.remaining() < 2) {
+                        return;
+                    }
+                    int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+                    if (readBuffer.remaining() < 2 + length) {
+                        return;
+                    }
+                    byte[] frame = new byte[2 + length];
+                    readBuffer.get(frame);
+                    dispatch(new DataInputStream(new ByteArrayInputStream(frame)).readUTF());
+
+                } else if (state == State.UPLOAD_LENGTH) {
+                    if (readBuffer.remaining() < 8) {
+                        return;
+                    }
+                    remaining = readBuffer.getLong();
+                    if (remaining < 0) {
+                        abortUpload("Invalid upload length: " + remaining);
+                        continue;
+                    }
+                    state = State.UPLOAD_BODY;
+                    if (remaining == 0) {
+                        finishUpload();
+                    }
+
+                } else if (state == State.UPLOAD_BODY) {
+                    if (!readBuffer.hasRemaining() || resumeAt != 0) {
+                        return;
+                    }
+                    int count = (int) Math.min(remaining, readBuffer.remaining());
+                    ByteBuffer slice = readBuffer.slice(readBuffer.position(), count);
+                    while (slice.hasRemaining()) {
+                        file.write(slice);
+                    }
+                    readBuffer.position(readBuffer.position() + count);
+                    remaining -= count;
+                    if (remaining == 0) {
+                        finishUpload();
+                    } else if (charge(count)) {
+                        return;
+                    }
+
+                } else {
+                    return; // Sending a file or closed: leave the input for later
+                }
+            }
+        } finally {
+            if (state != State.CLOSED) {
+                readBuffer.compact();
+            }
+        }
+    }
+
+    /**
+     * Executes a command line received from the client.
+     *
+     * @param clientCommand The raw command line.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void dispatch(String clientCommand) throws IOException {
+        if (clientCommand.equals("exit")) {
+            System.out.println("Client requested exit.");
+            close();
+            return;
+        }
+
+        String[] command = handler.command(clientCommand);
+        switch (command[0]) {
+        case "upload":
+            streamedCommand = clientCommand;
+            streamStart = System.nanoTime();
+            startUpload(command[1]);
+            break;
+
+        case "download":
+            if (handler.isArchiveDownload(command[1])) {
+                handler.logCommand(clientCommand, 0, System.nanoTime(), "refused");
+                responses.writeUTF("Archive downloads are not available in non-blocking mode");
+                responses.writeUTF("Process done");
+                break;
+            }
+            DownloadRange range = null;
+            if (DownloadRange.isRequested(command[1])) {
+                try {
+                    range = DownloadRange.parse(command[1]);
+                } catch (IllegalArgumentException e) {
+                    handler.logCommand(clientCommand, 0, System.nanoTime(), "error");
+                    responses.writeUTF(e.getMessage());
+                    responses.writeUTF("Process done");
+                    break;
+                }
+                if (range.follow) { // Would keep the session streaming for as long as the client wants
+                    handler.logCommand(clientCommand, 0, System.nanoTime(), "refused");
+                    responses.writeUTF("Follow mode is not available in non-blocking mode");
+                    responses.writeUTF("Process done");
+                    break;
+                }
+            }
+            streamedCommand = clientCommand;
+            streamStart = System.nanoTime();
+            String name = range != null ? range.name : command[1];
+            DownloadRange selected = range;
+            offload(() -> openDownload(name), () -> startDownload(name, selected));
+            return;
+
+        case "compress":
+            handler.logCommand(clientCommand, 0, System.nanoTime(), "refused");
+            responses.writeUTF("Compression is not available in non-blocking mode");
+            responses.writeUTF("Process done");
+            break;
+
+        case "verify":
+            handler.logCommand(clientCommand, 0, System.nanoTime(), "refused");
+            responses.writeUTF("Verification is not available in non-blocking mode");
+            responses.writeUTF("Process done");
+            break;
+
+        default:
+            if (ClientHandler.STREAMING_COMMANDS.contains(command[0]) // Only upload and download are streamed here
+                    || ClientHandler.isTreeCommand(command)) { // Would hold the selector thread for the whole walk
+                handler.logCommand(clientCommand, 0, System.nanoTime(), "refused");
+                if (command[0].equals("getchunk")) {
+                    responses.writeLong(-1); // The client reads a chunk length first
+                }
+                responses.writeUTF(command[0] + " is not available in non-blocking mode");
+                responses.writeUTF("Process done");
+            } else {
+                offload(() -> handler.process(clientCommand), () -> { });
+                return; // The worker writes the responses
+            }
+            break;
+        }
+        queueResponses();
+    }
+
+    private void startUpload(String name) throws IOException {
+        temporary = handler.temporaryFor(handler.resolve(name));
+        file = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        fileName = name;
+        state = State.UPLOAD_LENGTH;
+    }
+
+    /**
+     * Hands work that may wait (for the disk, the lock of a path, a group commit) to a worker thread, since
+     * it would stall every session of the event loop. The session reads nothing and its responses are left
+     * to the worker until the event loop calls finishWork, which runs the completion on the loop thread.
+     *
+     * @param work The work, which may write responses.
+     * @param then The completion.
+     */
+
+    private void offload(Work work, Work then) {
+        this.then = then;
+        state = State.WORKING;
+        key.interestOps(0);
+        WORKERS.execute(() -> {
+            try {
+                work.run();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            finished.add(this); // Publishes what the work did to the event loop
+            key.selector().wakeup();
+        });
+    }
+
+    /**
+     * Completes the work of a worker, called by the event loop, then carries on with the commands the
+     * client sent meanwhile.
+     *
+     * @throws IOException If an I/O error occurs or ended the work.
+     */
+
+    void finishWork() throws IOException {
+        if (state != State.WORKING) {
+            return; // Closed meanwhile
+        }
+        if (failure != null) {
+            Exception e = failure;
+            failure = null;
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        Work completion = then;
+        then = null;
+        state = State.COMMAND;
+        completion.run();
+        queueResponses();
+        processInput();
+        onWritable();
+    }
+
+    /**
+     * Releases the file a worker opened for a session closed meanwhile, called by the event loop instead of
+     * finishWork.
+     */
+
+    void discardWork() {
+        cached = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Couldn't close the file of client# " + clientNumber + ": " + e.getMessage());
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * Hands a received upload to a worker thread, which syncs it as the durability policy requires and
+     * renames it over its target.
+     */
+
+    private void finishUpload() throws IOException {
+        uploaded = file.position();
+        FileChannel written = file;
+        Path received = temporary;
+        Path target = handler.resolve(fileName);
+        file = null;
+        temporary = null;
+        offload(() -> {
+            String error = null;
+            try {
+                try (written) {
+                    durability.sync(written);
+                }
+                handler.install(received, target);
+            } catch (IOException | RuntimeException e) {
+                error = "Error saving " + fileName + ": " + e.getMessage();
+                try {
+                    Files.deleteIfExists(received); // Already gone once install has renamed or deleted it
+                } catch (IOException ignored) {
+                    // Reported with the error of the upload
+                }
+            }
+            installError = error;
+        }, this::answerUpload);
+    }
+
+    /**
+     * Answers an upload once its worker has installed it.
+     */
+
+    private void answerUpload() throws IOException {
+        handler.logCommand(streamedCommand, uploaded, streamStart, installError == null ? "ok" : "error");
+        streamedCommand = null;
+        responses.writeUTF(installError == null ? fileName + " succesfully uploaded" : installError);
+        responses.writeUTF("Process done");
+    }
+
+    /**
+     * Ends an upload whose header is invalid: the temporary file is deleted and the error is answered.
+     * The client sends no data after such a header, so the next bytes are a command.
+     */
+
+    private void abortUpload(String message) throws IOException {
+        file.close();
+        file = null;
+        Files.deleteIfExists(temporary);
+        temporary = null;
+        handler.logCommand(streamedCommand, 0, streamStart, "error");
+        streamedCommand = null;
+        responses.writeUTF(message);
+        responses.writeUTF("Process done");
+        queueResponses();
+        state = State.COMMAND;
+    }
+
+    /**
+     * Opens the file of a download, or takes it from the hot-file cache, leaving both null if it does not
+     * exist. Runs on a worker, since it waits for the read lock of the path while the file is replaced or deleted.
+     */
+
+    private void openDownload(String name) throws IOException {
+        Path path = handler.resolve(name);
+        FileCache files = handler.files();
+        Lock lock = locks.read(path); // Held only while the file is opened, like the blocking sessions
+        try {
+            cached = files != null ? files.get(path) : null;
+            if (cached == null) {
+                file = FileChannel.open(path, StandardOpenOption.READ);
+            }
+        } catch (NoSuchFileException e) {
+            // Answered by startDownload
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startDownload(String name, DownloadRange range) throws IOException {
+        if (file == null && cached == null) {
+            handler.logCommand(streamedCommand, 0, streamStart, "error");
+            streamedCommand = null;
+            responses.writeUTF("File does not exist.");
+            responses.writeUTF("Process done");
+            return;
+        }
+        fileName = name;
+        long size = cached != null ? cached.remaining() : file.size();
+        position = range != null ? range.start(size) : 0;
+        if (position < 0) {
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+            cached = null;
+            handler.logCommand(streamedCommand, 0, streamStart, "error");
+            streamedCommand = null;
+            responses.writeUTF("Range starts after the end of " + name + " (" + size + " bytes)");
+            responses.writeUTF("Process done");
+            return;
+        }
+        remaining = range != null ? range.count(size) : size;
+        if (cached != null) {
+            cached.position((int) position);
+        }
+        first = position;
+        part = range != null ? " (" + range.describe(size) + ")" : "";
+        responses.writeUTF(range != null ? "Sending " + range.describe(size) : "Sending file...");
+        responses.writeLong(remaining);
+        state = State.SENDING_FILE;
+    }
+
+    /**
+     * Hands the next part of the file being downloaded to the socket.
+     *
+     * @return true once the whole file has been sent, false if the channel is full, the budget
+     *         of the wakeup is spent or the transfer waits for bandwidth.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private boolean sendFileChunk() throws IOException {
+        long budget = bandwidth != null ? Bandwidth.QUANTUM : TRANSFER_CHUNK;
+        long sent = 0;
+        while (remaining > 0 && sent < budget) {
+            long count;
+            if (cached != null) {
+                cached.limit((int) (position + Math.min(remaining, budget - sent)));
+                count = channel.write(cached);
+            } else {
+                count = file.transferTo(position, Math.min(remaining, budget - sent), channel);
+            }
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            remaining -= count;
+            sent += count;
+        }
+        if (remaining == 0) {
+            return true;
+        }
+        charge(sent);
+        return false;
+    }
+
+    private void finishDownload() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+        cached = null;
+        handler.logCommand(streamedCommand, position - first, streamStart, "ok");
+        streamedCommand = null;
+        responses.writeUTF(fileName + " succesfully downloaded" + part);
+        responses.writeUTF("Process done");
+        queueResponses();
+        state = State.COMMAND;
+    }
+
+    /**
+     * Moves the responses written by the handler to the write queue.
+     */
+
+    private void queueResponses() {
+        if (responseBytes.size() > 0) {
+            writeQueue.add(ByteBuffer.wrap(responseBytes.toByteArray()));
+            responseBytes.reset();
+        }
+    }
+
+    /**
+     * Writes as much of the write queue as the channel accepts.
+     *
+     * @return true if the queue is empty.
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private boolean drainQueue() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = writeQueue.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            writeQueue.poll();
+        }
+        return true;
+    }
+
+    int clientNumber() {
+        return clientNumber;
+    }
+
+    boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Closes the connection and any file left open by an interrupted transfer.
+     */
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (streamedCommand != null) {
+            handler.logCommand(streamedCommand, state == State.SENDING_FILE ? position - first : 0, streamStart, "failed: connection closed");
+        }
+        state = State.CLOSED;
+        try {
+            if (file != null) {
+                file.close();
+            }
+            if (temporary != null) {
+                Files.deleteIfExists(temporary); // Interrupted upload, the target is left untouched
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Couldn't close the socket: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recursive delete, copy and move of directory trees, run on the server by a fork-join walk.
+ * Each directory is a task that forks one task per subdirectory and one per batch of files,
+ * so a wide or deep tree keeps every worker busy. The workers belong to one pool shared by the
+ * whole server, whose size (server.treeThreads) caps the disk load of all tree commands together.
+ *
+ * A failure on one entry does not stop the walk: it is recorded and the other entries are processed.
+ * Symbolic links are never followed; the link itself is deleted, copied or moved.
+ */
+
+public class ParallelTree {
+    // Number of files handled by one task
+    private static final int FILE_BATCH = 256;
+
+    private static ForkJoinPool pool;
+
+    /**
+     * Counters of a tree command, updated by the workers and read by the session to report progress.
+     */
+
+    public static class Progress {
+        public final LongAdder files = new LongAdder();
+        public final LongAdder directories = new LongAdder();
+        public final LongAdder bytes = new LongAdder();
+        public final AtomicInteger failures = new AtomicInteger();
+        public final Queue<String> errors = new ConcurrentLinkedQueue<>(); // The first failures, for the report
+        private final int maxErrors;
+        private volatile boolean cancelled;
+
+        public Progress(int maxErrors) {
+            this.maxErrors = maxErrors;
+        }
+
+        /**
+         * Stops the walk: the entries not reached yet are left in place.
+         */
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        void failed(Path path, Exception e) {
+            if (failures.incrementAndGet() <= maxErrors) {
+                errors.add(path + ": " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+            }
+        }
+    }
+
+    /**
+     * Returns the pool running the tree commands of the server.
+     *
+     * @param config The server configuration.
+     * @return The shared pool.
+     */
+
+    public static synchronized ForkJoinPool pool(ServerConfig config) {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(1, config.treeThreads));
+        }
+        return pool;
+    }
+
+    /**
+     * Starts deleting a tree: the files and subdirectories of each directory, then the directory.
+     *
+     * @param pool     The pool running the walk.
+     * @param root     The file or directory to delete.
+     * @param progress The counters to update.
+     * @return The running walk.
+     */
+
+    public static ForkJoinTask<Void> delete(ForkJoinPool pool, Path root, Progress progress) {
+        return pool.submit(new Walk(root, null, progress, false));
+    }
+
+    /**
+     * Starts copying a tree to a path that does not exist yet.
+     *
+     * @param pool     The pool running the walk.
+     * @param source   The file or directory to copy.
+     * @param target   The path of the copy.
+     * @param progress The counters to update.
+     * @return The running walk.
+     */
+
+    public static ForkJoinTask<Void> copy(ForkJoinPool pool, Path source, Path target, Progress progress) {
+        return pool.submit(new Walk(source, target, progress, false));
+    }
+
+    /**
+     * Moves a tree to a path that does not exist yet. A move within a file system is a single rename and
+     * returns null; across file systems the tree is copied, then deleted as its entries are copied.
+     *
+     * @param pool     The pool running the walk.
+     * @param source   The file or directory to move.
+     * @param target   The new path.
+     * @param progress The counters to update.
+     * @return The running walk, or null if the tree was renamed.
+     * @throws IOException If the target exists or the rename fails for another reason.
+     */
+
+    public static ForkJoinTask<Void> move(ForkJoinPool pool, Path source, Path target, Progress progress) throws IOException {
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return null;
+        } catch (AtomicMoveNotSupportedException e) {
+            return pool.submit(new Walk(source, target, progress, true));
+        }
+    }
+
+    /**
+     * Processes one entry of the tree: a file or link directly, a directory by forking its children.
+     * With a target, the entry is copied there (and deleted once copied when moving); without one it is deleted.
+     */
+
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private static class Walk extends RecursiveAction {
+        final Path source;
+        final Path target; // null when deleting
+        final Progress progress;
+        final boolean removeSource;
+
+        Walk(Path source, Path target, Progress progress, boolean removeSource) {
+            this.source = source;
+            this.target = target;
+            this.progress = progress;
+            this.removeSource = removeSource;
+        }
+
+        @Override
+        protected void compute() {
+            if (progress.cancelled) {
+                return;
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                progress.failed(source, e);
+                return;
+            }
+            if (!attributes.isDirectory()) {
+                file(source, target, attributes.size(), progress, removeSource);
+                return;
+            }
+
+            if (target != null) {
+                try {
+                    Files.createDirectory(target);
+                } catch (IOException e) {
+                    progress.failed(target, e);
+                    return; // Nothing below can be copied
+                }
+            }
+            List<ForkJoinTask<?>> children = new ArrayList<>();
+            FileBatch batch = new FileBatch(target, progress, removeSource);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                for (Path entry : entries) {
+                    Path copy = target != null ? target.resolve(entry.getFileName().toString()) : null;
+                    BasicFileAttributes entryAttributes;
+                    try {
+                        entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        progress.failed(entry, e); // Removed since the directory was read
+                        continue;
+                    }
+                    if (entryAttributes.isDirectory()) {
+                        children.add(new Walk(entry, copy, progress, removeSource).fork());
+                    } else if (batch.add(entry, entryAttributes.size())) {
+                        children.add(batch.fork());
+                        batch = new FileBatch(target, progress, removeSource);
+                    }
+                }
+            } catch (IOException e) {
+                progress.failed(source, e);
+            }
+            if (!batch.files.isEmpty()) {
+                children.add(batch.fork());
+            }
+            for (ForkJoinTask<?> child : children) {
+                child.join();
+            }
+
+            if (target == null || removeSource) {
+                try {
+                    Files.delete(source); // Fails if an entry below could not be deleted
+                } catch (IOException e) {
+                    progress.failed(source, e);
+                    return;
+                }
+            }
+            progress.directories.increment();
+        }
+    }
+
+    /**
+     * Processes a batch of files of the same directory.
+     */
+
+    @SuppressWarnings("serial")
+    private static class FileBatch extends RecursiveAction {
+        final List<Path> files = new ArrayList<>(FILE_BATCH);
+        final long[] sizes = new long[FILE_BATCH];
+        final Path target;
+        final Progress progress;
+        final boolean removeSource;
+
+        FileBatch(Path target, Progress progress, boolean removeSource) {
+            this.target = target;
+            this.progress = progress;
+            this.removeSource = removeSource;
+        }
+
+        /**
+         * Adds a file to the batch.
+         *
+         * @return true if the batch is full.
+         */
+
+        boolean add(Path file, long size) {
+            sizes[files.size()] = size;
+            files.add(file);
+            return files.size() == FILE_BATCH;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < files.size() && !progress.cancelled; i++) {
+                Path file = files.get(i);
+                file(file, target != null ? target.resolve(file.getFileName().toString()) : null, sizes[i], progress, removeSource);
+            }
+        }
+    }
+
+    /**
+     * Deletes or copies a file or link.
+     */
+
+    private static void file(Path file, Path copy, long size, Progress progress, boolean removeSource) {
+        try {
+            if (copy != null) {
+                Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+            }
+            if (copy == null || removeSource) {
+                Files.delete(file);
+            }
+            progress.files.increment();
+            progress.bytes.add(size);
+        } catch (IOException e) {
+            progress.failed(file, e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks on the paths served, shared by every session, so that a command never sees another
+ * one halfway: a download finds the file it announced, a delete or an upload replacing a file waits for
+ * the downloads opening it, and two writers of the same path take turns.
+ *
+ * Paths are hashed onto a fixed array of locks (server.lockStripes), so the number of locks does not grow
+ * with the number of files and there is no lock over the whole tree; two paths sharing a stripe merely
+ * wait for each other. The locks guard the namespace operations (checking, opening, renaming, deleting,
+ * creating), not the transfers: an upload is received into a temporary file and a download reads an open
+ * channel, which a rename never modifies, so no lock is held while data crosses the network. A command
+ * holds one path at a time, which rules out deadlocks.
+ *
+ * ReentrantReadWriteLock rather than synchronized, so that virtual threads waiting for a path unmount.
+ * Acquisitions that had to wait are counted, with their waiting time, in Metrics.
+ */
+
+public class PathLocks {
+    private static PathLocks shared;
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final Metrics metrics;
+
+    /**
+     * Constructor for PathLocks.
+     *
+     * @param stripes The number of locks, rounded up to a power of two.
+     * @param metrics The registry counting the contended acquisitions, or null.
+     */
+
+    public PathLocks(int stripes, Metrics metrics) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantReadWriteLock[Math.max(1, Math.min(size, 1 << 20))];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the locks of the server.
+     *
+     * @param config The server configuration.
+     * @return The shared locks.
+     */
+
+    public static synchronized PathLocks shared(ServerConfig config) {
+        if (shared == null) {
+            shared = new PathLocks(config.lockStripes, Metrics.shared());
+        }
+        return shared;
+    }
+
+    /**
+     * Locks a path for reading, waiting while it is written.
+     *
+     * @param path The path read.
+     * @return The acquired lock, to unlock once the path is opened.
+     */
+
+    public Lock read(Path path) {
+        return acquire(stripe(path).readLock());
+    }
+
+    /**
+     * Locks a path for writing, waiting until no other command reads or writes it.
+     *
+     * @param path The path created, replaced or deleted.
+     * @return The acquired lock, to unlock once the path is changed.
+     */
+
+    public Lock write(Path path) {
+        return acquire(stripe(path).writeLock());
+    }
+
+    private ReentrantReadWriteLock stripe(Path path) {
+        int hash = path.toAbsolutePath().normalize().hashCode();
+        hash ^= hash >>> 16; // The low bits of a path hash alone spread poorly
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    private Lock acquire(Lock lock) {
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            if (metrics != null) {
+                metrics.lockContended(System.nanoTime() - start);
+            }
+        } else if (metrics != null) {
+            metrics.lockAcquired();
+        }
+        return lock;
+    }
+}
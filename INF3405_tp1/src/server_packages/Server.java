@@ -1,13 +1,27 @@
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
  * The Server class sets up a server that listens for client connections.
- * It validates IP addresses and ports, binds to a specific IP address and port, 
- * and accepts client connections to handle them in separate threads.
+ * It validates IP addresses and ports, binds to one or more addresses,
+ * and accepts client connections to hand them to a connection engine.
+ *
+ * Without arguments the address and port are asked on the console. To start unattended,
+ * pass the settings of ServerConfig as flags or in a properties file, for example:
+ * java -jar server.jar --listen=0.0.0.0:5000,[::]:5000 --root=/srv/files --engine=nio
  */
 
 public class Server {
@@ -16,91 +30,255 @@ public class Server {
     private static final Pattern IP_PATTERN = 
 		Pattern.compile("^(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])$"); // https://stackoverflow.com/questions/5667371/validate-ipv4-address-in-java
     
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java Server [--config file.properties] [--setting=value]...",
+            "  --listen=host:port[,host:port]...  addresses to listen on, [ipv6]:port or *:port for every interface",
+            "  --root=directory                   directory the sessions start in",
+            "  --engine=virtual|pool|nio          connection engine",
+            "Every setting of ServerConfig is accepted (maxSessions, poolSize, eventLoops, bufferSize,",
+            "socketBufferSize, backlog, durability, fileIndex, accessLog, metricsPort...), as a flag, a -Dserver.setting",
+            "system property or a line of the properties file. Without --listen, the address is asked on the console.");
+    
     /**
-     * Checks if the given IP address is valid based on the IPv4 format.
+     * Checks if the given IP address is a valid IPv4 (x.x.x.x) or IPv6 address.
      *
      * @param ip The IP address to validate.
      * @return true if the IP address is valid, false otherwise.
      */
     
     public static boolean isValidIP(final String ip) {
-        return IP_PATTERN.matcher(ip).matches();
+        if (IP_PATTERN.matcher(ip).matches()) {
+            return true;
+        }
+        if (!ip.contains(":")) {
+            return false;
+        }
+        try {
+            return InetAddress.getByName(ip) instanceof Inet6Address; // Literal, no name lookup
+        } catch (UnknownHostException e) {
+            return false;
+        }
     }
     
     /**
-     * Checks if the port number is valid (between 5000 and 5500).
+     * Checks if the port number is a valid TCP port (between 1 and 65535).
      *
      * @param port The port number to validate.
      * @return true if the port is valid, false otherwise.
      */
     
 	public static boolean isValidPort(final int port) {
-		if (port >= 5000 && port <= 5500){
-			return true;
-		}
-		else {
-			return false;
-		}
+		return port >= 1 && port <= 65535;
 	}
 	
-    // ServerSocket to listen for client connections
+    /**
+     * Opens a server channel bound to the given address with the configured backlog and buffer size.
+     * Accepted sockets get a channel, used for zero-copy transfers.
+     *
+     * @param address The address to listen on.
+     * @param config  The server configuration.
+     * @return The bound server channel.
+     * @throws IOException If the address cannot be bound.
+     */
+
+    static ServerSocketChannel bind(InetSocketAddress address, ServerConfig config) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (config.socketBufferSize > 0) {
+                listener.setOption(StandardSocketOptions.SO_RCVBUF, config.socketBufferSize); // Inherited by accepted sockets
+            }
+            listener.bind(address, config.backlog);
+        } catch (IOException e) {
+            listener.close();
+            throw new IOException("Couldn't listen on " + describe(address) + ": " + e.getMessage(), e);
+        }
+        return listener;
+    }
 
-    private static ServerSocket Listener; 
-    
     /**
-     * The main method starts the server, binds it to a given IP address and port,
-     * and listens for client connections in an infinite loop. Each client connection
-     * is handled in a separate thread.
+     * Formats an address as host:port, with the host in brackets for IPv6.
      *
-     * @param args Command line arguments (not used).
+     * @param address The address.
+     * @return The formatted address.
      */
-    
-    public static void main(String[] args) {
-        int clientNumber = 0; // Tracks the number of connected clients
-        
+
+    static String describe(InetSocketAddress address) {
+        String host = address.getHostString();
+        return (host.contains(":") ? "[" + host + "]" : host) + ":" + address.getPort();
+    }
+
+    /**
+     * Asks the address and port of the server on the console.
+     *
+     * @return The address to listen on.
+     * @throws IOException If the address cannot be resolved.
+     */
+
+    private static InetSocketAddress askAddress() throws IOException {
         // Ask the user to input the server IP address
 
         System.out.println("Enter the IP address of your server:  ");
         String serverAddress = System.console().readLine();
         while (!Server.isValidIP(serverAddress)){
-            System.out.println("Invalid IP address! Please enter a value in the form x.x.x.x with a size of 1 byte: ");
+            System.out.println("Invalid IP address! Please enter an IPv4 address in the form x.x.x.x or an IPv6 address: ");
         	serverAddress = System.console().readLine();
         }
         
         // Ask the user to input the port number
         
         System.out.println("Enter the port address of your server: ");
-        int serverPort = Integer.parseInt(System.console().readLine());
+        int serverPort = parsePort(System.console().readLine());
         while (!Server.isValidPort(serverPort)){
-            System.out.println("Invalid port! Please enter a value between 5000 and 5500: ");
-            serverPort = Integer.parseInt(System.console().readLine());
+            System.out.println("Invalid port! Please enter a value between 1 and 65535: ");
+            serverPort = parsePort(System.console().readLine());
+        }
+        return new InetSocketAddress(InetAddress.getByName(serverAddress), serverPort);
+    }
+
+    /**
+     * Parses a port typed by the user.
+     *
+     * @param text The port, may be null.
+     * @return The port, or -1 if the text is not a number.
+     */
+
+    static int parsePort(String text) {
+        if (text == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Accepts connections on one listener and hands them to the engine until the listener is closed.
+     * A connection that cannot be set up (e.g. reset by the client already) is closed and the loop goes on.
+     */
+
+    private static void accept(ServerSocket listener, ConnectionEngine engine, ServerConfig config, AtomicInteger clientNumber) throws IOException {
+        while (true) {
+            Socket socket = listener.accept();
+            try {
+                socket.setTcpNoDelay(true); // A response and "Process done" are separate small writes, Nagle would delay the second
+                if (config.socketBufferSize > 0) {
+                    socket.setSendBufferSize(config.socketBufferSize);
+                }
+            } catch (IOException e) {
+                System.err.println("Couldn't set up the connection from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Already broken
+                }
+                continue;
+            }
+            engine.submit(socket, clientNumber.getAndIncrement());
+        }
+    }
+    
+    /**
+     * The main method reads the configuration, binds the server to its addresses
+     * and listens for client connections in an infinite loop. Each client connection
+     * is handed to the connection engine, which bounds the number of concurrent sessions.
+     *
+     * @param args The settings, see USAGE. Without --listen, the address and port are asked on the console.
+     */
+    
+    public static void main(String[] args) {
+        if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h"))) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        ServerConfig config;
+        List<InetSocketAddress> addresses;
+        try {
+            config = ServerConfig.load(args);
+            addresses = config.listenAddresses();
+            Durability.parse(config.durability);
+            ConnectionEngine.parse(config.engine);
+            if (!Files.isDirectory(Paths.get(config.root))) {
+                throw new IllegalArgumentException("The root directory does not exist: " + config.root);
+            }
+            if (addresses.isEmpty()) {
+                if (System.console() == null) {
+                    throw new IllegalArgumentException("No console to ask for the address, use --listen=host:port");
+                }
+                addresses = List.of(askAddress());
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
         }
         
-        // Try to start the server and bind to the given IP and port
+        // Optional scrape endpoint for the metrics, on the loopback interface only
+        
+        if (config.metricsPort > 0) {
+            try {
+                new MetricsEndpoint(Metrics.shared(), config.metricsPort).start();
+            } catch (IOException e) {
+                System.err.println("Couldn't start the metrics endpoint: " + e.getMessage());
+            }
+        }
+        
+        // The file index is built in the background while the server starts listening
+        
+        FileIndex.shared(config);
+        
+        // The non-blocking mode runs its own accept loops on the server channels
+        
+        if (config.engine.equals("nio")) {
+            try {
+                new NioServer(config).run(addresses);
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+            return;
+        }
+        
+        ConnectionEngine engine = new ConnectionEngine(config);
+        List<ServerSocket> listeners = new ArrayList<>();
+        AtomicInteger clientNumber = new AtomicInteger(); // Tracks the number of connected clients
+        
+        // Try to start the server and bind to every address
         
         try {
-            Listener = new ServerSocket();
-            Listener.setReuseAddress(true);
-            InetAddress serverIP = InetAddress.getByName(serverAddress); // Convert IP string to InetAddress
-            Listener.bind(new InetSocketAddress(serverIP, serverPort)); // Bind the server to the IP and port
-
-            System.out.format("The server is running on %s:%d%n", serverAddress, serverPort);
+            for (InetSocketAddress address : addresses) {
+                listeners.add(bind(address, config).socket());
+                System.out.format("The server is running on %s%n", describe(address));
+            }
             
-            // Continuously listen for client connections
-
-            while (true) {
-                new ClientHandler(Listener.accept(), clientNumber++).start();
+            // Continuously listen for client connections, on this thread for the first address
+            
+            for (ServerSocket listener : listeners.subList(1, listeners.size())) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        accept(listener, engine, config, clientNumber);
+                    } catch (IOException e) {
+                        System.err.println("Server error: " + e.getMessage());
+                    }
+                }, "accept-" + listener.getLocalSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
             }
+            accept(listeners.get(0), engine, config, clientNumber);
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         } finally {
-            // Close the server socket when done
-            try {
-                if (Listener != null && !Listener.isClosed()) {
-                    Listener.close();
+            // Close the server sockets when done
+            engine.shutdown();
+            for (ServerSocket listener : listeners) {
+                try {
+                    listener.close();
+                } catch (IOException e) {
+                    System.err.println("Couldn't close the server socket: " + e.getMessage());
                 }
-            } catch (IOException e) {
-                System.err.println("Couldn't close the server socket: " + e.getMessage());
             }
         }
     }
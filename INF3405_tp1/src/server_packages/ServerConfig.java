@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Holds the tunable settings of the server. Every value has a default and can be
+ * overridden with a JVM system property (e.g. -Dserver.maxSessions=20000), a line of a
+ * properties file (maxSessions=20000) or a command line flag (--maxSessions=20000), see load.
+ */
+
+public class ServerConfig {
+
+    // Addresses to listen on, a comma-separated list of host:port such as "0.0.0.0:5000,[::1]:5000"
+    // ("*:port" for every interface). Empty to ask for one address and port on the console
+    public String listen = System.getProperty("server.listen", "");
+
+    // Directory the sessions start in
+    public String root = System.getProperty("server.root", System.getProperty("user.dir"));
+
+    // Connection engine: "virtual" (one virtual thread per session), "pool" (bounded platform threads)
+    // or "nio" (non-blocking event loops, see NioServer)
+    public String engine = System.getProperty("server.engine", "virtual");
+
+    // Maximum number of sessions served at the same time, extra clients are rejected
+    public int maxSessions = Integer.getInteger("server.maxSessions", 10000);
+
+    // Number of platform threads used by the "pool" engine
+    public int poolSize = Integer.getInteger("server.poolSize", 200);
+
+    // Number of selector threads used by the "nio" engine
+    public int eventLoops = Integer.getInteger("server.eventLoops", Runtime.getRuntime().availableProcessors());
+
+    // Size of the direct buffer each session uses to receive uploads
+    public int bufferSize = Integer.getInteger("server.bufferSize", 1024 * 1024);
+
+    // Length of the accept queue handed to the operating system
+    public int backlog = Integer.getInteger("server.backlog", 1024);
+
+    // Limits of the file transfers in bytes per second, for the whole server and for each session, 0 for no limit.
+    // Limited transfers take turns quantum by quantum, so they share the server limit evenly
+    public long bandwidth = Long.getLong("server.bandwidth", 0);
+    public long sessionBandwidth = Long.getLong("server.sessionBandwidth", 0);
+
+    // Send and receive buffer sizes of the client sockets, 0 to keep the system defaults
+    public int socketBufferSize = Integer.getInteger("server.socketBufferSize", 0);
+
+    // When uploads are forced to disk: "none", "close" (each upload syncs its file and directory) or "group"
+    // (concurrent uploads share their syncs), see Durability. Uploads are renamed into place in every case
+    public String durability = System.getProperty("server.durability", "none");
+
+    // Total size of the frequently downloaded files kept memory-mapped, and size of the largest one, 0 to disable the cache
+    public long fileCacheBytes = Long.getLong("server.fileCacheBytes", 256L * 1024 * 1024);
+    public long fileCacheMaxFile = Long.getLong("server.fileCacheMaxFile", 64L * 1024 * 1024);
+
+    // Number of threads running the recursive delete, copy and move commands, shared by every session
+    public int treeThreads = Integer.getInteger("server.treeThreads", Runtime.getRuntime().availableProcessors());
+
+    // Whether the names, sizes and dates of the files under the root are kept in memory for "find", and the
+    // number of matches a "find" sends. The index is built when the server starts, see FileIndex
+    public boolean fileIndex = Boolean.parseBoolean(System.getProperty("server.fileIndex", "true"));
+    public int findLimit = Integer.getInteger("server.findLimit", 1000);
+
+    // Number of read/write locks the paths are hashed onto, see PathLocks
+    public int lockStripes = Integer.getInteger("server.lockStripes", 1024);
+
+    // Interval in milliseconds at which "download -follow" checks a file that stopped growing
+    public long followPollMillis = Long.getLong("server.followPollMillis", 200);
+
+    // Number of entries sent by one "ls" page
+    public int listPageSize = Integer.getInteger("server.listPageSize", 1000);
+
+    // Directory of the deduplicating store used by "dupload", empty to disable deduplicated uploads.
+    // Uploaded files are hard links into it, so it should be on the same disk as the served files
+    public String dedupStore = System.getProperty("server.dedupStore", "");
+
+    // Access log file, "-" for the console
+    public String accessLog = System.getProperty("server.accessLog", "-");
+
+    // Number of access log events buffered for the writer thread, events are dropped past it
+    public int accessLogBuffer = Integer.getInteger("server.accessLogBuffer", 8192);
+
+    // Size past which the access log file is rotated, and number of rotated files kept
+    public long accessLogMaxBytes = Long.getLong("server.accessLogMaxBytes", 64L * 1024 * 1024);
+    public int accessLogFiles = Integer.getInteger("server.accessLogFiles", 5);
+
+    // Local port of the Prometheus metrics endpoint (http://127.0.0.1:port/metrics), 0 to disable it.
+    // The metrics are also registered with JMX under the "inf3405" domain
+    public int metricsPort = Integer.getInteger("server.metricsPort", 0);
+
+    /**
+     * Builds the configuration from the command line. Settings are taken, by order of precedence, from
+     * the flags (--name=value or --name value), the -Dserver.name system properties, then the properties
+     * file given by --config, whose keys may omit the "server." prefix. Every name must match a field.
+     *
+     * @param args The command line arguments.
+     * @return The configuration.
+     * @throws IllegalArgumentException If a flag is unknown or malformed.
+     * @throws IOException              If the properties file cannot be read.
+     */
+
+    public static ServerConfig load(String[] args) throws IOException {
+        Properties flags = new Properties();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            String value;
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            } else if (i + 1 < args.length) {
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("Missing value for --" + name);
+            }
+            if (name.equals("config")) {
+                file = value;
+            } else {
+                flags.setProperty(property(name), value);
+            }
+        }
+
+        // The fields read the system properties, so the other sources are merged into them first
+        if (file != null) {
+            Properties settings = new Properties();
+            try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+                settings.load(reader);
+            }
+            for (String name : settings.stringPropertyNames()) {
+                String key = property(name);
+                if (System.getProperty(key) == null) {
+                    System.setProperty(key, settings.getProperty(name).trim());
+                }
+            }
+        }
+        for (String key : flags.stringPropertyNames()) {
+            System.setProperty(key, flags.getProperty(key));
+        }
+        checkValues();
+        return new ServerConfig();
+    }
+
+    /**
+     * Checks the numbers and booleans of every source before the fields read them, since Integer.getInteger,
+     * Long.getLong and Boolean.parseBoolean would silently replace a malformed value with the default.
+     *
+     * @throws IllegalArgumentException If a value does not match the type of its setting.
+     */
+
+    private static void checkValues() {
+        for (Field field : ServerConfig.class.getFields()) {
+            String value = System.getProperty("server." + field.getName());
+            if (value == null || Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            Class<?> type = field.getType();
+            try {
+                if (type == int.class) {
+                    Integer.decode(value); // As Integer.getInteger reads it
+                } else if (type == long.class) {
+                    Long.decode(value);
+                } else if (type == boolean.class && !value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                    throw new IllegalArgumentException("Invalid value for " + field.getName() + ": " + value + " (expected true or false)");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + field.getName() + ": " + value + " (expected a number)");
+            }
+        }
+    }
+
+    /**
+     * Returns the system property of a setting, checking that the setting exists.
+     */
+
+    private static String property(String name) {
+        String field = name.startsWith("server.") ? name.substring("server.".length()) : name;
+        try {
+            if (!Modifier.isStatic(ServerConfig.class.getField(field).getModifiers())) {
+                return "server." + field;
+            }
+        } catch (NoSuchFieldException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Unknown setting: " + name);
+    }
+
+    /**
+     * Parses the listen setting.
+     *
+     * @return The addresses to listen on, empty if none is configured.
+     * @throws IllegalArgumentException If an address is malformed.
+     */
+
+    public List<InetSocketAddress> listenAddresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : listen.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0 || (entry.indexOf(':') != colon && !entry.startsWith("["))) {
+                throw new IllegalArgumentException("Invalid listen address: " + entry + " (expected host:port or [ipv6]:port)");
+            }
+            String host = entry.substring(0, colon);
+            int port;
+            try {
+                port = Integer.parseInt(entry.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in listen address: " + entry);
+            }
+            if (!Server.isValidPort(port)) {
+                throw new IllegalArgumentException("Invalid port in listen address: " + entry);
+            }
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            InetSocketAddress address = host.isEmpty() || host.equals("*") ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("Unknown host in listen address: " + entry);
+            }
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the number of sessions that can really run at the same time with the selected engine.
+     * A platform pool cannot serve more sessions than it has threads, since every session holds one.
+     *
+     * @return The effective session limit.
+     */
+
+    public int effectiveMaxSessions() {
+        if (engine.equals("pool")) {
+            return Math.min(maxSessions, poolSize);
+        }
+        return maxSessions;
+    }
+}
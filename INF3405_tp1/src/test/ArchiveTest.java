@@ -0,0 +1,139 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Round trips of directory archives: a tree written by Archive.write and extracted by Archive.extract,
+ * in every format, including the pax header of a long name.
+ */
+
+public class ArchiveTest {
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @EnumSource(Archive.Format.class)
+    public void extractsTheTreeItWrote(Archive.Format format) throws IOException {
+        Path root = directory.resolve("photos");
+        byte[] large = new byte[Archive.BLOCK_SIZE * 2 + 123]; // Spans several blocks on the wire
+        new Random(1).nextBytes(large);
+        String longName = "a".repeat(150) + ".txt"; // Past the 100 bytes of a ustar name
+        Files.createDirectories(root.resolve("2024/empty"));
+        Files.write(root.resolve("2024/large.bin"), large);
+        Files.write(root.resolve("2024/" + longName), "long".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("notes.txt"), "notes".getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("zero"), new byte[0]);
+        FileTime modified = FileTime.fromMillis(1700000000000L);
+        Files.setLastModifiedTime(root.resolve("2024/large.bin"), modified);
+
+        Integrity sent = new Integrity(Integrity.Mode.CRC32C);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Archive.Report written = Archive.write(root, format, 6, new DataOutputStream(wire), null, sent);
+        assertEquals(4, written.files);
+        assertEquals(3, written.directories);
+        assertTrue(written.errors.isEmpty(), written.errors.toString());
+
+        Path destination = directory.resolve("extracted");
+        Archive.Report extracted = Archive.extract(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())), format,
+                destination, new Integrity(Integrity.Mode.CRC32C));
+        assertTrue(extracted.errors.isEmpty(), extracted.errors.toString());
+        assertEquals(written.files, extracted.files);
+        assertEquals(written.bytes, extracted.bytes);
+
+        Path copy = destination.resolve("photos");
+        assertArrayEquals(large, Files.readAllBytes(copy.resolve("2024/large.bin")));
+        assertEquals("long", Files.readString(copy.resolve("2024/" + longName)));
+        assertEquals("notes", Files.readString(copy.resolve("notes.txt")));
+        assertEquals(0, Files.size(copy.resolve("zero")));
+        assertTrue(Files.isDirectory(copy.resolve("2024/empty")));
+        assertEquals(modified.toMillis() / 1000, Files.getLastModifiedTime(copy.resolve("2024/large.bin")).toMillis() / 1000);
+    }
+
+    @Test
+    public void reportsACorruptedArchive() throws IOException {
+        Path root = directory.resolve("tree");
+        Files.createDirectories(root);
+        Files.write(root.resolve("file"), "contents".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Archive.write(root, Archive.Format.TAR, 6, new DataOutputStream(wire), null, new Integrity(Integrity.Mode.CRC32C));
+        byte[] bytes = wire.toByteArray();
+        bytes[Integer.BYTES + 512] ^= 1; // The header of the file, after the one of the directory
+
+        assertThrows(IOException.class, () -> Archive.extract(new DataInputStream(new ByteArrayInputStream(bytes)),
+                Archive.Format.TAR, directory.resolve("extracted"), new Integrity(Integrity.Mode.CRC32C)));
+    }
+
+    @Test
+    public void skipsEntriesOutsideOfTheDestination() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tar.write(header("../escaped", 2));
+        tar.write(new byte[] {'h', 'i'});
+        tar.write(new byte[510]);
+        tar.write(header("inside", 0));
+        tar.write(new byte[1024]);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        out.writeInt(tar.size());
+        tar.writeTo(out);
+        out.writeInt(0);
+
+        Path destination = directory.resolve("extracted");
+        Archive.Report report = Archive.extract(new DataInputStream(new ByteArrayInputStream(wire.toByteArray())),
+                Archive.Format.TAR, destination, null);
+        assertEquals(1, report.files);
+        assertEquals(1, report.errors.size());
+        assertFalse(Files.exists(directory.resolve("escaped")));
+        assertTrue(Files.exists(destination.resolve("inside")));
+    }
+
+    @Test
+    public void parsesFormatNames() {
+        assertEquals(Archive.Format.TGZ, Archive.parse(" TGZ "));
+        assertEquals(Archive.Format.ZIP, Archive.parse("zip"));
+        assertThrows(IllegalArgumentException.class, () -> Archive.parse("rar"));
+    }
+
+    /**
+     * Builds the ustar header of a regular file.
+     */
+
+    private static byte[] header(String name, long size) {
+        byte[] header = new byte[512];
+        put(header, 0, name);
+        put(header, 100, "0000644");
+        put(header, 124, String.format("%011o", size));
+        put(header, 136, String.format("%011o", 0));
+        header[156] = '0';
+        put(header, 257, "ustar");
+        put(header, 263, "00");
+        int checksum = 8 * ' '; // The checksum field counts as spaces
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        put(header, 148, String.format("%06o", checksum));
+        return header;
+    }
+
+    private static void put(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+}
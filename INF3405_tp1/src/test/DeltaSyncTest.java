@@ -0,0 +1,173 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips of the delta transfer: signatures of the old copy, delta of the new version, and the
+ * file rebuilt from both, as "delta" does over a connection.
+ */
+
+public class DeltaSyncTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void rollingSumMatchesTheSumOfEveryWindow() {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        int length = 2048;
+        int sum = DeltaSync.weak(data, 0, length);
+        int a = sum & 0xFFFF;
+        int b = sum >>> 16;
+        for (int position = 1; position + length <= data.length; position++) {
+            int leaving = data[position - 1] & 0xFF;
+            int entering = data[position + length - 1] & 0xFF;
+            a = (a - leaving + entering) & 0xFFFF;
+            b = (b - length * leaving + a) & 0xFFFF;
+            assertEquals(DeltaSync.weak(data, position, length), (b << 16) | a, "window at " + position);
+        }
+    }
+
+    @Test
+    public void blockSizeStaysWithinBounds() {
+        assertEquals(DeltaSync.MIN_BLOCK_SIZE, DeltaSync.blockSize(0));
+        assertEquals(DeltaSync.MAX_BLOCK_SIZE, DeltaSync.blockSize(Long.MAX_VALUE));
+        assertEquals(4096, DeltaSync.blockSize(5000L * 5000));
+    }
+
+    @Test
+    public void rebuildsAnEditedFile() throws IOException {
+        byte[] base = new byte[300 * 1024];
+        new Random(2).nextBytes(base);
+        byte[] inserted = new byte[1000];
+        new Random(3).nextBytes(inserted);
+        byte[] edited = concat(Arrays.copyOfRange(base, 0, 100000), inserted, Arrays.copyOfRange(base, 100000, 250000),
+                Arrays.copyOfRange(base, 260000, base.length));
+
+        DeltaSync.Result sent = roundTrip(base, edited);
+        assertTrue(sent.reusedBlocks > 0, "no block reused");
+        assertTrue(sent.literalBytes < edited.length / 4, "sent " + sent.literalBytes + " literal bytes");
+    }
+
+    @Test
+    public void rebuildsAFileWithoutAnyCommonBlock() throws IOException {
+        byte[] base = new byte[50 * 1024];
+        new Random(4).nextBytes(base);
+        byte[] other = new byte[70 * 1024];
+        new Random(5).nextBytes(other);
+
+        DeltaSync.Result sent = roundTrip(base, other);
+        assertEquals(0, sent.reusedBlocks);
+        assertEquals(other.length, sent.literalBytes);
+    }
+
+    @Test
+    public void rebuildsAFileTheServerDoesNotHave() throws IOException {
+        byte[] created = new byte[5000];
+        new Random(6).nextBytes(created);
+        assertEquals(created.length, roundTrip(null, created).literalBytes);
+    }
+
+    @Test
+    public void rejectsAFileThatDoesNotMatchTheClientHash() throws IOException {
+        byte[] version = new byte[8192];
+        new Random(7).nextBytes(version);
+        Path target = write("target", new byte[0]);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(delta);
+        out.writeByte(DeltaSync.LITERAL);
+        out.writeInt(version.length);
+        out.write(version);
+        out.writeByte(DeltaSync.END);
+        out.write(new byte[DeltaSync.HASH_SIZE]); // Not the SHA-256 of the literal
+
+        try (FileChannel rebuilt = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DeltaSync.Result result = DeltaSync.apply(null, DeltaSync.MIN_BLOCK_SIZE, 0, rebuilt, new Socket(),
+                    new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), ByteBuffer.allocate(4096), null);
+            assertNull(result.hash);
+        }
+    }
+
+    @Test
+    public void rejectsACopyPastTheSignatures() throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(delta);
+        out.writeByte(DeltaSync.COPY);
+        out.writeInt(3);
+        out.writeInt(2);
+        Path target = write("target", new byte[0]);
+
+        try (FileChannel rebuilt = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            assertThrows(IOException.class, () -> DeltaSync.apply(null, DeltaSync.MIN_BLOCK_SIZE, 4, rebuilt, new Socket(),
+                    new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), ByteBuffer.allocate(4096), null));
+        }
+    }
+
+    /**
+     * Sends the signatures of the old copy, the delta of the new version, rebuilds it and checks the result.
+     *
+     * @return What the client sent.
+     */
+
+    private DeltaSync.Result roundTrip(byte[] old, byte[] version) throws IOException {
+        Path basePath = old != null ? write("base", old) : null;
+        Path versionPath = write("version", version);
+        Path target = write("target", new byte[0]);
+        int blockSize = DeltaSync.blockSize(old != null ? old.length : 0);
+
+        try (FileChannel base = basePath != null ? FileChannel.open(basePath, StandardOpenOption.READ) : null;
+                FileChannel edited = FileChannel.open(versionPath, StandardOpenOption.READ);
+                FileChannel rebuilt = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+            int blocks = DeltaSync.writeSignatures(base, blockSize, new DataOutputStream(signatures));
+            DeltaSync.Signatures read = DeltaSync.readSignatures(new DataInputStream(new ByteArrayInputStream(signatures.toByteArray())));
+            assertEquals(blocks, read.count);
+            assertEquals(blockSize, read.blockSize);
+
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            DeltaSync.Result sent = DeltaSync.writeDelta(edited, read, new DataOutputStream(delta));
+            DeltaSync.Result received = DeltaSync.apply(base, blockSize, blocks, rebuilt, new Socket(),
+                    new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), ByteBuffer.allocate(8192), null);
+
+            assertNotNull(received.hash, "rebuilt file does not match");
+            assertArrayEquals(sent.hash, received.hash);
+            assertEquals(sent.literalBytes, received.literalBytes);
+            assertEquals(sent.reusedBlocks, received.reusedBlocks);
+            assertArrayEquals(version, Files.readAllBytes(target));
+            return sent;
+        }
+    }
+
+    private Path write(String name, byte[] contents) throws IOException {
+        return Files.write(directory.resolve(name), contents);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            all.writeBytes(part);
+        }
+        return all.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The options of "download -range" and "download -follow", and the bytes they select.
+ */
+
+public class DownloadRangeTest {
+
+    @Test
+    public void recognizesPartialDownloads() {
+        assertTrue(DownloadRange.isRequested("-range 0:10 a.txt"));
+        assertTrue(DownloadRange.isRequested("-follow app.log"));
+        assertFalse(DownloadRange.isRequested("-rangefile"));
+        assertFalse(DownloadRange.isRequested("a.txt"));
+    }
+
+    @Test
+    public void readsOffsetAndLength() {
+        DownloadRange range = DownloadRange.parse("-range 100:50 file name.bin");
+        assertEquals(100, range.offset);
+        assertEquals(50, range.length);
+        assertFalse(range.follow);
+        assertEquals("file name.bin", range.name);
+        assertEquals(100, range.start(1000));
+        assertEquals(50, range.count(1000));
+        assertEquals("bytes 100-149/1000", range.describe(1000));
+        assertEquals(20, range.count(120)); // Cut at the end of the file
+    }
+
+    @Test
+    public void readsASuffixCountedFromTheEnd() {
+        DownloadRange range = DownloadRange.parse("-range -1M app.log");
+        assertEquals(-1024 * 1024, range.offset);
+        assertEquals(-1, range.length);
+        assertEquals(2 * 1024 * 1024 - 1024 * 1024, range.start(2 * 1024 * 1024));
+        assertEquals(0, range.start(1000)); // Longer than the file: the whole file
+        assertEquals(1000, range.count(1000));
+    }
+
+    @Test
+    public void readsAnOffsetWithoutLength() {
+        DownloadRange range = DownloadRange.parse("-range 4k: data.bin");
+        assertEquals(4096, range.offset);
+        assertEquals(-1, range.length);
+        assertEquals(10000 - 4096, range.count(10000));
+        assertEquals(-1, range.start(100)); // Starts past the end
+        assertEquals(0, range.count(4096));
+        assertEquals("bytes */4096", range.describe(4096));
+    }
+
+    @Test
+    public void followsFromTheEndByDefault() {
+        DownloadRange range = DownloadRange.parse("-follow app.log");
+        assertTrue(range.follow);
+        assertEquals(5000, range.start(5000));
+        assertEquals(0, DownloadRange.parse("-follow -range 0 app.log").start(5000));
+        assertEquals(4000, DownloadRange.parse("-range -1000 -follow app.log").start(5000));
+    }
+
+    @Test
+    public void rejectsMalformedOptions() {
+        assertThrows(IllegalArgumentException.class, () -> DownloadRange.parse("-range 0:10"));
+        assertThrows(IllegalArgumentException.class, () -> DownloadRange.parse("-range 10"));
+        assertThrows(IllegalArgumentException.class, () -> DownloadRange.parse("-range x:10 a.txt"));
+        assertThrows(IllegalArgumentException.class, () -> DownloadRange.parse("-range 0:-5 a.txt"));
+        assertThrows(IllegalArgumentException.class, () -> DownloadRange.parse("-follow -range 0:10 app.log"));
+    }
+}
@@ -0,0 +1,97 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The glob translation and the argument parsing of "find".
+ */
+
+public class FileIndexQueryTest {
+
+    @Test
+    public void starAndQuestionMarkStopAtSlashes() {
+        assertMatches("*.log", "app.log", ".log");
+        assertNoMatch("*.log", "logs/app.log", "app.log.1");
+        assertMatches("file?.txt", "file1.txt");
+        assertNoMatch("file?.txt", "file10.txt", "file/.txt");
+    }
+
+    @Test
+    public void doubleStarCrossesDirectories() {
+        assertMatches("src/**/*.java", "src/a/b/Server.java", "src//Server.java");
+        assertNoMatch("src/**/*.java", "src/Server.java", "test/a/Server.java");
+    }
+
+    @Test
+    public void classesAndAlternatives() {
+        assertMatches("[abc]*", "apple", "cherry");
+        assertNoMatch("[abc]*", "date");
+        assertMatches("[!abc]*", "date");
+        assertNoMatch("[!abc]*", "apple");
+        assertMatches("*.{jpg,png}", "a.jpg", "b.png");
+        assertNoMatch("*.{jpg,png}", "c.gif", "d.jpg,png");
+        assertMatches("[", "["); // Unclosed class, taken literally
+    }
+
+    @Test
+    public void regexCharactersAreLiteral() {
+        assertMatches("a+b(1).$x^", "a+b(1).$x^");
+        assertNoMatch("a.b", "axb");
+        assertMatches("[a^&]", "^", "&");
+        assertMatches("a,b}", "a,b}");
+    }
+
+    @Test
+    public void rejectsAnUnclosedAlternative() {
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.globToRegex("*.{jpg,png"));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.parse("*.{jpg"));
+    }
+
+    @Test
+    public void parsesPatternAndFilters() {
+        FileIndex.Query.parse("");
+        FileIndex.Query.parse("*.log -type f -size +10M -size -1G -newer 7d -older 2024-05-01T14:30");
+        FileIndex.Query.parse("-type d");
+        FileIndex.Query.parse("-newer 2024-05-01");
+    }
+
+    @Test
+    public void rejectsMalformedFilters() {
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.parse("*.log -type"));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.parse("-type x"));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.parse("-size 10M"));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.parse("-size +ten"));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.parse("-newer yesterday"));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.parse("-name x"));
+    }
+
+    @Test
+    public void readsSizesWithUnits() {
+        assertEquals(512, FileIndex.Query.size("512"));
+        assertEquals(4 * 1024, FileIndex.Query.size("4k"));
+        assertEquals(3L * 1024 * 1024, FileIndex.Query.size("3M"));
+        assertEquals(2L * 1024 * 1024 * 1024, FileIndex.Query.size("2g"));
+        assertEquals(-1024 * 1024, FileIndex.Query.size("-1M"));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.size(""));
+        assertThrows(IllegalArgumentException.class, () -> FileIndex.Query.size("9223372036854775807G"));
+    }
+
+    private static void assertMatches(String glob, String... names) {
+        Pattern pattern = Pattern.compile(FileIndex.Query.globToRegex(glob));
+        for (String name : names) {
+            assertTrue(pattern.matcher(name).matches(), glob + " should match " + name);
+        }
+    }
+
+    private static void assertNoMatch(String glob, String... names) {
+        Pattern pattern = Pattern.compile(FileIndex.Query.globToRegex(glob));
+        for (String name : names) {
+            assertFalse(pattern.matcher(name).matches(), glob + " should not match " + name);
+        }
+    }
+}
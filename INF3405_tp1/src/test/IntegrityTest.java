@@ -0,0 +1,114 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Round trips of the trailer set by "verify": the values computed by the sender, written after the data,
+ * checked by the receiver against its own.
+ */
+
+public class IntegrityTest {
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @EnumSource(value = Integrity.Mode.class, names = { "CRC32C", "SHA256" })
+    public void acceptsTheDataItWasComputedFrom(Integrity.Mode mode) throws IOException {
+        byte[] data = random(100000, 1);
+        Integrity sent = new Integrity(mode);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+        sent.update(direct); // As a zero-copy sender or a channel does
+        byte[] trailer = trailer(sent);
+        assertEquals(Integer.BYTES + (mode == Integrity.Mode.SHA256 ? Integrity.SHA256_SIZE : 0), trailer.length);
+
+        Integrity received = new Integrity(mode);
+        for (int offset = 0; offset < data.length; offset += 7000) { // As a stream does, in pieces
+            received.update(data, offset, Math.min(7000, data.length - offset));
+        }
+        assertNull(received.verify(stream(trailer)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = Integrity.Mode.class, names = { "CRC32C", "SHA256" })
+    public void rejectsACorruptedByte(Integrity.Mode mode) throws IOException {
+        byte[] data = random(5000, 2);
+        Integrity sent = new Integrity(mode);
+        sent.update(data, 0, data.length);
+        byte[] trailer = trailer(sent);
+
+        data[1234] ^= 0x10;
+        Integrity received = new Integrity(mode);
+        received.update(data, 0, data.length);
+        String mismatch = received.verify(stream(trailer));
+        assertTrue(mismatch != null && mismatch.startsWith("CRC32C mismatch"), mismatch);
+    }
+
+    @Test
+    public void comparesTheDigestWhenTheChecksumsMatch() throws IOException {
+        byte[] data = random(5000, 3);
+        Integrity sent = new Integrity(Integrity.Mode.SHA256);
+        sent.update(data, 0, data.length);
+        byte[] trailer = trailer(sent);
+        trailer[trailer.length - 1] ^= 1; // Only the SHA-256 differs
+
+        Integrity received = new Integrity(Integrity.Mode.SHA256);
+        received.update(data, 0, data.length);
+        String mismatch = received.verify(stream(trailer));
+        assertTrue(mismatch != null && mismatch.startsWith("SHA-256 mismatch"), mismatch);
+    }
+
+    @Test
+    public void computesPartOfAFile() throws IOException {
+        byte[] data = random(300000, 4);
+        Path file = Files.write(directory.resolve("file"), data);
+        Integrity expected = new Integrity(Integrity.Mode.SHA256);
+        expected.update(data, 1000, 200000);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Integrity computed = Integrity.of(Integrity.Mode.SHA256, channel, 1000, 200000, ByteBuffer.allocate(64 * 1024));
+            assertEquals(expected.getValue(), computed.getValue());
+            assertNull(computed.verify(stream(trailer(expected))));
+        }
+    }
+
+    @Test
+    public void parsesModeNames() {
+        assertEquals(Integrity.Mode.SHA256, Integrity.parse(" Sha256 "));
+        assertEquals(Integrity.Mode.OFF, Integrity.parse("off"));
+        assertThrows(IllegalArgumentException.class, () -> Integrity.parse("md5"));
+    }
+
+    private static byte[] trailer(Integrity integrity) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        integrity.writeTrailer(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream stream(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}